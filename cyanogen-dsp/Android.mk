@@ -15,13 +15,22 @@ LOCAL_ARM_MODE := arm
 LOCAL_SRC_FILES := \
 	cyanogen-dsp.cpp \
 	Biquad.cpp \
+	BiquadCascade.cpp \
+	CoefficientStore.cpp \
+	Convolver.cpp \
+	Decibels.cpp \
 	Delay.cpp \
 	Effect.cpp \
 	EffectBassBoost.cpp \
 	EffectCompression.cpp \
 	EffectEqualizer.cpp \
 	EffectVirtualizer.cpp \
+	FFT.cpp \
 	FIR16.cpp \
+	Halfband.cpp \
+	ImpulseResponse.cpp \
+	Limiter.cpp \
+	LoudnessMeter.cpp \
 # terminator
 
 LOCAL_C_INCLUDES += \
@@ -49,3 +58,5 @@ LOCAL_MODULE_CLASS := ETC
 LOCAL_MODULE_PATH := $(TARGET_OUT)/vendor/etc
 
 include $(BUILD_PREBUILT)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -31,27 +31,37 @@ Biquad::~Biquad()
 {
 }
 
+void Biquad::computeCoefficients(BiquadCoefficients& c, double a0, double a1, double a2, double b0, double b1, double b2)
+{
+    c.mA1 = -toFixedPoint(a1/a0);
+    c.mA2 = -toFixedPoint(a2/a0);
+    c.mB0 = toFixedPoint(b0/a0);
+    c.mB1 = toFixedPoint(b1/a0);
+    c.mB2 = toFixedPoint(b2/a0);
+}
+
 void Biquad::setCoefficients(int32_t steps, double a0, double a1, double a2, double b0, double b1, double b2)
 {
-    int64_t A1 = -toFixedPoint(a1/a0);
-    int64_t A2 = -toFixedPoint(a2/a0);
-    int64_t B0 = toFixedPoint(b0/a0);
-    int64_t B1 = toFixedPoint(b1/a0);
-    int64_t B2 = toFixedPoint(b2/a0);
+    BiquadCoefficients c;
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
+    setCoefficients(steps, c);
+}
 
+void Biquad::setCoefficients(int32_t steps, const BiquadCoefficients& c)
+{
     if (steps == 0) {
-        mA1 = A1;
-        mA2 = A2;
-        mB0 = B0;
-        mB1 = B1;
-        mB2 = B2;
+        mA1 = c.mA1;
+        mA2 = c.mA2;
+        mB0 = c.mB0;
+        mB1 = c.mB1;
+        mB2 = c.mB2;
         mInterpolationSteps = 0;
     } else {
-        mA1dif = (A1 - mA1) / steps;
-        mA2dif = (A2 - mA2) / steps;
-        mB0dif = (B0 - mB0) / steps;
-        mB1dif = (B1 - mB1) / steps;
-        mB2dif = (B2 - mB2) / steps;
+        mA1dif = (c.mA1 - mA1) / steps;
+        mA2dif = (c.mA2 - mA2) / steps;
+        mB0dif = (c.mB0 - mB0) / steps;
+        mB1dif = (c.mB1 - mB1) / steps;
+        mB2dif = (c.mB2 - mB2) / steps;
         mInterpolationSteps = steps;
     }
 }
@@ -70,7 +80,7 @@ void Biquad::reset()
     mY2 = 0;
 }
 
-void Biquad::setHighShelf(int32_t steps, double center_frequency, double sampling_frequency, double gainDb, double slope, double overallGainDb)
+void Biquad::computeHighShelf(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double gainDb, double slope, double overallGainDb)
 {
     double w0 = 2 * M_PI * center_frequency / sampling_frequency;
     double A = pow(10, gainDb/40);
@@ -88,10 +98,57 @@ void Biquad::setHighShelf(int32_t steps, double center_frequency, double samplin
     b1 *= overallGain;
     b2 *= overallGain;
 
-    setCoefficients(steps, a0, a1, a2, b0, b1, b2);
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
 }
 
-void Biquad::setBandPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
+void Biquad::computeLowShelf(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double gainDb, double slope)
+{
+    double w0 = 2 * M_PI * center_frequency / sampling_frequency;
+    double A = pow(10, gainDb/40);
+    double alpha = sin(w0)/2 * sqrt( (A + 1/A)*(1/slope - 1) + 2 );
+
+    double b0 =    A*( (A+1) - (A-1)*cos(w0) + 2*sqrt(A)*alpha );
+    double b1 =  2*A*( (A-1) - (A+1)*cos(w0)                   );
+    double b2 =    A*( (A+1) - (A-1)*cos(w0) - 2*sqrt(A)*alpha );
+    double a0 =        (A+1) + (A-1)*cos(w0) + 2*sqrt(A)*alpha  ;
+    double a1 =   -2*( (A-1) + (A+1)*cos(w0)                   );
+    double a2 =        (A+1) + (A-1)*cos(w0) - 2*sqrt(A)*alpha  ;
+
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
+}
+
+void Biquad::computePeaking(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double gainDb, double resonance)
+{
+    double w0 = 2 * M_PI * center_frequency / sampling_frequency;
+    double A = pow(10, gainDb/40);
+    double alpha = sin(w0) / (2*resonance);
+
+    double b0 =   1 + alpha*A;
+    double b1 =  -2*cos(w0);
+    double b2 =   1 - alpha*A;
+    double a0 =   1 + alpha/A;
+    double a1 =  -2*cos(w0);
+    double a2 =   1 - alpha/A;
+
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
+}
+
+void Biquad::computeNotch(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double resonance)
+{
+    double w0 = 2 * M_PI * center_frequency / sampling_frequency;
+    double alpha = sin(w0) / (2*resonance);
+
+    double b0 =   1;
+    double b1 =  -2*cos(w0);
+    double b2 =   1;
+    double a0 =   1 + alpha;
+    double a1 =  -2*cos(w0);
+    double a2 =   1 - alpha;
+
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
+}
+
+void Biquad::computeBandPass(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double resonance)
 {
     double w0 = 2 * M_PI * center_frequency / sampling_frequency;
     double alpha = sin(w0) / (2*resonance);
@@ -103,10 +160,10 @@ void Biquad::setBandPass(int32_t steps, double center_frequency, double sampling
     double a1 =  -2*cos(w0);
     double a2 =   1 - alpha;
 
-    setCoefficients(steps, a0, a1, a2, b0, b1, b2);
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
 }
 
-void Biquad::setLowPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
+void Biquad::computeLowPass(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double resonance)
 {
     double w0 = 2 * M_PI * center_frequency / sampling_frequency;
     double alpha = sin(w0) / (2*resonance);
@@ -118,7 +175,28 @@ void Biquad::setLowPass(int32_t steps, double center_frequency, double sampling_
     double a1 =  -2*cos(w0);
     double a2 =   1 - alpha;
 
-    setCoefficients(steps, a0, a1, a2, b0, b1, b2);
+    computeCoefficients(c, a0, a1, a2, b0, b1, b2);
+}
+
+void Biquad::setHighShelf(int32_t steps, double center_frequency, double sampling_frequency, double gainDb, double slope, double overallGainDb)
+{
+    BiquadCoefficients c;
+    computeHighShelf(c, center_frequency, sampling_frequency, gainDb, slope, overallGainDb);
+    setCoefficients(steps, c);
+}
+
+void Biquad::setBandPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
+{
+    BiquadCoefficients c;
+    computeBandPass(c, center_frequency, sampling_frequency, resonance);
+    setCoefficients(steps, c);
+}
+
+void Biquad::setLowPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
+{
+    BiquadCoefficients c;
+    computeLowPass(c, center_frequency, sampling_frequency, resonance);
+    setCoefficients(steps, c);
 }
 
 int32_t Biquad::process(int32_t x0)
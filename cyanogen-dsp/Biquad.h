@@ -2,6 +2,11 @@
 
 #include <stdint.h>
 
+/* Normalized direct form 1 coefficients in 32.32 fixed point. */
+struct BiquadCoefficients {
+    int64_t mB0, mB1, mB2, mA1, mA2;
+};
+
 class Biquad {
     protected:
     int32_t mX1, mX2;
@@ -15,6 +20,14 @@ class Biquad {
     public:
     Biquad();
     virtual ~Biquad();
+    static void computeCoefficients(BiquadCoefficients& c, double a0, double a1, double a2, double b0, double b1, double b2);
+    static void computeHighShelf(BiquadCoefficients& c, double cf, double sf, double gaindB, double slope, double overallGain);
+    static void computeLowShelf(BiquadCoefficients& c, double cf, double sf, double gaindB, double slope);
+    static void computePeaking(BiquadCoefficients& c, double cf, double sf, double gaindB, double resonance);
+    static void computeNotch(BiquadCoefficients& c, double cf, double sf, double resonance);
+    static void computeBandPass(BiquadCoefficients& c, double cf, double sf, double resonance);
+    static void computeLowPass(BiquadCoefficients& c, double cf, double sf, double resonance);
+    void setCoefficients(int32_t steps, const BiquadCoefficients& c);
     void setHighShelf(int32_t steps, double cf, double sf, double gaindB, double slope, double overallGain);
     void setBandPass(int32_t steps, double cf, double sf, double resonance);
     void setLowPass(int32_t steps, double cf, double sf, double resonance);
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "BiquadCascade.h"
+
+#include <string.h>
+
+#ifdef __ARM_NEON__
+#include <arm_neon.h>
+#endif
+
+static const int64_t UNITY = int64_t(1) << 32;
+
+static int64_t magnitude(int64_t value)
+{
+    return value < 0 ? -value : value;
+}
+
+/* Feedback coefficients of a stable section are below 2 in magnitude, and
+ * fit as they are. The feedforward ones are scaled down until they do. */
+static int32_t getShift(const BiquadCoefficients& c)
+{
+    int64_t peak = magnitude(c.mB0);
+    if (magnitude(c.mB1) > peak) {
+        peak = magnitude(c.mB1);
+    }
+    if (magnitude(c.mB2) > peak) {
+        peak = magnitude(c.mB2);
+    }
+    int32_t shift = 0;
+    while ((peak >> shift) >= 2 * UNITY && shift < 24) {
+        shift ++;
+    }
+    return shift;
+}
+
+/* Rounded and saturated right shift to 32 bits */
+static int32_t narrow(int64_t value, int32_t shift)
+{
+    if (shift > 0) {
+        value = (value + (int64_t(1) << (shift - 1))) >> shift;
+    }
+    if (value > 0x7fffffff) {
+        return 0x7fffffff;
+    }
+    if (value < -0x7fffffff) {
+        return -0x7fffffff;
+    }
+    return int32_t(value);
+}
+
+static void pack(BiquadSection& p, const BiquadCoefficients& c, int32_t shift)
+{
+    p.mB0 = narrow(c.mB0, 2 + shift);
+    p.mB1 = narrow(c.mB1, 2 + shift);
+    p.mB2 = narrow(c.mB2, 2 + shift);
+    p.mA1 = narrow(c.mA1, 2);
+    p.mA2 = narrow(c.mA2, 2);
+    p.mShift = shift;
+}
+
+static void rescale(BiquadSection& p, int32_t shift)
+{
+    if (shift > p.mShift) {
+        p.mB0 = narrow(p.mB0, shift - p.mShift);
+        p.mB1 = narrow(p.mB1, shift - p.mShift);
+        p.mB2 = narrow(p.mB2, shift - p.mShift);
+        p.mShift = shift;
+    }
+}
+
+static int32_t getStep(int32_t from, int32_t to, int32_t steps)
+{
+    return int32_t((int64_t(to) - from) / steps);
+}
+
+static int32_t advance(int32_t from, int32_t step, int32_t steps)
+{
+    return int32_t(from + int64_t(step) * steps);
+}
+
+static inline int32_t runSample(const BiquadSection& c, int32_t x0, int32_t x1, int32_t x2, int32_t y1, int32_t y2)
+{
+    int64_t acc = int64_t(c.mB0) * x0 + int64_t(c.mB1) * x1 + int64_t(c.mB2) * x2;
+    acc = (acc << c.mShift) + int64_t(c.mA2) * y2 + int64_t(c.mA1) * y1;
+    return int32_t(acc >> 30);
+}
+
+static inline void glide(BiquadSection& c, const BiquadSection& d)
+{
+    c.mB0 += d.mB0;
+    c.mB1 += d.mB1;
+    c.mB2 += d.mB2;
+    c.mA1 += d.mA1;
+    c.mA2 += d.mA2;
+}
+
+/* Sections run one after another over the block. The input history a
+ * section starts from is what the previous one had as output history before
+ * this block, so that is carried along rather than read back. */
+template <bool GLIDE>
+static void runSingle(const BiquadSection *c, const BiquadSection *d, int32_t sections, int32_t *samples, int32_t (*history)[2], int32_t frames)
+{
+    int32_t x1 = history[0][0];
+    int32_t x2 = history[0][1];
+    for (int32_t s = 0; s < sections; s ++) {
+        int32_t y1 = history[s + 1][0];
+        int32_t y2 = history[s + 1][1];
+        int32_t nextX1 = y1;
+        int32_t nextX2 = y2;
+        BiquadSection section = c[s];
+        for (int32_t i = 0; i < frames; i ++) {
+            int32_t x0 = samples[i];
+            int32_t y0 = runSample(section, x0, x1, x2, y1, y2);
+            x2 = x1;
+            x1 = x0;
+            y2 = y1;
+            y1 = y0;
+            samples[i] = y0;
+            if (GLIDE) {
+                glide(section, d[s]);
+            }
+        }
+        if (s == 0) {
+            history[0][0] = x1;
+            history[0][1] = x2;
+        }
+        history[s + 1][0] = y1;
+        history[s + 1][1] = y2;
+        x1 = nextX1;
+        x2 = nextX2;
+    }
+}
+
+#ifdef __ARM_NEON__
+/* Both channels of the pair are lanes of one vector. Frames are loaded two
+ * at a time and transposed into frame vectors. */
+template <bool GLIDE>
+static void runPair(const BiquadSection *c, const BiquadSection *d, int32_t sections, int32_t *left, int32_t *right, int32_t (*historyLeft)[2], int32_t (*historyRight)[2], int32_t frames)
+{
+    int32x2_t x1 = vset_lane_s32(historyRight[0][0], vdup_n_s32(historyLeft[0][0]), 1);
+    int32x2_t x2 = vset_lane_s32(historyRight[0][1], vdup_n_s32(historyLeft[0][1]), 1);
+    for (int32_t s = 0; s < sections; s ++) {
+        int32x2_t y1 = vset_lane_s32(historyRight[s + 1][0], vdup_n_s32(historyLeft[s + 1][0]), 1);
+        int32x2_t y2 = vset_lane_s32(historyRight[s + 1][1], vdup_n_s32(historyLeft[s + 1][1]), 1);
+        int32x2_t nextX1 = y1;
+        int32x2_t nextX2 = y2;
+
+        int32x2_t b0 = vdup_n_s32(c[s].mB0);
+        int32x2_t b1 = vdup_n_s32(c[s].mB1);
+        int32x2_t b2 = vdup_n_s32(c[s].mB2);
+        int32x2_t a1 = vdup_n_s32(c[s].mA1);
+        int32x2_t a2 = vdup_n_s32(c[s].mA2);
+        int32x2_t db0 = vdup_n_s32(d[s].mB0);
+        int32x2_t db1 = vdup_n_s32(d[s].mB1);
+        int32x2_t db2 = vdup_n_s32(d[s].mB2);
+        int32x2_t da1 = vdup_n_s32(d[s].mA1);
+        int32x2_t da2 = vdup_n_s32(d[s].mA2);
+        int64x2_t shift = vdupq_n_s64(c[s].mShift);
+
+        int32_t i = 0;
+        int32x2x2_t x;
+        int32x2x2_t y;
+        for (; i < frames; i += 2) {
+            int32_t pair = frames - i >= 2 ? 2 : 1;
+            if (pair == 2) {
+                x = vtrn_s32(vld1_s32(left + i), vld1_s32(right + i));
+            } else {
+                x.val[0] = vld1_lane_s32(right + i, vld1_lane_s32(left + i, x1, 0), 1);
+            }
+            for (int32_t k = 0; k < pair; k ++) {
+                int64x2_t acc = vmull_s32(b0, x.val[k]);
+                acc = vmlal_s32(acc, b1, x1);
+                acc = vmlal_s32(acc, b2, x2);
+                acc = vshlq_s64(acc, shift);
+                acc = vmlal_s32(acc, a2, y2);
+                acc = vmlal_s32(acc, a1, y1);
+                y.val[k] = vshrn_n_s64(acc, 30);
+                x2 = x1;
+                x1 = x.val[k];
+                y2 = y1;
+                y1 = y.val[k];
+                if (GLIDE) {
+                    b0 = vadd_s32(b0, db0);
+                    b1 = vadd_s32(b1, db1);
+                    b2 = vadd_s32(b2, db2);
+                    a1 = vadd_s32(a1, da1);
+                    a2 = vadd_s32(a2, da2);
+                }
+            }
+            if (pair == 2) {
+                y = vtrn_s32(y.val[0], y.val[1]);
+                vst1_s32(left + i, y.val[0]);
+                vst1_s32(right + i, y.val[1]);
+            } else {
+                vst1_lane_s32(left + i, y.val[0], 0);
+                vst1_lane_s32(right + i, y.val[0], 1);
+            }
+        }
+
+        if (s == 0) {
+            historyLeft[0][0] = vget_lane_s32(x1, 0);
+            historyLeft[0][1] = vget_lane_s32(x2, 0);
+            historyRight[0][0] = vget_lane_s32(x1, 1);
+            historyRight[0][1] = vget_lane_s32(x2, 1);
+        }
+        historyLeft[s + 1][0] = vget_lane_s32(y1, 0);
+        historyLeft[s + 1][1] = vget_lane_s32(y2, 0);
+        historyRight[s + 1][0] = vget_lane_s32(y1, 1);
+        historyRight[s + 1][1] = vget_lane_s32(y2, 1);
+        x1 = nextX1;
+        x2 = nextX2;
+    }
+}
+#else
+template <bool GLIDE>
+static void runPair(const BiquadSection *c, const BiquadSection *d, int32_t sections, int32_t *left, int32_t *right, int32_t (*historyLeft)[2], int32_t (*historyRight)[2], int32_t frames)
+{
+    int32_t lx1 = historyLeft[0][0];
+    int32_t lx2 = historyLeft[0][1];
+    int32_t rx1 = historyRight[0][0];
+    int32_t rx2 = historyRight[0][1];
+    for (int32_t s = 0; s < sections; s ++) {
+        int32_t ly1 = historyLeft[s + 1][0];
+        int32_t ly2 = historyLeft[s + 1][1];
+        int32_t ry1 = historyRight[s + 1][0];
+        int32_t ry2 = historyRight[s + 1][1];
+        int32_t nextLx1 = ly1;
+        int32_t nextLx2 = ly2;
+        int32_t nextRx1 = ry1;
+        int32_t nextRx2 = ry2;
+        BiquadSection section = c[s];
+        for (int32_t i = 0; i < frames; i ++) {
+            int32_t lx0 = left[i];
+            int32_t rx0 = right[i];
+            int32_t ly0 = runSample(section, lx0, lx1, lx2, ly1, ly2);
+            int32_t ry0 = runSample(section, rx0, rx1, rx2, ry1, ry2);
+            lx2 = lx1;
+            lx1 = lx0;
+            ly2 = ly1;
+            ly1 = ly0;
+            rx2 = rx1;
+            rx1 = rx0;
+            ry2 = ry1;
+            ry1 = ry0;
+            left[i] = ly0;
+            right[i] = ry0;
+            if (GLIDE) {
+                glide(section, d[s]);
+            }
+        }
+        if (s == 0) {
+            historyLeft[0][0] = lx1;
+            historyLeft[0][1] = lx2;
+            historyRight[0][0] = rx1;
+            historyRight[0][1] = rx2;
+        }
+        historyLeft[s + 1][0] = ly1;
+        historyLeft[s + 1][1] = ly2;
+        historyRight[s + 1][0] = ry1;
+        historyRight[s + 1][1] = ry2;
+        lx1 = nextLx1;
+        lx2 = nextLx2;
+        rx1 = nextRx1;
+        rx2 = nextRx2;
+    }
+}
+#endif
+
+BiquadCascade::BiquadCascade()
+{
+    reset();
+}
+
+void BiquadCascade::reset()
+{
+    mSections = 0;
+    mPendingSections = 0;
+    mInterpolationSteps = 0;
+    memset(mTarget, 0, sizeof(mTarget));
+    memset(mSection, 0, sizeof(mSection));
+    memset(mDifference, 0, sizeof(mDifference));
+    memset(mHistory, 0, sizeof(mHistory));
+}
+
+int32_t BiquadCascade::getSections() const
+{
+    return mSections;
+}
+
+void BiquadCascade::setCoefficients(int32_t steps, const BiquadCoefficients *coefficients, int32_t count)
+{
+    /* New sections pass their input through, so their output history is
+     * their input history. */
+    for (int32_t s = mSections; s < count; s ++) {
+        BiquadCoefficients unity;
+        memset(&unity, 0, sizeof(unity));
+        unity.mB0 = UNITY;
+        pack(mSection[s], unity, 0);
+        for (int32_t ch = 0; ch < BIQUAD_CASCADE_MAXIMUM_CHANNELS; ch ++) {
+            mHistory[ch][s + 1][0] = mHistory[ch][s][0];
+            mHistory[ch][s + 1][1] = mHistory[ch][s][1];
+        }
+    }
+    if (count > mSections) {
+        mSections = count;
+    }
+    mPendingSections = count;
+
+    for (int32_t s = 0; s < mSections; s ++) {
+        BiquadCoefficients& target = mTarget[s];
+        if (s < count) {
+            target = coefficients[s];
+        } else {
+            memset(&target, 0, sizeof(target));
+            target.mB0 = UNITY;
+        }
+
+        BiquadSection& c = mSection[s];
+        if (steps == 0) {
+            pack(c, target, getShift(target));
+        } else {
+            /* The glide runs at whichever scale fits both ends. */
+            int32_t shift = getShift(target);
+            if (shift < c.mShift) {
+                shift = c.mShift;
+            }
+            rescale(c, shift);
+            BiquadSection end;
+            pack(end, target, shift);
+
+            BiquadSection& d = mDifference[s];
+            d.mB0 = getStep(c.mB0, end.mB0, steps);
+            d.mB1 = getStep(c.mB1, end.mB1, steps);
+            d.mB2 = getStep(c.mB2, end.mB2, steps);
+            d.mA1 = getStep(c.mA1, end.mA1, steps);
+            d.mA2 = getStep(c.mA2, end.mA2, steps);
+            d.mShift = 0;
+        }
+    }
+
+    mInterpolationSteps = steps;
+    if (steps == 0) {
+        mSections = count;
+    }
+}
+
+template <bool GLIDE>
+void BiquadCascade::run(int32_t **planes, int32_t channels, int32_t offset, int32_t frames)
+{
+    for (int32_t ch = 0; ch < channels; ch += 2) {
+        if (channels - ch >= 2) {
+            runPair<GLIDE>(mSection, mDifference, mSections, planes[ch] + offset, planes[ch + 1] + offset,
+                mHistory[ch], mHistory[ch + 1], frames);
+        } else {
+            runSingle<GLIDE>(mSection, mDifference, mSections, planes[ch] + offset, mHistory[ch], frames);
+        }
+    }
+}
+
+void BiquadCascade::process(int32_t **planes, int32_t channels, int32_t frames)
+{
+    if (mSections == 0) {
+        return;
+    }
+
+    int32_t steps = mInterpolationSteps < frames ? mInterpolationSteps : frames;
+    if (steps != 0) {
+        run<true>(planes, channels, 0, steps);
+
+        /* Every channel pair glided from the same start; move it along. */
+        for (int32_t s = 0; s < mSections; s ++) {
+            BiquadSection& c = mSection[s];
+            const BiquadSection& d = mDifference[s];
+            c.mB0 = advance(c.mB0, d.mB0, steps);
+            c.mB1 = advance(c.mB1, d.mB1, steps);
+            c.mB2 = advance(c.mB2, d.mB2, steps);
+            c.mA1 = advance(c.mA1, d.mA1, steps);
+            c.mA2 = advance(c.mA2, d.mA2, steps);
+        }
+
+        mInterpolationSteps -= steps;
+        if (mInterpolationSteps == 0) {
+            for (int32_t s = 0; s < mSections; s ++) {
+                pack(mSection[s], mTarget[s], getShift(mTarget[s]));
+            }
+            mSections = mPendingSections;
+        }
+    }
+
+    if (steps < frames) {
+        run<false>(planes, channels, steps, frames - steps);
+    }
+}
@@ -0,0 +1,52 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "Biquad.h"
+
+/* Enough for the five loudness shelves and sixteen parametric bands. */
+#define BIQUAD_CASCADE_MAXIMUM_SECTIONS 21
+#define BIQUAD_CASCADE_MAXIMUM_CHANNELS 8
+
+/* Section coefficients as run by the cascade: 2.30 fixed point, with the
+ * feedforward ones scaled down by 2^mShift to fit. Also used for the
+ * per-sample steps of a glide. */
+struct BiquadSection {
+    int32_t mB0, mB1, mB2, mA1, mA2;
+    int32_t mShift;
+};
+
+/* Series of biquads shared by several channels, run over planar blocks.
+ *
+ * Sections are designed in 32.32 like Biquad, but run with every multiply
+ * 32 x 32 bits, which is a single instruction on ARM where Biquad needs
+ * three. Each section runs over the whole block before the next with its
+ * state in registers, and channels go through in pairs so two independent
+ * recursions share the coefficients; with NEON a pair is one vector. */
+class BiquadCascade {
+    int32_t mSections;
+    /* Section count to drop to when the current glide ends. */
+    int32_t mPendingSections;
+    int32_t mInterpolationSteps;
+    /* Where the glide ends */
+    BiquadCoefficients mTarget[BIQUAD_CASCADE_MAXIMUM_SECTIONS];
+    BiquadSection mSection[BIQUAD_CASCADE_MAXIMUM_SECTIONS];
+    BiquadSection mDifference[BIQUAD_CASCADE_MAXIMUM_SECTIONS];
+    /* x1, x2 of each section's input; entry n + 1 is the cascade output. */
+    int32_t mHistory[BIQUAD_CASCADE_MAXIMUM_CHANNELS][BIQUAD_CASCADE_MAXIMUM_SECTIONS + 1][2];
+
+    template <bool GLIDE>
+    void run(int32_t **planes, int32_t channels, int32_t offset, int32_t frames);
+
+    public:
+    BiquadCascade();
+    void reset();
+    int32_t getSections() const;
+
+    /* Glide to these coefficients over steps samples. Sections beyond count
+     * glide to unity and are then removed; new ones glide in from unity. */
+    void setCoefficients(int32_t steps, const BiquadCoefficients *coefficients, int32_t count);
+
+    /* Filters planar channels in place. */
+    void process(int32_t **planes, int32_t channels, int32_t frames);
+};
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "DSP-CoefficientStore"
+
+#include <cutils/atomic.h>
+#include <cutils/log.h>
+#include <pthread.h>
+#include <string.h>
+
+#include "CoefficientStore.h"
+
+/* One equalizer table is 81 * 5 designs; leave room for a few of those. */
+#define STORE_SIZE 2048
+#define MAX_PROBE 16
+
+typedef struct {
+    /* Odd while a writer is updating the slot. */
+    volatile int32_t sequence;
+    /* -1 for a free slot, otherwise number of holders. */
+    volatile int32_t references;
+    BiquadKey key;
+    BiquadCoefficients coefficients;
+} entry_t;
+
+static entry_t sEntries[STORE_SIZE];
+static int32_t sInitialized;
+static pthread_mutex_t sLock = PTHREAD_MUTEX_INITIALIZER;
+
+static volatile int32_t sHits;
+static volatile int32_t sMisses;
+static volatile int32_t sEntryCount;
+
+static int32_t quantize(float value, float scale) {
+    return int32_t(value * scale + (value < 0 ? -0.5f : 0.5f));
+}
+
+/* Frequencies in 0.01 Hz, gains in 0.01 dB, Q and slope in 0.001. */
+void CoefficientStore::makeHighShelf(BiquadKey& key, float sf, float cf, float gainDb, float slope, float overallGainDb)
+{
+    memset(&key, 0, sizeof(key));
+    key.mSamplingRate = int32_t(sf);
+    key.mType = FILTER_HIGH_SHELF;
+    key.mParam[0] = quantize(cf, 100.f);
+    key.mParam[1] = quantize(gainDb, 100.f);
+    key.mParam[2] = quantize(slope, 1000.f);
+    key.mParam[3] = quantize(overallGainDb, 100.f);
+}
+
+void CoefficientStore::makeBandPass(BiquadKey& key, float sf, float cf, float resonance)
+{
+    memset(&key, 0, sizeof(key));
+    key.mSamplingRate = int32_t(sf);
+    key.mType = FILTER_BAND_PASS;
+    key.mParam[0] = quantize(cf, 100.f);
+    key.mParam[1] = quantize(resonance, 1000.f);
+}
+
+void CoefficientStore::makeLowPass(BiquadKey& key, float sf, float cf, float resonance)
+{
+    memset(&key, 0, sizeof(key));
+    key.mSamplingRate = int32_t(sf);
+    key.mType = FILTER_LOW_PASS;
+    key.mParam[0] = quantize(cf, 100.f);
+    key.mParam[1] = quantize(resonance, 1000.f);
+}
+
+void CoefficientStore::makeLowShelf(BiquadKey& key, float sf, float cf, float gainDb, float slope)
+{
+    memset(&key, 0, sizeof(key));
+    key.mSamplingRate = int32_t(sf);
+    key.mType = FILTER_LOW_SHELF;
+    key.mParam[0] = quantize(cf, 100.f);
+    key.mParam[1] = quantize(gainDb, 100.f);
+    key.mParam[2] = quantize(slope, 1000.f);
+}
+
+void CoefficientStore::makePeaking(BiquadKey& key, float sf, float cf, float gainDb, float resonance)
+{
+    memset(&key, 0, sizeof(key));
+    key.mSamplingRate = int32_t(sf);
+    key.mType = FILTER_PEAKING;
+    key.mParam[0] = quantize(cf, 100.f);
+    key.mParam[1] = quantize(gainDb, 100.f);
+    key.mParam[2] = quantize(resonance, 1000.f);
+}
+
+void CoefficientStore::makeNotch(BiquadKey& key, float sf, float cf, float resonance)
+{
+    memset(&key, 0, sizeof(key));
+    key.mSamplingRate = int32_t(sf);
+    key.mType = FILTER_NOTCH;
+    key.mParam[0] = quantize(cf, 100.f);
+    key.mParam[1] = quantize(resonance, 1000.f);
+}
+
+/* Designs from the quantized values so that a cached entry is exactly what
+ * a local design would have produced. */
+static void design(const BiquadKey& key, BiquadCoefficients& c)
+{
+    double sf = key.mSamplingRate;
+    double cf = key.mParam[0] / 100.0;
+    switch (key.mType) {
+    case FILTER_HIGH_SHELF:
+        Biquad::computeHighShelf(c, cf, sf, key.mParam[1] / 100.0, key.mParam[2] / 1000.0, key.mParam[3] / 100.0);
+        break;
+    case FILTER_BAND_PASS:
+        Biquad::computeBandPass(c, cf, sf, key.mParam[1] / 1000.0);
+        break;
+    case FILTER_LOW_PASS:
+        Biquad::computeLowPass(c, cf, sf, key.mParam[1] / 1000.0);
+        break;
+    case FILTER_LOW_SHELF:
+        Biquad::computeLowShelf(c, cf, sf, key.mParam[1] / 100.0, key.mParam[2] / 1000.0);
+        break;
+    case FILTER_PEAKING:
+        Biquad::computePeaking(c, cf, sf, key.mParam[1] / 100.0, key.mParam[2] / 1000.0);
+        break;
+    case FILTER_NOTCH:
+        Biquad::computeNotch(c, cf, sf, key.mParam[1] / 1000.0);
+        break;
+    default:
+        LOGE("Unknown filter type %d", key.mType);
+        memset(&c, 0, sizeof(c));
+        c.mB0 = int64_t(1) << 32;
+        break;
+    }
+}
+
+static uint32_t hash(const BiquadKey& key)
+{
+    /* FNV-1a */
+    const uint8_t *data = (const uint8_t *) &key;
+    uint32_t h = 2166136261u;
+    for (uint32_t i = 0; i < sizeof(key); i ++) {
+        h = (h ^ data[i]) * 16777619u;
+    }
+    return h;
+}
+
+static void initialize()
+{
+    if (android_atomic_acquire_load(&sInitialized)) {
+        return;
+    }
+    pthread_mutex_lock(&sLock);
+    if (! sInitialized) {
+        for (int32_t i = 0; i < STORE_SIZE; i ++) {
+            sEntries[i].sequence = 0;
+            sEntries[i].references = -1;
+        }
+        android_atomic_release_store(1, &sInitialized);
+    }
+    pthread_mutex_unlock(&sLock);
+}
+
+/* Consistent snapshot of one slot. Returns false if the slot is free or a
+ * writer got in the way. */
+static bool readEntry(int32_t idx, BiquadKey& key, BiquadCoefficients& c, int32_t *sequence)
+{
+    entry_t *e = &sEntries[idx];
+    int32_t before = android_atomic_acquire_load(&e->sequence);
+    if ((before & 1) || e->references < 0) {
+        return false;
+    }
+    memcpy(&key, &e->key, sizeof(key));
+    memcpy(&c, &e->coefficients, sizeof(c));
+    int32_t after = android_atomic_acquire_load(&e->sequence);
+    *sequence = before;
+    return before == after;
+}
+
+/* Find a key along its probe sequence. Returns slot index or -1. */
+static int32_t find(const BiquadKey& key, BiquadCoefficients& c, int32_t *sequence)
+{
+    uint32_t h = hash(key);
+    for (int32_t probe = 0; probe < MAX_PROBE; probe ++) {
+        int32_t idx = (h + probe) & (STORE_SIZE - 1);
+        BiquadKey candidate;
+        BiquadCoefficients coefficients;
+        if (readEntry(idx, candidate, coefficients, sequence)
+            && memcmp(&candidate, &key, sizeof(key)) == 0) {
+            c = coefficients;
+            return idx;
+        }
+    }
+    return -1;
+}
+
+/* Take a reference on a slot we just found, unless it was recycled since. */
+static bool reference(int32_t idx, int32_t sequence)
+{
+    entry_t *e = &sEntries[idx];
+    int32_t refs;
+    do {
+        refs = e->references;
+        if (refs < 0) {
+            return false;
+        }
+    } while (android_atomic_cmpxchg(refs, refs + 1, &e->references));
+
+    if (android_atomic_acquire_load(&e->sequence) != sequence) {
+        android_atomic_dec(&e->references);
+        return false;
+    }
+    return true;
+}
+
+int32_t CoefficientStore::acquire(const BiquadKey& key, BiquadCoefficients& c)
+{
+    initialize();
+
+    int32_t sequence;
+    int32_t idx = find(key, c, &sequence);
+    if (idx >= 0 && reference(idx, sequence)) {
+        android_atomic_inc(&sHits);
+        return idx;
+    }
+
+    android_atomic_inc(&sMisses);
+    design(key, c);
+
+    pthread_mutex_lock(&sLock);
+    /* Someone may have inserted it while we were designing. */
+    idx = find(key, c, &sequence);
+    if (idx >= 0 && reference(idx, sequence)) {
+        pthread_mutex_unlock(&sLock);
+        return idx;
+    }
+
+    /* Claim a free slot or recycle an unreferenced one. */
+    uint32_t h = hash(key);
+    idx = -1;
+    for (int32_t probe = 0; probe < MAX_PROBE; probe ++) {
+        int32_t candidate = (h + probe) & (STORE_SIZE - 1);
+        entry_t *e = &sEntries[candidate];
+        int32_t refs = e->references;
+        if (refs <= 0 && android_atomic_cmpxchg(refs, -2, &e->references) == 0) {
+            if (refs < 0) {
+                android_atomic_inc(&sEntryCount);
+            }
+            idx = candidate;
+            break;
+        }
+    }
+    if (idx >= 0) {
+        entry_t *e = &sEntries[idx];
+        android_atomic_inc(&e->sequence);
+        memcpy(&e->key, &key, sizeof(key));
+        memcpy(&e->coefficients, &c, sizeof(c));
+        android_atomic_inc(&e->sequence);
+        android_atomic_release_store(1, &e->references);
+    }
+    pthread_mutex_unlock(&sLock);
+    return idx;
+}
+
+void CoefficientStore::release(int32_t handle)
+{
+    if (handle >= 0) {
+        android_atomic_dec(&sEntries[handle].references);
+    }
+}
+
+void CoefficientStore::getStatistics(int32_t *hits, int32_t *misses, int32_t *entries)
+{
+    *hits = android_atomic_acquire_load(&sHits);
+    *misses = android_atomic_acquire_load(&sMisses);
+    *entries = android_atomic_acquire_load(&sEntryCount);
+}
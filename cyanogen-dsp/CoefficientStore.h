@@ -0,0 +1,46 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "Biquad.h"
+
+enum {
+    FILTER_HIGH_SHELF = 1,
+    FILTER_BAND_PASS,
+    FILTER_LOW_PASS,
+    FILTER_LOW_SHELF,
+    FILTER_PEAKING,
+    FILTER_NOTCH
+};
+
+/* Filter design parameters, quantized so that equal settings in different
+ * sessions produce bit-identical keys. */
+struct BiquadKey {
+    int32_t mSamplingRate;
+    int32_t mType;
+    int32_t mParam[4];
+};
+
+/* Library-wide cache of biquad designs shared between all effect instances.
+ *
+ * Entries are reference counted by the effects that use them; unreferenced
+ * entries stay cached until their slot is needed for a new design. Readers
+ * never lock: slots are guarded by a sequence counter which writers make odd
+ * for the duration of an update, and misses fall back to designing locally. */
+class CoefficientStore {
+    public:
+    static void makeHighShelf(BiquadKey& key, float sf, float cf, float gainDb, float slope, float overallGainDb);
+    static void makeBandPass(BiquadKey& key, float sf, float cf, float resonance);
+    static void makeLowPass(BiquadKey& key, float sf, float cf, float resonance);
+    static void makeLowShelf(BiquadKey& key, float sf, float cf, float gainDb, float slope);
+    static void makePeaking(BiquadKey& key, float sf, float cf, float gainDb, float resonance);
+    static void makeNotch(BiquadKey& key, float sf, float cf, float resonance);
+
+    /* Return coefficients for key, designing and caching them on a miss.
+     * The returned handle must be given to release(); -1 means the store was
+     * full and the coefficients were designed without caching. */
+    static int32_t acquire(const BiquadKey& key, BiquadCoefficients& coefficients);
+    static void release(int32_t handle);
+
+    static void getStatistics(int32_t *hits, int32_t *misses, int32_t *entries);
+};
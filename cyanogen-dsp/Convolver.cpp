@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "Convolver.h"
+
+#include <string.h>
+
+static int32_t min(int32_t a, int32_t b)
+{
+    return a < b ? a : b;
+}
+
+static float *allocate(int32_t size)
+{
+    float *data = new float[size];
+    memset(data, 0, size * sizeof(float));
+    return data;
+}
+
+Convolver::Convolver(const float *const responses[4], int32_t length, int32_t block)
+    : mBlock(block), mSize(block * 2), mHead(0), mFill(0)
+{
+    mPartitions = (length + block - 1) / block;
+    if (mPartitions < 1) {
+        mPartitions = 1;
+    }
+    mFFT.setSize(mSize);
+
+    mDirectRe = allocate(mPartitions * mSize);
+    mDirectIm = allocate(mPartitions * mSize);
+    mMirrorRe = allocate(mPartitions * mSize);
+    mMirrorIm = allocate(mPartitions * mSize);
+    mSpectrumRe = allocate(mPartitions * mSize);
+    mSpectrumIm = allocate(mPartitions * mSize);
+    mHistoryL = allocate(mSize);
+    mHistoryR = allocate(mSize);
+    mWorkRe = allocate(mSize);
+    mWorkIm = allocate(mSize);
+    mAccumulatorRe = allocate(mSize);
+    mAccumulatorIm = allocate(mSize);
+    mOutputL = new int32_t[block];
+    mOutputR = new int32_t[block];
+    memset(mOutputL, 0, block * sizeof(int32_t));
+    memset(mOutputR, 0, block * sizeof(int32_t));
+
+    /* Spectra of H1 = LL + i LR (heard from the left input) and
+     * H2 = RL + i RR (heard from the right input). With the packed input
+     * X = L + iR, L = (X + Xm) / 2 and R = -i (X - Xm) / 2 where
+     * Xm[k] = conj(X[-k]), so Y = L H1 + R H2 = X (H1 - i H2) / 2 +
+     * Xm (H1 + i H2) / 2. The 1 / size of the inverse FFT is folded in. */
+    float *h1Re = mWorkRe, *h1Im = mWorkIm;
+    float *h2Re = mAccumulatorRe, *h2Im = mAccumulatorIm;
+    float scale = 0.5f / mSize;
+    for (int32_t p = 0; p < mPartitions; p ++) {
+        int32_t start = p * block;
+        int32_t count = min(block, length - start);
+        memset(h1Re, 0, mSize * sizeof(float));
+        memset(h1Im, 0, mSize * sizeof(float));
+        memset(h2Re, 0, mSize * sizeof(float));
+        memset(h2Im, 0, mSize * sizeof(float));
+        for (int32_t i = 0; i < count; i ++) {
+            h1Re[i] = responses[0][start + i];
+            h1Im[i] = responses[1][start + i];
+            h2Re[i] = responses[2][start + i];
+            h2Im[i] = responses[3][start + i];
+        }
+        mFFT.transform(h1Re, h1Im, false);
+        mFFT.transform(h2Re, h2Im, false);
+
+        float *directRe = mDirectRe + p * mSize;
+        float *directIm = mDirectIm + p * mSize;
+        float *mirrorRe = mMirrorRe + p * mSize;
+        float *mirrorIm = mMirrorIm + p * mSize;
+        for (int32_t k = 0; k < mSize; k ++) {
+            /* -i H2 = (im, -re), +i H2 = (-im, re) */
+            directRe[k] = (h1Re[k] + h2Im[k]) * scale;
+            directIm[k] = (h1Im[k] - h2Re[k]) * scale;
+            mirrorRe[k] = (h1Re[k] - h2Im[k]) * scale;
+            mirrorIm[k] = (h1Im[k] + h2Re[k]) * scale;
+        }
+    }
+    memset(mWorkRe, 0, mSize * sizeof(float));
+    memset(mWorkIm, 0, mSize * sizeof(float));
+    memset(mAccumulatorRe, 0, mSize * sizeof(float));
+    memset(mAccumulatorIm, 0, mSize * sizeof(float));
+}
+
+Convolver::~Convolver()
+{
+    delete[] mDirectRe;
+    delete[] mDirectIm;
+    delete[] mMirrorRe;
+    delete[] mMirrorIm;
+    delete[] mSpectrumRe;
+    delete[] mSpectrumIm;
+    delete[] mHistoryL;
+    delete[] mHistoryR;
+    delete[] mWorkRe;
+    delete[] mWorkIm;
+    delete[] mAccumulatorRe;
+    delete[] mAccumulatorIm;
+    delete[] mOutputL;
+    delete[] mOutputR;
+}
+
+void Convolver::process(int32_t *left, int32_t *right, int32_t frames)
+{
+    while (frames > 0) {
+        int32_t chunk = min(frames, mBlock - mFill);
+        for (int32_t i = 0; i < chunk; i ++) {
+            mHistoryL[mBlock + mFill + i] = float(left[i]);
+            mHistoryR[mBlock + mFill + i] = float(right[i]);
+        }
+        memcpy(left, mOutputL + mFill, chunk * sizeof(int32_t));
+        memcpy(right, mOutputR + mFill, chunk * sizeof(int32_t));
+
+        mFill += chunk;
+        if (mFill == mBlock) {
+            processBlock();
+            mFill = 0;
+        }
+
+        left += chunk;
+        right += chunk;
+        frames -= chunk;
+    }
+}
+
+static int32_t toSample(float value)
+{
+    if (value > 2147483520.0f) {
+        return 0x7fffffff;
+    }
+    if (value < -2147483520.0f) {
+        return -0x7fffffff;
+    }
+    return int32_t(value);
+}
+
+void Convolver::processBlock()
+{
+    /* Overlap-save: transform the last two blocks of packed input. */
+    memcpy(mWorkRe, mHistoryL, mSize * sizeof(float));
+    memcpy(mWorkIm, mHistoryR, mSize * sizeof(float));
+    mFFT.transform(mWorkRe, mWorkIm, false);
+
+    mHead = mHead == 0 ? mPartitions - 1 : mHead - 1;
+    memcpy(mSpectrumRe + mHead * mSize, mWorkRe, mSize * sizeof(float));
+    memcpy(mSpectrumIm + mHead * mSize, mWorkIm, mSize * sizeof(float));
+
+    memset(mAccumulatorRe, 0, mSize * sizeof(float));
+    memset(mAccumulatorIm, 0, mSize * sizeof(float));
+    int32_t mask = mSize - 1;
+    int32_t slot = mHead;
+    for (int32_t p = 0; p < mPartitions; p ++) {
+        const float *xRe = mSpectrumRe + slot * mSize;
+        const float *xIm = mSpectrumIm + slot * mSize;
+        const float *dRe = mDirectRe + p * mSize;
+        const float *dIm = mDirectIm + p * mSize;
+        const float *mRe = mMirrorRe + p * mSize;
+        const float *mIm = mMirrorIm + p * mSize;
+        for (int32_t k = 0; k < mSize; k ++) {
+            /* conj(X[-k]) */
+            float cRe = xRe[(mSize - k) & mask];
+            float cIm = -xIm[(mSize - k) & mask];
+            mAccumulatorRe[k] += xRe[k] * dRe[k] - xIm[k] * dIm[k]
+                + cRe * mRe[k] - cIm * mIm[k];
+            mAccumulatorIm[k] += xRe[k] * dIm[k] + xIm[k] * dRe[k]
+                + cRe * mIm[k] + cIm * mRe[k];
+        }
+        slot = slot == mPartitions - 1 ? 0 : slot + 1;
+    }
+
+    mFFT.transform(mAccumulatorRe, mAccumulatorIm, true);
+
+    /* The second half is free of circular wraparound. */
+    for (int32_t i = 0; i < mBlock; i ++) {
+        mOutputL[i] = toSample(mAccumulatorRe[mBlock + i]);
+        mOutputR[i] = toSample(mAccumulatorIm[mBlock + i]);
+    }
+
+    memcpy(mHistoryL, mHistoryL + mBlock, mBlock * sizeof(float));
+    memcpy(mHistoryR, mHistoryR + mBlock, mBlock * sizeof(float));
+}
@@ -0,0 +1,49 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "FFT.h"
+
+/* Block length of the partitions; also the latency of the convolver. */
+#define CONVOLVER_BLOCK_FRAMES 256
+
+/* Uniformly partitioned overlap-save convolution of a stereo signal with a
+ * four-path impulse response set (left to left, left to right, right to
+ * left, right to right).
+ *
+ * The stereo input is packed as one complex signal L + iR, so each block
+ * costs a single forward and inverse FFT regardless of the response set.
+ * The four real responses are folded into two complex filters per partition
+ * which are applied to the packed spectrum and its mirrored conjugate. */
+class Convolver {
+    FFT mFFT;
+    int32_t mBlock;
+    int32_t mSize;
+    int32_t mPartitions;
+
+    /* Filter spectra for X[k] and conj(X[-k]), mPartitions * mSize each */
+    float *mDirectRe, *mDirectIm;
+    float *mMirrorRe, *mMirrorIm;
+
+    /* Spectra of the most recent input blocks; mHead is the newest. */
+    float *mSpectrumRe, *mSpectrumIm;
+    int32_t mHead;
+
+    /* Previous and current input block, and the work area */
+    float *mHistoryL, *mHistoryR;
+    float *mWorkRe, *mWorkIm;
+    float *mAccumulatorRe, *mAccumulatorIm;
+
+    /* Output of the last block, played while the next one fills */
+    int32_t *mOutputL, *mOutputR;
+    int32_t mFill;
+
+    void processBlock();
+
+    public:
+    Convolver(const float *const responses[4], int32_t length, int32_t block);
+    ~Convolver();
+
+    /* Replaces both channels with their convolution, delayed by one block. */
+    void process(int32_t *left, int32_t *right, int32_t frames);
+};
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "Decibels.h"
+
+/* log2(1 + i / 64) and 2 ^ (i / 64), with a guard entry for interpolation */
+#define TABLE_BITS 6
+#define TABLE_SIZE (1 << TABLE_BITS)
+
+static const float LOG2_TABLE[TABLE_SIZE + 1] = {
+    0.000000000f, 0.022367813f, 0.044394119f, 0.066089190f,
+    0.087462841f, 0.108524457f, 0.129283017f, 0.149747120f,
+    0.169925001f, 0.189824559f, 0.209453366f, 0.228818690f,
+    0.247927513f, 0.266786541f, 0.285402219f, 0.303780748f,
+    0.321928095f, 0.339850003f, 0.357552005f, 0.375039431f,
+    0.392317423f, 0.409390936f, 0.426264755f, 0.442943496f,
+    0.459431619f, 0.475733431f, 0.491853096f, 0.507794640f,
+    0.523561956f, 0.539158811f, 0.554588852f, 0.569855608f,
+    0.584962501f, 0.599912842f, 0.614709844f, 0.629356620f,
+    0.643856190f, 0.658211483f, 0.672425342f, 0.686500527f,
+    0.700439718f, 0.714245518f, 0.727920455f, 0.741466986f,
+    0.754887502f, 0.768184325f, 0.781359714f, 0.794415866f,
+    0.807354922f, 0.820178962f, 0.832890014f, 0.845490051f,
+    0.857980995f, 0.870364720f, 0.882643049f, 0.894817763f,
+    0.906890596f, 0.918863237f, 0.930737338f, 0.942514505f,
+    0.954196310f, 0.965784285f, 0.977279923f, 0.988684687f,
+    1.000000000f,
+};
+
+static const float EXP2_TABLE[TABLE_SIZE + 1] = {
+    1.000000000f, 1.010889286f, 1.021897149f, 1.033024879f,
+    1.044273782f, 1.055645178f, 1.067140401f, 1.078760798f,
+    1.090507733f, 1.102382583f, 1.114386743f, 1.126521619f,
+    1.138788635f, 1.151189230f, 1.163724859f, 1.176396992f,
+    1.189207115f, 1.202156731f, 1.215247360f, 1.228480536f,
+    1.241857812f, 1.255380757f, 1.269050957f, 1.282870016f,
+    1.296839555f, 1.310961212f, 1.325236643f, 1.339667524f,
+    1.354255547f, 1.369002423f, 1.383909882f, 1.398979673f,
+    1.414213562f, 1.429613338f, 1.445180807f, 1.460917794f,
+    1.476826146f, 1.492907728f, 1.509164428f, 1.525598151f,
+    1.542210825f, 1.559004400f, 1.575980845f, 1.593142151f,
+    1.610490332f, 1.628027422f, 1.645755478f, 1.663676580f,
+    1.681792831f, 1.700106354f, 1.718619298f, 1.737333835f,
+    1.756252160f, 1.775376493f, 1.794709075f, 1.814252176f,
+    1.834008086f, 1.853979125f, 1.874167634f, 1.894575982f,
+    1.915206561f, 1.936061793f, 1.957144124f, 1.978456026f,
+    2.000000000f,
+};
+
+typedef union {
+    float f;
+    uint32_t i;
+} float_bits_t;
+
+/* Exponent from the IEEE representation, mantissa from the table. */
+float Decibels::log2(float x)
+{
+    if (! (x > 1e-30f)) {
+        x = 1e-30f;
+    }
+    float_bits_t bits;
+    bits.f = x;
+    int32_t exponent = int32_t((bits.i >> 23) & 0xff) - 127;
+    uint32_t mantissa = bits.i & 0x7fffff;
+    uint32_t index = mantissa >> (23 - TABLE_BITS);
+    float fraction = (mantissa & ((1 << (23 - TABLE_BITS)) - 1)) * (1.0f / (1 << (23 - TABLE_BITS)));
+    return exponent + LOG2_TABLE[index] + (LOG2_TABLE[index + 1] - LOG2_TABLE[index]) * fraction;
+}
+
+float Decibels::exp2(float x)
+{
+    if (x > 126.0f) {
+        x = 126.0f;
+    }
+    if (x < -126.0f) {
+        return 0.0f;
+    }
+    int32_t whole = int32_t(x + 127.0f) - 127;
+    float scaled = (x - whole) * TABLE_SIZE;
+    int32_t index = int32_t(scaled);
+    float fraction = scaled - index;
+    float_bits_t bits;
+    bits.i = uint32_t(whole + 127) << 23;
+    return bits.f * (EXP2_TABLE[index] + (EXP2_TABLE[index + 1] - EXP2_TABLE[index]) * fraction);
+}
+
+float Decibels::fromPower(float power)
+{
+    /* 10 log10(2) */
+    return log2(power) * 3.010299957f;
+}
+
+float Decibels::toAmplitude(float dB)
+{
+    /* log2(10) / 20 */
+    return exp2(dB * 0.166096405f);
+}
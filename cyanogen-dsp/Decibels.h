@@ -0,0 +1,16 @@
+#pragma once
+
+#include <stdint.h>
+
+/* Table-driven conversions between linear and logarithmic scales for use on
+ * the audio thread, accurate to better than 0.001 dB. */
+class Decibels {
+    public:
+    static float log2(float x);
+    static float exp2(float x);
+
+    /* 10 log10(power), for power relative to full scale. */
+    static float fromPower(float power);
+    /* 10 ^ (dB / 20) */
+    static float toAmplitude(float dB);
+};
@@ -18,34 +18,100 @@
 
 #include <string.h>
 
-Delay::Delay()
-    : mState(0), mIndex(0), mLength(0)
+static int32_t min(int32_t a, int32_t b)
 {
+    return a < b ? a : b;
 }
 
-Delay::~Delay()
+Delay::Delay(float maximumTime)
+    : mIndex(0), mLength(1)
 {
-    if (mState != 0) {
-        delete[] mState;
-        mState = 0;
+    int32_t maximumLength = int32_t(maximumTime * DELAY_MAXIMUM_SAMPLING_RATE + 0.5f);
+    int32_t capacity = 1;
+    while (capacity < maximumLength) {
+        capacity <<= 1;
     }
+    mMask = capacity - 1;
+    mState = new int32_t[capacity];
+    memset(mState, 0, capacity * sizeof(int32_t));
 }
 
+Delay::~Delay()
+{
+    delete[] mState;
+}
+
+/* Never reallocates; delays longer than the capacity are truncated. */
 void Delay::setParameters(float samplingFrequency, float time)
 {
     mLength = int32_t(time * samplingFrequency + 0.5f);
-    if (mState != 0) {
-        delete[] mState;
+    if (mLength > mMask + 1) {
+        mLength = mMask + 1;
+    }
+    if (mLength < 1) {
+        mLength = 1;
     }
-    mState = new int32_t[mLength];
-    memset(mState, 0, mLength * sizeof(int32_t));
+    memset(mState, 0, (mMask + 1) * sizeof(int32_t));
     mIndex = 0;
 }
 
+int32_t Delay::getLength() const
+{
+    return mLength;
+}
+
 int32_t Delay::process(int32_t x0)
 {
-    int32_t y0 = mState[mIndex];
+    int32_t y0 = mState[(mIndex - mLength) & mMask];
     mState[mIndex] = x0;
-    mIndex = (mIndex + 1) % mLength;
+    mIndex = (mIndex + 1) & mMask;
     return y0;
 }
+
+/* Copy a run that may wrap around the end of the ring. */
+void Delay::copyOut(int32_t *out, int32_t position, int32_t frames) const
+{
+    position &= mMask;
+    int32_t first = min(frames, mMask + 1 - position);
+    memcpy(out, &mState[position], first * sizeof(int32_t));
+    memcpy(out + first, &mState[0], (frames - first) * sizeof(int32_t));
+}
+
+void Delay::copyIn(const int32_t *in, int32_t frames)
+{
+    int32_t first = min(frames, mMask + 1 - mIndex);
+    memcpy(&mState[mIndex], in, first * sizeof(int32_t));
+    memcpy(&mState[0], in + first, (frames - first) * sizeof(int32_t));
+    mIndex = (mIndex + frames) & mMask;
+}
+
+void Delay::read(int32_t *out, int32_t frames) const
+{
+    copyOut(out, mIndex - mLength, frames);
+}
+
+void Delay::write(const int32_t *in, int32_t frames)
+{
+    copyIn(in, frames);
+}
+
+void Delay::process(const int32_t *in, int32_t *out, int32_t frames)
+{
+    while (frames > 0) {
+        int32_t chunk = min(frames, mLength);
+        read(out, chunk);
+        write(in, chunk);
+        in += chunk;
+        out += chunk;
+        frames -= chunk;
+    }
+}
+
+int32_t Delay::tap(int32_t delay) const
+{
+    int32_t whole = delay >> 16;
+    int32_t fraction = delay & 0xffff;
+    int32_t a = mState[(mIndex - whole) & mMask];
+    int32_t b = mState[(mIndex - whole - 1) & mMask];
+    return a + int32_t(int64_t(b - a) * fraction >> 16);
+}
@@ -2,14 +2,36 @@
 
 #include <stdint.h>
 
+/* Delay lines are sized for this rate when constructed. */
+#define DELAY_MAXIMUM_SAMPLING_RATE 96000
+
 class Delay {
     int32_t* mState;
+    /* Capacity - 1; capacity is a power of two. */
+    int32_t mMask;
+    /* Position of the next write */
     int32_t mIndex;
     int32_t mLength;
 
+    void copyOut(int32_t *out, int32_t position, int32_t frames) const;
+    void copyIn(const int32_t *in, int32_t frames);
+
     public:
-    Delay();
+    Delay(float maximumTime);
     ~Delay();
     void setParameters(float rate, float time);
+    int32_t getLength() const;
+
     int32_t process(int32_t x0);
+
+    /* Block interface: read() the next frames of delayed signal, then write()
+     * as many new ones. Chunks must not be longer than the delay. */
+    void read(int32_t *out, int32_t frames) const;
+    void write(const int32_t *in, int32_t frames);
+    /* Delays a whole buffer of any length. in and out must not overlap. */
+    void process(const int32_t *in, int32_t *out, int32_t frames);
+
+    /* Linearly interpolated sample from 16.16 frames before the next write,
+     * for 1.0 up to the capacity less one frame. */
+    int32_t tap(int32_t delay) const;
 };
@@ -17,16 +17,390 @@
 #define LOG_TAG "DSP-Effect"
 
 #include <cutils/log.h>
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
 #include "Effect.h"
 
+#ifdef __ARM_NEON__
+#include <arm_neon.h>
+#endif
+
+/* Clock rate used to turn measured time into cycles. */
+static int32_t sCpuKHz;
+
+static int32_t readCpuKHz() {
+    int32_t khz = 0;
+    FILE *f = fopen("/sys/devices/system/cpu/cpu0/cpufreq/cpuinfo_max_freq", "r");
+    if (f != NULL) {
+        if (fscanf(f, "%d", &khz) != 1) {
+            khz = 0;
+        }
+        fclose(f);
+    }
+    if (khz <= 0) {
+        LOGW("CPU frequency unknown, assuming 1 GHz");
+        khz = 1000000;
+    }
+    return khz;
+}
+
+static uint32_t min(uint32_t a, uint32_t b)
+{
+    return a < b ? a : b;
+}
+
+/* Equal-power gain for a fade position, 8.24 */
+static int32_t fadeGain(float position)
+{
+    return int32_t(sinf(position * float(M_PI / 2.0) / FADE_UNITY) * (1 << 24));
+}
+
+/* Converts the frames a vector loop covers, returning how many it did. */
+template <int32_t CHANNELS>
+static uint32_t deinterleaveVector(const int16_t *in, uint32_t frames, int32_t *const planes[])
+{
+    return 0;
+}
+
+#ifdef __ARM_NEON__
+/* Widen four 16-bit samples to 8.24. */
+static inline void store4(int32_t *out, int16x4_t x)
+{
+    vst1q_s32(out, vshll_n_s16(x, 8));
+}
+
+template <>
+uint32_t deinterleaveVector<1>(const int16_t *in, uint32_t frames, int32_t *const planes[])
+{
+    uint32_t i = 0;
+    for (; i + 8 <= frames; i += 8) {
+        int16x8_t x = vld1q_s16(in + i);
+        store4(planes[0] + i, vget_low_s16(x));
+        store4(planes[0] + i + 4, vget_high_s16(x));
+    }
+    return i;
+}
+
+template <>
+uint32_t deinterleaveVector<2>(const int16_t *in, uint32_t frames, int32_t *const planes[])
+{
+    uint32_t i = 0;
+    for (; i + 8 <= frames; i += 8) {
+        int16x8x2_t x = vld2q_s16(in + i * 2);
+        for (int32_t c = 0; c < 2; c ++) {
+            store4(planes[c] + i, vget_low_s16(x.val[c]));
+            store4(planes[c] + i + 4, vget_high_s16(x.val[c]));
+        }
+    }
+    return i;
+}
+
+/* vld3 of four 5.1 frames leaves channels c and c + 3 alternating in
+ * vector c, and an unzip separates them. vld4 does the same for 7.1. */
+template <>
+uint32_t deinterleaveVector<6>(const int16_t *in, uint32_t frames, int32_t *const planes[])
+{
+    uint32_t i = 0;
+    for (; i + 4 <= frames; i += 4) {
+        int16x8x3_t x = vld3q_s16(in + i * 6);
+        for (int32_t c = 0; c < 3; c ++) {
+            int16x4x2_t pair = vuzp_s16(vget_low_s16(x.val[c]), vget_high_s16(x.val[c]));
+            store4(planes[c] + i, pair.val[0]);
+            store4(planes[c + 3] + i, pair.val[1]);
+        }
+    }
+    return i;
+}
+
+template <>
+uint32_t deinterleaveVector<8>(const int16_t *in, uint32_t frames, int32_t *const planes[])
+{
+    uint32_t i = 0;
+    for (; i + 4 <= frames; i += 4) {
+        int16x8x4_t x = vld4q_s16(in + i * 8);
+        for (int32_t c = 0; c < 4; c ++) {
+            int16x4x2_t pair = vuzp_s16(vget_low_s16(x.val[c]), vget_high_s16(x.val[c]));
+            store4(planes[c] + i, pair.val[0]);
+            store4(planes[c + 4] + i, pair.val[1]);
+        }
+    }
+    return i;
+}
+#endif
+
+template <int32_t CHANNELS>
+static void deinterleave(const int16_t *in, uint32_t frames, int32_t *const planes[])
+{
+    for (uint32_t i = deinterleaveVector<CHANNELS>(in, frames, planes); i < frames; i ++) {
+        for (int32_t c = 0; c < CHANNELS; c ++) {
+            planes[c][i] = in[i * CHANNELS + c] << 8;
+        }
+    }
+}
+
 Effect::Effect()
-    : mSamplingRate(44100)
+    : mCapture(NULL), mEnable(false), mBypass(false), mSamplingRate(44100), mChannels(2), mFadePosition(0), mFadeBlocks(DEFAULT_FADE_BLOCKS),
+      mLimiterCeiling(0), mLimiterActiveCeiling(0)
 {
+    memset(&mStatistics, 0, sizeof(mStatistics));
+    if (sCpuKHz == 0) {
+        sCpuKHz = readCpuKHz();
+    }
 }
 
 Effect::~Effect() {
 }
 
+void Effect::accountProcess(uint32_t frames, int64_t time)
+{
+    mStatistics.buffers ++;
+    mStatistics.frames += frames;
+    mStatistics.totalTime += time;
+    if (time > mStatistics.maxBufferTime) {
+        mStatistics.maxBufferTime = int32_t(time);
+    }
+
+    if (frames != 0) {
+        /* ns * kHz / 1e6 = cycles; keep 8 fractional bits */
+        int32_t cycles = int32_t(time * sCpuKHz / 1000000 * 256 / frames);
+        /* Average over roughly the last 16 buffers. */
+        mStatistics.cyclesPerFrame += (cycles - mStatistics.cyclesPerFrame) >> 4;
+    }
+}
+
+uint16_t Effect::getCpuLoad()
+{
+    int64_t cyclesPerSecond = int64_t(mStatistics.cyclesPerFrame) * int64_t(mSamplingRate) >> 8;
+    int64_t load = cyclesPerSecond / 100000;
+    return load > 0xffff ? 0xffff : uint16_t(load);
+}
+
+int32_t Effect::process(audio_buffer_t *in, audio_buffer_t *out)
+{
+    /* A bypassed effect fades out like a disabled one, but stays in the
+     * chain to limit the dry signal. */
+    bool enable = mEnable;
+    bool wet = enable && ! mBypass;
+    int32_t ceiling = mLimiterCeiling;
+    if (ceiling != mLimiterActiveCeiling) {
+        if (mLimiterActiveCeiling == 0) {
+            mLimiter.reset();
+        }
+        mLimiter.setCeiling(ceiling);
+        mLimiterActiveCeiling = ceiling;
+    }
+
+    if (wet && mFadePosition == FADE_UNITY && ceiling == 0) {
+        return processBlock(in, out);
+    }
+    if (! wet && mFadePosition == 0) {
+        /* Insert effects run in place, so the buffer already holds
+         * the dry signal. */
+        if (! enable) {
+            return -ENODATA;
+        }
+        if (ceiling != 0) {
+            processChunks(in, out, 0, 0);
+        }
+        return 0;
+    }
+
+    if (wet && mFadePosition == 0) {
+        resetState();
+    }
+
+    int32_t blocks = mFadeBlocks;
+    int32_t step = blocks > 0 ? FADE_UNITY / blocks : FADE_UNITY;
+    int32_t from = mFadePosition;
+    int32_t to = wet ? from + step : from - step;
+    if (to > FADE_UNITY) {
+        to = FADE_UNITY;
+    }
+    if (to < 0) {
+        to = 0;
+    }
+
+    processChunks(in, out, from, to);
+    mFadePosition = to;
+    return 0;
+}
+
+/* Run processBlock() into our scratch buffer, mix it with the input while
+ * moving from one fade position to the other, and limit the result. Sine and
+ * cosine gains keep the power constant while the two signals are
+ * uncorrelated. The input gets the level the effect would play it at
+ * itself, which for volume-controlling effects is the user's volume. The limiter works on the 8.24 mix, before write() clips it. */
+void Effect::processChunks(audio_buffer_t *in, audio_buffer_t *out, int32_t from, int32_t to)
+{
+    uint32_t frameCount = in->frameCount;
+    bool fading = from != FADE_UNITY || to != FADE_UNITY;
+
+    for (uint32_t offset = 0; offset < frameCount; offset += FADE_CHUNK_FRAMES) {
+        uint32_t frames = min(frameCount - offset, FADE_CHUNK_FRAMES);
+
+        audio_buffer_t dry;
+        dry.frameCount = frames;
+        dry.s16 = in->s16 + offset * mChannels;
+        audio_buffer_t mixed;
+        mixed.frameCount = frames;
+        mixed.s16 = out->s16 + offset * mChannels;
+
+        if (from == 0 && to == 0) {
+            /* Bypassed: only the dry signal goes to the limiter. */
+            memset(mWet, 0, frames * mChannels * sizeof(int32_t));
+        } else {
+            mCapture = mWet;
+            processBlock(&dry, &mixed);
+            mCapture = NULL;
+        }
+
+        if (fading) {
+            int32_t dryLevel[EFFECT_MAXIMUM_CHANNELS];
+            for (int32_t c = 0; c < mChannels; c ++) {
+                dryLevel[c] = getDryLevel(c);
+            }
+
+            float start = from + float(to - from) * offset / frameCount;
+            float end = from + float(to - from) * (offset + frames) / frameCount;
+            int32_t wetGain = fadeGain(start);
+            int32_t dryGain = fadeGain(FADE_UNITY - start);
+            int32_t wetStep = (fadeGain(end) - wetGain) / int32_t(frames);
+            int32_t dryStep = (fadeGain(FADE_UNITY - end) - dryGain) / int32_t(frames);
+
+            for (uint32_t i = 0; i < frames; i ++) {
+                for (int32_t c = 0; c < mChannels; c ++) {
+                    int32_t idx = i * mChannels + c;
+                    int32_t drySample = int64_t(read(&dry, idx)) * dryLevel[c] >> 24;
+                    int64_t sample = int64_t(mWet[idx]) * wetGain
+                        + int64_t(drySample) * dryGain;
+                    mWet[idx] = int32_t(sample >> 24);
+                }
+                wetGain += wetStep;
+                dryGain += dryStep;
+            }
+        }
+
+        if (mLimiterActiveCeiling != 0) {
+            mLimiter.process(mWet, frames);
+        }
+
+        for (uint32_t i = 0; i < frames * mChannels; i ++) {
+            write(&mixed, i, mWet[i]);
+        }
+    }
+}
+
+void Effect::readPlanar(audio_buffer_t *in, uint32_t offset, uint32_t frames, int32_t *const planes[])
+{
+    const int16_t *samples = in->s16 + offset * mChannels;
+    switch (mChannels) {
+    case 1:
+        deinterleave<1>(samples, frames, planes);
+        break;
+    case 2:
+        deinterleave<2>(samples, frames, planes);
+        break;
+    case 6:
+        deinterleave<6>(samples, frames, planes);
+        break;
+    case 8:
+        deinterleave<8>(samples, frames, planes);
+        break;
+    default:
+        for (uint32_t i = 0; i < frames; i ++) {
+            for (int32_t c = 0; c < mChannels; c ++) {
+                planes[c][i] = samples[i * mChannels + c] << 8;
+            }
+        }
+        break;
+    }
+}
+
+/* Dither and clipping are per sample, so this side stays scalar. The
+ * fixed channel counts let the compiler unroll the inner loop, and the
+ * write() mode checks are made once rather than for every sample. */
+template <int32_t CHANNELS>
+void Effect::interleave(audio_buffer_t *out, uint32_t offset, uint32_t frames, int32_t *const planes[])
+{
+    /* The dither state is stored in bytes, which may alias anything; keep
+     * the pointers where the compiler can see they do not change. */
+    const int32_t *samples[CHANNELS];
+    for (int32_t c = 0; c < CHANNELS; c ++) {
+        samples[c] = planes[c];
+    }
+
+    if (mCapture != NULL) {
+        int32_t *capture = mCapture + offset * CHANNELS;
+        for (uint32_t i = 0; i < frames; i ++) {
+            for (int32_t c = 0; c < CHANNELS; c ++) {
+                capture[i * CHANNELS + c] = samples[c][i];
+            }
+        }
+        return;
+    }
+
+    int16_t *pcm = out->s16 + offset * CHANNELS;
+    if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+        for (uint32_t i = 0; i < frames; i ++) {
+            for (int32_t c = 0; c < CHANNELS; c ++) {
+                pcm[i * CHANNELS + c] = toPcm(samples[c][i] + (pcm[i * CHANNELS + c] << 8));
+            }
+        }
+        return;
+    }
+
+    for (uint32_t i = 0; i < frames; i ++) {
+        for (int32_t c = 0; c < CHANNELS; c ++) {
+            pcm[i * CHANNELS + c] = toPcm(samples[c][i]);
+        }
+    }
+}
+
+void Effect::writePlanar(audio_buffer_t *out, uint32_t offset, uint32_t frames, int32_t *const planes[])
+{
+    switch (mChannels) {
+    case 1:
+        interleave<1>(out, offset, frames, planes);
+        break;
+    case 2:
+        interleave<2>(out, offset, frames, planes);
+        break;
+    case 6:
+        interleave<6>(out, offset, frames, planes);
+        break;
+    case 8:
+        interleave<8>(out, offset, frames, planes);
+        break;
+    default:
+        for (uint32_t i = 0; i < frames; i ++) {
+            for (int32_t c = 0; c < mChannels; c ++) {
+                write(out, (offset + i) * mChannels + c, planes[c][i]);
+            }
+        }
+        break;
+    }
+}
+
+const LoudnessMeter *Effect::getLoudnessMeter() const
+{
+    return NULL;
+}
+
+float Effect::getGain() const
+{
+    return 0.0f;
+}
+
+int32_t Effect::getDryLevel(int32_t channel) const
+{
+    return 1 << 24;
+}
+
+void Effect::resetState()
+{
+}
+
 /* Configure a bunch of general parameters. */
 int32_t Effect::configure(void* pCmdData) {
     effect_config_t *cfg = (effect_config_t *) pCmdData;
@@ -44,14 +418,16 @@ int32_t Effect::configure(void* pCmdData) {
     }
 
     if (in.mask & EFFECT_CONFIG_CHANNELS && out.mask & EFFECT_CONFIG_CHANNELS) {
-	if (in.channels != AUDIO_CHANNEL_OUT_STEREO) {
-	    LOGE("Invalid input channel setup: 0x%x", in.channels);
+	if (out.channels != in.channels) {
+	    LOGE("This effect is not capable of remixing 0x%x to 0x%x", in.channels, out.channels);
 	    return -EINVAL;
 	}
-	if (out.channels != AUDIO_CHANNEL_OUT_STEREO) {
-	    LOGE("Invalid output channel setup: 0x%x", in.channels);
+	int32_t channels = popcount(in.channels);
+	if (channels < 1 || channels > EFFECT_MAXIMUM_CHANNELS) {
+	    LOGE("Invalid channel setup: 0x%x", in.channels);
 	    return -EINVAL;
 	}
+	mChannels = channels;
     }
 
     if (in.mask & EFFECT_CONFIG_FORMAT) {
@@ -68,6 +444,7 @@ int32_t Effect::configure(void* pCmdData) {
 	mAccessMode = (effect_buffer_access_e) out.accessMode;
     }
 
+    mLimiter.configure(mSamplingRate, mChannels);
     return 0;
 }
 
@@ -82,9 +459,46 @@ int32_t Effect::command(uint32_t cmdCode, uint32_t cmdSize, void *pCmdData, uint
 	break;
     }
 
+    case EFFECT_CMD_SET_PARAM: {
+	effect_param_t *cep = (effect_param_t *) pCmdData;
+	int32_t *replyData = (int32_t *) pReplyData;
+	if (cep->psize == 4 && cep->vsize == 2 && ((int32_t *) cep)[3] == CUSTOM_PARAM_FADE_BLOCKS) {
+	    int16_t value = ((int16_t *) cep)[8];
+	    if (value < 0) {
+		*replyData = -EINVAL;
+		break;
+	    }
+	    LOGI("Fading over %d blocks", value);
+	    mFadeBlocks = value;
+	    *replyData = 0;
+	    break;
+	}
+	if (cep->psize == 4 && cep->vsize == 2 && ((int32_t *) cep)[3] == CUSTOM_PARAM_BYPASS) {
+	    mBypass = ((int16_t *) cep)[8] != 0;
+	    LOGI("Bypass %s", mBypass ? "on" : "off");
+	    *replyData = 0;
+	    break;
+	}
+	if (cep->psize == 4 && cep->vsize == 2 && ((int32_t *) cep)[3] == CUSTOM_PARAM_LIMITER) {
+	    int16_t value = ((int16_t *) cep)[8];
+	    if (value > 0) {
+		LOGI("Limiter off");
+		mLimiterCeiling = 0;
+	    } else {
+		LOGI("Limiting to %.2f dB", value / 100.0f);
+		mLimiterCeiling = int32_t(powf(10.0f, value / 2000.0f) * (1 << 24));
+	    }
+	    *replyData = 0;
+	    break;
+	}
+
+	LOGE("Unknown SET_PARAM of %d, %d bytes", cep->psize, cep->vsize);
+	*replyData = -EINVAL;
+	break;
+    }
+
     case EFFECT_CMD_INIT:
     case EFFECT_CMD_CONFIGURE:
-    case EFFECT_CMD_SET_PARAM:
     case EFFECT_CMD_SET_PARAM_COMMIT: {
 	int32_t *replyData = (int32_t *) pReplyData;
 	*replyData = 0;
@@ -98,11 +512,57 @@ int32_t Effect::command(uint32_t cmdCode, uint32_t cmdSize, void *pCmdData, uint
 	break;
 
     case EFFECT_CMD_GET_PARAM: {
+	effect_param_t *cep = (effect_param_t *) pCmdData;
 	effect_param_t *rep = (effect_param_t *) pReplyData;
+	if (cep->psize == 4 && ((int32_t *) cep)[3] == CUSTOM_PARAM_STATISTICS) {
+	    rep->status = 0;
+	    rep->psize = 4;
+	    rep->vsize = sizeof(effect_statistics_t);
+	    ((int32_t *) rep)[3] = CUSTOM_PARAM_STATISTICS;
+	    memcpy(((int32_t *) rep) + 4, &mStatistics, sizeof(effect_statistics_t));
+	    *replySize = 16 + sizeof(effect_statistics_t);
+	    break;
+	}
+	const LoudnessMeter *meter = getLoudnessMeter();
+	if (cep->psize == 4 && ((int32_t *) cep)[3] == CUSTOM_PARAM_LOUDNESS && meter != NULL) {
+	    effect_loudness_t loudness;
+	    loudness.momentary = int32_t(meter->getMomentary() * 100.0f);
+	    loudness.shortTerm = int32_t(meter->getShortTerm() * 100.0f);
+	    loudness.integrated = int32_t(meter->getIntegrated() * 100.0f);
+	    rep->status = 0;
+	    rep->psize = 4;
+	    rep->vsize = sizeof(effect_loudness_t);
+	    ((int32_t *) rep)[3] = CUSTOM_PARAM_LOUDNESS;
+	    memcpy(((int32_t *) rep) + 4, &loudness, sizeof(effect_loudness_t));
+	    *replySize = 16 + sizeof(effect_loudness_t);
+	    break;
+	}
+
+	/* Fields are written by the audio thread; each is read once, and a
+	 * meter does not need them to be from the same buffer. */
+	if (cep->psize == 4 && ((int32_t *) cep)[3] == CUSTOM_PARAM_METERS) {
+	    effect_meters_t meters;
+	    float loudness = meter != NULL ? meter->getMomentary() : LOUDNESS_SILENCE;
+	    meters.loudness = int32_t(loudness * 100.0f);
+	    meters.gain = int32_t(getGain() * 100.0f);
+	    meters.limiter = 0;
+	    if (mLimiterActiveCeiling != 0) {
+		meters.limiter = int32_t(2000.0f * log10f(mLimiter.getGain() / float(1 << 24)));
+	    }
+	    meters.fade = mFadePosition;
+	    rep->status = 0;
+	    rep->psize = 4;
+	    rep->vsize = sizeof(effect_meters_t);
+	    ((int32_t *) rep)[3] = CUSTOM_PARAM_METERS;
+	    memcpy(((int32_t *) rep) + 4, &meters, sizeof(effect_meters_t));
+	    *replySize = 16 + sizeof(effect_meters_t);
+	    break;
+	}
+
+	LOGE("Unknown GET_PARAM of %d bytes", cep->psize);
 	rep->status = -EINVAL;
-	rep->psize = 0;
 	rep->vsize = 0;
-	*replySize = 12;
+	*replySize = sizeof(effect_param_t);
 	break;
     }
 
@@ -4,6 +4,63 @@
 #include <system/audio.h>
 #include <hardware/audio_effect.h>
 
+#include "Limiter.h"
+#include "LoudnessMeter.h"
+
+/* Widest channel layout accepted, 7.1. Mono, stereo, 5.1 and 7.1 get
+ * their own deinterleaving loops; other counts use a generic one. */
+#define EFFECT_MAXIMUM_CHANNELS 8
+
+/* Parameters understood by every effect in this library. */
+#define CUSTOM_PARAM_STATISTICS 2000
+/* int16: number of process() calls an enable or disable is spread over. */
+#define CUSTOM_PARAM_FADE_BLOCKS 2001
+/* int16: output ceiling of the limiter in millibels. Values above 0 turn the
+ * limiter off. */
+#define CUSTOM_PARAM_LIMITER 2002
+/* Readings of the effect's loudness meter, if it has one. */
+#define CUSTOM_PARAM_LOUDNESS 2003
+/* Snapshot for live meters in the app, cheap enough to poll all the time. */
+#define CUSTOM_PARAM_METERS 2004
+/* int16: non-zero crossfades the effect out while it stays enabled, so that
+ * its limiter keeps running on the dry signal. */
+#define CUSTOM_PARAM_BYPASS 2005
+
+#define DEFAULT_FADE_BLOCKS 32
+/* Ramps and the limiter are processed in chunks of this many frames. */
+#define FADE_CHUNK_FRAMES 256
+/* Fade position at full effect */
+#define FADE_UNITY (1 << 16)
+
+/* Value of CUSTOM_PARAM_STATISTICS. Times are in nanoseconds. */
+typedef struct {
+    int32_t buffers;
+    int32_t maxBufferTime;
+    int64_t frames;
+    int64_t totalTime;
+    /* Moving average of CPU cycles spent per frame, 24.8 fixed point */
+    int32_t cyclesPerFrame;
+} effect_statistics_t;
+
+/* Value of CUSTOM_PARAM_LOUDNESS, in hundredths of LUFS. */
+typedef struct {
+    int32_t momentary;
+    int32_t shortTerm;
+    int32_t integrated;
+} effect_loudness_t;
+
+/* Value of CUSTOM_PARAM_METERS, levels in hundredths of dB. */
+typedef struct {
+    /* Momentary loudness in LUFS; silence for effects without a meter */
+    int32_t loudness;
+    /* Gain the effect applies on its own account, such as the compressor's */
+    int32_t gain;
+    /* Gain of the limiter, 0 while it is off or idle */
+    int32_t limiter;
+    /* Enable/disable crossfade position, 0 .. FADE_UNITY */
+    int32_t fade;
+} effect_meters_t;
+
 static inline uint8_t prng() {
     static uint32_t seed;
     seed = seed * 1664525 + 1013904223;
@@ -13,10 +70,14 @@ static inline uint8_t prng() {
 class Effect {
     private:
     effect_buffer_access_e mAccessMode;
+    /* While set, write() stores 8.24 samples here instead of the output. */
+    int32_t *mCapture;
 
     protected:
     bool mEnable;
+    bool mBypass;
     float mSamplingRate;
+    int32_t mChannels;
     uint8_t mPreviousRandom;
 
     /* High-passed triangular probability density function.
@@ -33,11 +94,8 @@ class Effect {
         return in->s16[idx] << 8;
     }
 
-    /* AudioFlinger only expects 16-bit PCM for now. */
-    inline void write(audio_buffer_t *out, int32_t idx, int32_t sample) {
-        if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
-            sample += out->s16[idx] << 8;
-        }
+    /* Dither and clip an 8.24 sample to 16 bits. */
+    inline int16_t toPcm(int32_t sample) {
         sample = (sample + triangularDither8()) >> 8;
         if (sample > 32767) {
             sample = 32767;
@@ -45,14 +103,69 @@ class Effect {
         if (sample < -32768) {
             sample = -32768;
         }
-        out->s16[idx] = sample;
+        return sample;
+    }
+
+    /* AudioFlinger only expects 16-bit PCM for now. */
+    inline void write(audio_buffer_t *out, int32_t idx, int32_t sample) {
+        if (mCapture != NULL) {
+            mCapture[idx] = sample;
+            return;
+        }
+        if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+            sample += out->s16[idx] << 8;
+        }
+        out->s16[idx] = toPcm(sample);
     }
 
+    /* Convert frames starting at offset between the interleaved buffer and
+     * one 8.24 array per channel. writePlanar() goes through write(). */
+    void readPlanar(audio_buffer_t *in, uint32_t offset, uint32_t frames, int32_t *const planes[]);
+    void writePlanar(audio_buffer_t *out, uint32_t offset, uint32_t frames, int32_t *const planes[]);
+
     int32_t configure(void *pCmdData);
 
+    /* Effects that measure their input report it through GET_PARAM. */
+    virtual const LoudnessMeter *getLoudnessMeter() const;
+    /* Effects with automatic gain report it in dB for metering. */
+    virtual float getGain() const;
+    /* Level of channel, 8.24, that the dry side of a crossfade is played at.
+     * Effects that take over the stream volume with EFFECT_FLAG_VOLUME_CTRL
+     * get unity volume from AudioFlinger and must return the user's level. */
+    virtual int32_t getDryLevel(int32_t channel) const;
+    /* Called on the audio thread before fading in from full bypass, so that
+     * the effect starts from where the dry signal is. Not called when the
+     * effect is enabled again in the middle of fading out. */
+    virtual void resetState();
+
+    /* The effect proper. Only called while enabled or fading. */
+    virtual int32_t processBlock(audio_buffer_t *in, audio_buffer_t *out) = 0;
+
+    private:
+    effect_statistics_t mStatistics;
+
+    /* Enable/disable crossfade: 0 is bypass, FADE_UNITY full effect. */
+    int32_t mFadePosition;
+    int32_t mFadeBlocks;
+    int32_t mWet[FADE_CHUNK_FRAMES * EFFECT_MAXIMUM_CHANNELS];
+
+    /* Limiter ceiling in 8.24 as requested, and as last seen by process(). 0 is off. */
+    int32_t mLimiterCeiling;
+    int32_t mLimiterActiveCeiling;
+    Limiter mLimiter;
+
+    void processChunks(audio_buffer_t *in, audio_buffer_t *out, int32_t from, int32_t to);
+    template <int32_t CHANNELS>
+    void interleave(audio_buffer_t *out, uint32_t offset, uint32_t frames, int32_t *const planes[]);
+
     public:
     Effect();
     virtual ~Effect();
-    virtual int32_t process(audio_buffer_t *in, audio_buffer_t *out) = 0;
+    /* Called by the library after each process() with the time it took. */
+    void accountProcess(uint32_t frames, int64_t time);
+    /* Measured CPU load in 0.1 MIPS units, as used by effect_descriptor_t. */
+    uint16_t getCpuLoad();
+    /* Bypasses, crossfades, limits or runs processBlock() depending on state. */
+    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
     virtual int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData) = 0;
 };
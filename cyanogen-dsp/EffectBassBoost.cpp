@@ -19,6 +19,9 @@
 #include <cutils/log.h>
 #include "EffectBassBoost.h"
 
+#include <stdlib.h>
+#include <string.h>
+
 typedef struct {
     int32_t status;
     uint32_t psize;
@@ -36,11 +39,23 @@ typedef struct {
 } reply1x4_1x2_t;
 
 EffectBassBoost::EffectBassBoost()
-    : mStrength(0)
+    : mStrength(0), mBoostHandle(-1), mAppliedGeneration(0)
 {
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        mDryDelay[c] = new Delay(float(BASSBOOST_LATENCY) / DELAY_MAXIMUM_SAMPLING_RATE);
+    }
+    reset();
     refreshStrength();
 }
 
+EffectBassBoost::~EffectBassBoost()
+{
+    CoefficientStore::release(mBoostHandle);
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        delete mDryDelay[c];
+    }
+}
+
 int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
 {
     if (cmdCode == EFFECT_CMD_CONFIGURE) {
@@ -51,6 +66,9 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             return 0;
         }
 
+        reset();
+        refreshStrength();
+
         int32_t *replyData = (int32_t *) pReplyData;
         *replyData = 0;
         return 0;
@@ -78,12 +96,8 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             }
         }
 
-        LOGE("Unknown GET_PARAM of %d bytes", cep->psize);
-        effect_param_t *replyData = (effect_param_t *) pReplyData;
-        replyData->status = -EINVAL;
-        replyData->vsize = 0;
-        *replySize = sizeof(effect_param_t);
-        return 0;
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     if (cmdCode == EFFECT_CMD_SET_PARAM) {
@@ -100,47 +114,168 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             }
         }
 
-        LOGE("Unknown SET_PARAM of %d, %d bytes", cep->psize, cep->vsize);
-        int32_t *replyData = (int32_t *) pReplyData;
-        *replyData = -EINVAL;
-        return 0;
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
 }
 
+void EffectBassBoost::reset()
+{
+    for (int32_t i = 0; i < BASSBOOST_DECIMATION_STAGES; i ++) {
+        mDecimator[i] = HalfbandDecimator();
+        mInterpolator[i] = HalfbandInterpolator();
+    }
+    /* A frame's boost is ready by the end of its decimation period. */
+    memset(mQueue, 0, sizeof(mQueue));
+    mQueueRead = 0;
+    mQueueWrite = BASSBOOST_DECIMATION;
+    mLimiterGain = 1 << 24;
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        mDryDelay[c]->setParameters(DELAY_MAXIMUM_SAMPLING_RATE, float(BASSBOOST_LATENCY) / DELAY_MAXIMUM_SAMPLING_RATE);
+    }
+}
+
 void EffectBassBoost::refreshStrength()
 {
     /* Q = 0.5 .. 2.0 */
-    mBoost.setLowPass(0, 55.0f, mSamplingRate, 0.5f + mStrength / 666.0f);
+    BiquadKey key;
+    CoefficientStore::makeLowPass(key, mSamplingRate / BASSBOOST_DECIMATION, 55.0f, 0.5f + mStrength / 666.0f);
+    BassBoostParameters& p = mParameters.edit();
+    p.mGeneration ++;
+    int32_t old = mBoostHandle;
+    mBoostHandle = CoefficientStore::acquire(key, p.mBoost);
+    CoefficientStore::release(old);
+    mParameters.publish();
 }
 
-int32_t EffectBassBoost::process(audio_buffer_t* in, audio_buffer_t* out)
+/* Keep the boost from pushing the low band past full scale; the low band
+ * is half the mono sum, the level of one channel. Instant attack, about
+ * 100 ms release at the low rate. */
+int32_t EffectBassBoost::limit(int32_t boost, int32_t low)
 {
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        int32_t dryL = read(in, i * 2);
-        int32_t dryR = read(in, i * 2 + 1);
+    int32_t headroom = (1 << 24) - abs(low >> 1);
+    if (headroom < 0) {
+        headroom = 0;
+    }
+    int32_t magnitude = abs(boost);
+    if ((int64_t(magnitude) * mLimiterGain >> 24) > headroom) {
+        mLimiterGain = int32_t((int64_t(headroom) << 24) / magnitude);
+    } else {
+        mLimiterGain += ((1 << 24) - mLimiterGain) >> 8;
+    }
+    return int64_t(boost) * mLimiterGain >> 24;
+}
 
-        /* Original LVM effect was far more involved than this one.
-         * This effect is mostly a placeholder until I port that, or
-         * something else. LVM process diagram was as follows:
-         *
-         * in -> [ HPF ] -+-> [ mono mix ] -> [ BPF ] -> [ compressor ] -> out
-         *                `-->------------------------------>--'
-         *
-         * High-pass filter was optional, and seemed to be
-         * tuned at 55 Hz and upwards. BPF is probably always tuned
-         * at the same frequency, as this would make sense.
-         *
-         * Additionally, a compressor element was used to limit the
-         * mixing of the boost (only!) to avoid clipping.
-         */
-        int32_t boost = mBoost.process(dryL + dryR);
+/* Copy a run into or out of the queue, returning the new position. */
+static int32_t copyQueue(int32_t *queue, int32_t position, int32_t *data, int32_t frames, bool in)
+{
+    int32_t first = BASSBOOST_QUEUE_FRAMES - position;
+    if (first > frames) {
+        first = frames;
+    }
+    if (in) {
+        memcpy(&queue[position], data, first * sizeof(int32_t));
+        memcpy(&queue[0], data + first, (frames - first) * sizeof(int32_t));
+    } else {
+        memcpy(data, &queue[position], first * sizeof(int32_t));
+        memcpy(data + first, &queue[0], (frames - first) * sizeof(int32_t));
+    }
+    return (position + frames) & (BASSBOOST_QUEUE_FRAMES - 1);
+}
 
-        write(out, i * 2, dryL + boost);
-        write(out, i * 2 + 1, dryR + boost);
+/* Replaces the mono sum with its boost, BASSBOOST_LATENCY frames late. */
+void EffectBassBoost::processLowBand(int32_t *mono, int32_t frames)
+{
+    int32_t a[BASSBOOST_CHUNK_FRAMES], b[BASSBOOST_CHUNK_FRAMES];
+
+    int32_t count = mDecimator[0].process(mono, a, frames);
+    int32_t *src = a, *dst = b;
+    for (int32_t i = 1; i < BASSBOOST_DECIMATION_STAGES; i ++) {
+        count = mDecimator[i].process(src, dst, count);
+        int32_t *tmp = src;
+        src = dst;
+        dst = tmp;
+    }
+
+    for (int32_t i = 0; i < count; i ++) {
+        src[i] = limit(mBoost.process(src[i]), src[i]);
+    }
+
+    for (int32_t i = BASSBOOST_DECIMATION_STAGES - 1; i >= 0; i --) {
+        mInterpolator[i].process(src, dst, count);
+        count *= 2;
+        int32_t *tmp = src;
+        src = dst;
+        dst = tmp;
+    }
+
+    mQueueWrite = copyQueue(mQueue, mQueueWrite, src, count, true);
+    mQueueRead = copyQueue(mQueue, mQueueRead, mono, frames, false);
+}
+
+int32_t EffectBassBoost::processBlock(audio_buffer_t* in, audio_buffer_t* out)
+{
+    /* Glide to a new strength over this buffer. */
+    const BassBoostParameters& p = mParameters.acquire();
+    if (p.mGeneration != mAppliedGeneration) {
+        mBoost.setCoefficients(mAppliedGeneration != 0 ? in->frameCount / BASSBOOST_DECIMATION : 0, p.mBoost);
+        mAppliedGeneration = p.mGeneration;
     }
 
-    return mEnable ? 0 : -ENODATA;
+    /* Original LVM effect was far more involved than this one.
+     * This effect is mostly a placeholder until I port that, or
+     * something else. LVM process diagram was as follows:
+     *
+     * in -> [ HPF ] -+-> [ mono mix ] -> [ BPF ] -> [ compressor ] -> out
+     *                `-->------------------------------>--'
+     *
+     * High-pass filter was optional, and seemed to be
+     * tuned at 55 Hz and upwards. BPF is probably always tuned
+     * at the same frequency, as this would make sense.
+     *
+     * Additionally, a compressor element was used to limit the
+     * mixing of the boost (only!) to avoid clipping.
+     *
+     * Nothing above a few hundred Hz survives the boost filter, so it runs
+     * at a 16th of the rate along with the limiter.
+     */
+    int32_t buffer[EFFECT_MAXIMUM_CHANNELS][BASSBOOST_CHUNK_FRAMES];
+    int32_t *planes[EFFECT_MAXIMUM_CHANNELS];
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        planes[c] = buffer[c];
     }
+    int32_t delayed[BASSBOOST_CHUNK_FRAMES];
+    int32_t boost[BASSBOOST_CHUNK_FRAMES];
 
+    uint32_t frames;
+    for (uint32_t offset = 0; offset < in->frameCount; offset += frames) {
+        frames = in->frameCount - offset;
+        if (frames > BASSBOOST_CHUNK_FRAMES) {
+            frames = BASSBOOST_CHUNK_FRAMES;
+        }
+
+        readPlanar(in, offset, frames, planes);
+        /* A mono channel counts as both sides of the sum. */
+        for (uint32_t i = 0; i < frames; i ++) {
+            boost[i] = mChannels == 1 ? planes[0][i] << 1 : planes[0][i] + planes[1][i];
+        }
+        processLowBand(boost, frames);
+
+        for (int32_t c = 0; c < mChannels; c ++) {
+            mDryDelay[c]->process(planes[c], delayed, frames);
+            if (c < 2) {
+                for (uint32_t i = 0; i < frames; i ++) {
+                    planes[c][i] = delayed[i] + boost[i];
+                }
+            } else {
+                memcpy(planes[c], delayed, frames * sizeof(int32_t));
+            }
+        }
+
+        writePlanar(out, offset, frames, planes);
+    }
+
+    return 0;
+}
@@ -3,18 +3,56 @@
 #include <audio_effects/effect_bassboost.h>
 
 #include "Biquad.h"
+#include "CoefficientStore.h"
+#include "Delay.h"
 #include "Effect.h"
+#include "Halfband.h"
+#include "ParameterBlock.h"
+
+/* The boost is computed at 1/16 of the sampling rate. */
+#define BASSBOOST_DECIMATION_STAGES 4
+#define BASSBOOST_DECIMATION (1 << BASSBOOST_DECIMATION_STAGES)
+/* Delay through the decimators and interpolators, in frames */
+#define BASSBOOST_LATENCY 106
+#define BASSBOOST_CHUNK_FRAMES 256
+/* Holds the interpolated boost; a power of two above chunk + 2 * decimation */
+#define BASSBOOST_QUEUE_FRAMES 512
+
+struct BassBoostParameters {
+    int32_t mGeneration;
+    BiquadCoefficients mBoost;
+};
 
 class EffectBassBoost : public Effect {
     private:
     int16_t mStrength;
+    int32_t mBoostHandle;
+    ParameterBlock<BassBoostParameters> mParameters;
+
+    /* Low rate path: mono sum of the front pair -> decimators -> boost ->
+     * limiter -> interpolators. The dry signal is delayed to stay in phase,
+     * and the boost goes back to the front pair only. */
+    HalfbandDecimator mDecimator[BASSBOOST_DECIMATION_STAGES];
+    HalfbandInterpolator mInterpolator[BASSBOOST_DECIMATION_STAGES];
+    /* Full rate boost is produced a low rate sample at a time; the queue
+     * smooths it out to one sample per frame. */
+    int32_t mQueue[BASSBOOST_QUEUE_FRAMES];
+    int32_t mQueueRead, mQueueWrite;
     Biquad mBoost;
+    int32_t mAppliedGeneration;
+    /* 8.24 */
+    int32_t mLimiterGain;
+    Delay *mDryDelay[EFFECT_MAXIMUM_CHANNELS];
 
     void refreshStrength();
+    void reset();
+    int32_t limit(int32_t boost, int32_t low);
+    void processLowBand(int32_t *mono, int32_t frames);
 
     public:
     EffectBassBoost();
+    ~EffectBassBoost();
 
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
-    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    int32_t processBlock(audio_buffer_t *in, audio_buffer_t *out);
 };
@@ -17,6 +17,7 @@
 #define LOG_TAG "Effect-DRC"
 
 #include <cutils/log.h>
+#include "Decibels.h"
 #include "EffectCompression.h"
 
 #include <math.h>
@@ -27,18 +28,44 @@ typedef struct {
         uint16_t value;
 } cmd1x4_1x2_t;
 
-static int32_t max(int32_t a, int32_t b)
+/* Time constants of the level detector, and of gain decrease and increase.
+ * Gain rises much slower than it falls, which biases us against pumping
+ * effects and also tends to spare our ears when some very loud sound
+ * begins suddenly. */
+#define DETECTOR_TIME 0.010f
+#define ATTACK_TIME 0.025f
+#define RELEASE_TIME 0.400f
+
+static uint32_t min(uint32_t a, uint32_t b)
+{
+    return a < b ? a : b;
+}
+
+/* Per sub-block smoothing coefficient for a time constant */
+static float smoothing(float time, float samplingRate)
 {
-    return a > b ? a : b;
+    return 1.0f - expf(-COMPRESSION_SUBBLOCK_FRAMES / (time * samplingRate));
 }
 
 EffectCompression::EffectCompression()
-    : mCompressionRatio(2.0), mFade(0)
+    : mCompressionRatio(2.0), mSubBlockFill(0), mPower(0), mGainDb(0.0f)
 {
-    for (int32_t i = 0; i < 2; i ++) {
+    for (int32_t i = 0; i < EFFECT_MAXIMUM_CHANNELS; i ++) {
         mCurrentLevel[i] = 0;
+        mLevelStep[i] = 0;
+    }
+    for (int32_t i = 0; i < 2; i ++) {
         mUserLevel[i] = 1 << 24;
+        mActiveUserLevel[i] = 1 << 24;
     }
+    mPowerSmoothing = smoothing(DETECTOR_TIME, mSamplingRate);
+    mAttack = smoothing(ATTACK_TIME, mSamplingRate);
+    mRelease = smoothing(RELEASE_TIME, mSamplingRate);
+    publishParameters();
+}
+
+EffectCompression::~EffectCompression()
+{
 }
 
 int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
@@ -51,10 +78,10 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
             return 0;
         }
 
-        /* This filter gives a reasonable approximation of A- and C-weighting
-         * which is close to correct for 100 - 10 kHz. 10 dB gain must be added to result. */
-        mWeigherBP[0].setBandPass(0, 2200, mSamplingRate, 0.33);
-        mWeigherBP[1].setBandPass(0, 2200, mSamplingRate, 0.33);
+        mMeter.configure(mSamplingRate, mChannels);
+        mPowerSmoothing = smoothing(DETECTOR_TIME, mSamplingRate);
+        mAttack = smoothing(ATTACK_TIME, mSamplingRate);
+        mRelease = smoothing(RELEASE_TIME, mSamplingRate);
 
         *replyData = 0;
         return 0;
@@ -69,13 +96,14 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
                 /* 1.0 .. 11.0 */
                 mCompressionRatio = 1.f + strength->value / 100.f;
                 LOGI("Compression factor set to: %f", mCompressionRatio);
+                publishParameters();
                 *replyData = 0;
                 return 0;
             }
         }
 
-        LOGE("Unknown SET_PARAM of %d, %d bytes", cep->psize, cep->vsize);
-        return -1;
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     if (cmdCode == EFFECT_CMD_SET_VOLUME && cmdSize == 8) {
@@ -88,6 +116,8 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
                 mUserLevel[i] = userVols[i];
             }
 
+            publishParameters();
+
             int32_t *myVols = (int32_t *) pReplyData;
             for (uint32_t i = 0; i < *replySize / 4; i ++) {
                 LOGI("Returning unity for our pre-requested volume on channel %d", i);
@@ -98,114 +128,142 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
             for (int32_t i = 0; i < 2; i ++) {
                 mUserLevel[i] = 1 << 24;
             }
+            publishParameters();
         }
 
         return 0;
     }
 
-    /* Init to current volume level on enabling effect to prevent
-     * initial fade in / other shite */
-    if (cmdCode == EFFECT_CMD_ENABLE) {
-        LOGI("Copying user levels as initial loudness.");
-        /* Unfortunately Android calls SET_VOLUME after ENABLE for us.
-         * so we can't really use those volumes. It's safest just to fade in
-         * each time. */
-        for (int32_t i = 0; i < 2; i ++) {
-             mCurrentLevel[i] = 0;
-        }
-    }
-
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
 }
 
-/* Return fixed point 16.48 */
-uint64_t EffectCompression::estimateOneChannelLevel(audio_buffer_t *in, int32_t interleave, int32_t offset, Biquad& weigherBP)
+void EffectCompression::publishParameters()
 {
-    uint64_t power = 0;
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        int32_t tmp = read(in, offset);
-        tmp = weigherBP.process(tmp);
-
-        /* 2^24 * 2^24 = 48 */
-        power += int64_t(tmp) * int64_t(tmp);
-        offset += interleave;
-    }
-
-    return (power / in->frameCount);
+    CompressionParameters& p = mParameters.edit();
+    p.mUserLevel[0] = mUserLevel[0];
+    p.mUserLevel[1] = mUserLevel[1];
+    p.mCompressionRatio = mCompressionRatio;
+    mParameters.publish();
 }
 
-int32_t EffectCompression::process(audio_buffer_t *in, audio_buffer_t *out)
+/* Runs at the end of each sub-block: the gain for the next one is computed
+ * from the K-weighted power of the sub-block, smoothed over DETECTOR_TIME.
+ * The 400 ms momentary loudness would let transients through before the
+ * gain reacts, so it is only reported. The detector reads in LUFS like the
+ * meter, so the target is the same. */
+void EffectCompression::updateGain(const CompressionParameters& p)
 {
-    /* Analyze both channels separately, pick the maximum power measured. */
-    uint64_t maximumPowerSquared = 0;
-    for (uint32_t i = 0; i < 2; i ++) {
-        uint64_t candidatePowerSquared = estimateOneChannelLevel(in, 2, i, mWeigherBP[i]);
-        if (candidatePowerSquared > maximumPowerSquared) {
-            maximumPowerSquared = candidatePowerSquared;
-        }
-    }
-
-    /* -100 .. 0 dB. */
-    float signalPowerDb = logf(maximumPowerSquared / float(int64_t(1) << 48) + 1e-10f) / logf(10.0f) * 10.0f;
+    mPower += (mMeter.takeRecentPower() - mPower) * mPowerSmoothing;
 
     /* Target 83 dB SPL */
-    signalPowerDb += 96.0f - 83.0f + 10.0f;
+    float signalPowerDb = LoudnessMeter::toLoudness(mPower) + LOUDNESS_FULL_SCALE_SPL - 83.0f;
 
     /* now we have an estimate of the signal power, with 0 level around 83 dB.
      * we now select the level to boost to. */
-    float desiredLevelDb = signalPowerDb / mCompressionRatio;
+    float desiredLevelDb = signalPowerDb / p.mCompressionRatio;
 
     /* turn back to multiplier */
     float correctionDb = desiredLevelDb - signalPowerDb;
 
-    if (mEnable && mFade != 100) {
-        mFade += 1;
-    }
-    if (!mEnable && mFade != 0) {
-        mFade -= 1;
-    }
-
-    correctionDb *= mFade / 100.f;
-
     /* Reduce extreme boost by a smooth ramp.
      * New range -50 .. 0 dB */
-    correctionDb -= powf(correctionDb/100, 2.0f) * (100.0f / 2.0f);
+    float ramp = correctionDb / 100;
+    correctionDb -= ramp * ramp * (100.0f / 2.0f);
 
-    /* 40.24 */
-    int64_t correctionFactor = (1 << 24) * powf(10.0f, correctionDb / 20.0f);
+    mGainDb += (correctionDb - mGainDb) * (correctionDb < mGainDb ? mAttack : mRelease);
 
-    /* Now we have correction factor and user-desired sound level. */
-    for (uint32_t i = 0; i < 2; i ++) {
+    /* 40.24 */
+    int64_t correctionFactor = int64_t((1 << 24) * Decibels::toAmplitude(mGainDb));
+
+    /* Now we have correction factor and user-desired sound level.
+     * Glide there linearly over the next sub-block. The user sets left
+     * and right volume; a mono channel and any beyond the front pair
+     * get their mean. */
+    int32_t meanLevel = (p.mUserLevel[0] >> 1) + (p.mUserLevel[1] >> 1);
+    for (int32_t c = 0; c < mChannels; c ++) {
+        int32_t userLevel = mChannels > 1 && c < 2 ? p.mUserLevel[c] : meanLevel;
         /* 8.24 */
-        int32_t desiredLevel = mUserLevel[i] * correctionFactor >> 24;
+        int32_t desiredLevel = userLevel * correctionFactor >> 24;
+        mLevelStep[c] = (desiredLevel - mCurrentLevel[c]) / COMPRESSION_SUBBLOCK_FRAMES;
+    }
+}
 
-        /* 8.24 */
-        int32_t volAdj = desiredLevel - mCurrentLevel[i];
-
-        /* I want volume adjustments to occur in about 0.025 seconds.
-         * However, if the input buffer would happen to be longer than
-         * this, I'll just make sure that I am done with the adjustment
-         * by the end of it. */
-        int32_t adjLen = mSamplingRate / 40; // in practice, about 1100 frames
-        /* This formulation results in piecewise linear approximation of
-         * exponential because the rate of adjustment decreases from granule
-         * to granule. */
-        volAdj /= max(adjLen, in->frameCount);
-
-        /* Additionally, I want volume to increase only very slowly.
-         * This biases us against pumping effects and also tends to spare
-         * our ears when some very loud sound begins suddenly. */
-        if (volAdj > 0) {
-            volAdj >>= 4;
-        }
+const LoudnessMeter *EffectCompression::getLoudnessMeter() const
+{
+    return &mMeter;
+}
+
+float EffectCompression::getGain() const
+{
+    return mGainDb;
+}
+
+/* The user's volume for channel, spread over channels as updateGain() does */
+int32_t EffectCompression::getDryLevel(int32_t channel) const
+{
+    if (mChannels > 1 && channel < 2) {
+        return mActiveUserLevel[channel];
+    }
+    return (mActiveUserLevel[0] >> 1) + (mActiveUserLevel[1] >> 1);
+}
+
+/* Start at unity correction and the user's volume, which is what the dry
+ * side of the crossfade plays at, rather than fading in from silence.
+ * Android sends SET_VOLUME after ENABLE, so the volume is read here on the
+ * first buffer instead of in the ENABLE command. */
+void EffectCompression::resetState()
+{
+    const CompressionParameters& p = mParameters.acquire();
+    mActiveUserLevel[0] = p.mUserLevel[0];
+    mActiveUserLevel[1] = p.mUserLevel[1];
+
+    mPower = 0;
+    mGainDb = 0.0f;
+    mSubBlockFill = 0;
+    mMeter.takeRecentPower();
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        mCurrentLevel[c] = getDryLevel(c);
+        mLevelStep[c] = 0;
+    }
+}
 
-        for (uint32_t j = 0; j < in->frameCount; j ++) {
-             int32_t value = read(in, j * 2 + i);
-             value = int64_t(value) * mCurrentLevel[i] >> 24;
-             write(out, j * 2 + i, value);
-             mCurrentLevel[i] += volAdj;
+int32_t EffectCompression::processBlock(audio_buffer_t *in, audio_buffer_t *out)
+{
+    const CompressionParameters& p = mParameters.acquire();
+    mActiveUserLevel[0] = p.mUserLevel[0];
+    mActiveUserLevel[1] = p.mUserLevel[1];
+
+    int32_t buffer[EFFECT_MAXIMUM_CHANNELS][COMPRESSION_SUBBLOCK_FRAMES];
+    int32_t *planes[EFFECT_MAXIMUM_CHANNELS];
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        planes[c] = buffer[c];
+    }
+
+    uint32_t frames;
+    for (uint32_t offset = 0; offset < in->frameCount; offset += frames) {
+        if (mSubBlockFill == COMPRESSION_SUBBLOCK_FRAMES) {
+            updateGain(p);
+            mSubBlockFill = 0;
         }
+        frames = min(in->frameCount - offset, COMPRESSION_SUBBLOCK_FRAMES - mSubBlockFill);
+        mSubBlockFill += frames;
+
+        readPlanar(in, offset, frames, planes);
+        mMeter.process(planes, frames);
+
+        for (int32_t c = 0; c < mChannels; c ++) {
+            int32_t *samples = planes[c];
+            int32_t level = mCurrentLevel[c];
+            int32_t step = mLevelStep[c];
+            for (uint32_t i = 0; i < frames; i ++) {
+                samples[i] = int64_t(samples[i]) * level >> 24;
+                level += step;
+            }
+            mCurrentLevel[c] = level;
+        }
+
+        writePlanar(out, offset, frames, planes);
     }
 
-    return mEnable || mFade != 0 ? 0 : -ENODATA;
+    return 0;
 }
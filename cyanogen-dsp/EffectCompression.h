@@ -1,22 +1,52 @@
 #pragma once
 
-#include "Biquad.h"
 #include "Effect.h"
+#include "LoudnessMeter.h"
+#include "ParameterBlock.h"
+
+/* Gain is updated every this many frames. */
+#define COMPRESSION_SUBBLOCK_FRAMES 32
+
+struct CompressionParameters {
+    int32_t mUserLevel[2];
+    float mCompressionRatio;
+};
 
 class EffectCompression : public Effect {
     private:
     int32_t mUserLevel[2];
     float mCompressionRatio;
+    ParameterBlock<CompressionParameters> mParameters;
+
+    /* User volume last seen by the audio thread, 8.24 */
+    int32_t mActiveUserLevel[2];
+
+    /* Gain applied to each channel, 8.24, and its change per frame */
+    int32_t mCurrentLevel[EFFECT_MAXIMUM_CHANNELS];
+    int32_t mLevelStep[EFFECT_MAXIMUM_CHANNELS];
 
-    int32_t mFade;
-    int32_t mCurrentLevel[2];
+    LoudnessMeter mMeter;
+    int32_t mSubBlockFill;
+    /* K-weighted power seen by the gain computer */
+    float mPower;
+    float mGainDb;
+    /* Smoothing coefficients per sub-block */
+    float mPowerSmoothing;
+    float mAttack;
+    float mRelease;
 
-    Biquad mWeigherBP[2];
+    void publishParameters();
+    void updateGain(const CompressionParameters& p);
 
-    uint64_t estimateOneChannelLevel(audio_buffer_t *in, int32_t interleave, int32_t offset, Biquad& WeigherBP);
+    protected:
+    const LoudnessMeter *getLoudnessMeter() const;
+    float getGain() const;
+    int32_t getDryLevel(int32_t channel) const;
+    void resetState();
 
     public:
     EffectCompression();
+    ~EffectCompression();
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
-    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    int32_t processBlock(audio_buffer_t *in, audio_buffer_t *out);
 };
@@ -20,6 +20,7 @@
 #include "EffectEqualizer.h"
 
 #include <math.h>
+#include <string.h>
 
 typedef struct {
     int32_t status;
@@ -38,6 +39,14 @@ typedef struct {
     int16_t data2;
 } reply1x4_2x2_t;
 
+typedef struct {
+    int32_t status;
+    uint32_t psize;
+    uint32_t vsize;
+    int32_t cmd;
+    int16_t data[7];
+} reply1x4_7x2_t;
+
 typedef struct {
     int32_t status;
     uint32_t psize;
@@ -56,17 +65,43 @@ typedef struct {
     int32_t data;
 } reply2x4_1x4_t;
 
+static uint32_t min(uint32_t a, uint32_t b)
+{
+    return a < b ? a : b;
+}
+
 static int64_t toFixedPoint(float in) {
     return (int64_t) (0.5 + in * ((int64_t) 1 << 32));
 }
 
 EffectEqualizer::EffectEqualizer()
-    : mLoudnessAdjustment(10000.f), mLoudnessL(50.f), mLoudnessR(50.f),
-      mNextUpdate(0), mNextUpdateInterval(1000), mPowerSquaredL(0), mPowerSquaredR(0), mFade(0)
+    : mLoudnessAdjustment(10000.f), mParametricBands(0), mNextUpdate(0), mNextUpdateInterval(1000),
+      mAppliedGeneration(-1), mAppliedIndex(-1)
 {
     for (int32_t i = 0; i < 6; i ++) {
         mBand[i] = 0;
     }
+    for (int32_t i = 0; i < LOUDNESS_TABLE_SIZE; i ++) {
+        for (int32_t j = 0; j < 5; j ++) {
+            mTableHandle[i][j] = -1;
+        }
+    }
+    for (int32_t i = 0; i < EQUALIZER_MAXIMUM_BANDS; i ++) {
+        mParametricHandle[i] = -1;
+    }
+    publishParameters(true);
+}
+
+EffectEqualizer::~EffectEqualizer()
+{
+    for (int32_t i = 0; i < LOUDNESS_TABLE_SIZE; i ++) {
+        for (int32_t j = 0; j < 5; j ++) {
+            CoefficientStore::release(mTableHandle[i][j]);
+        }
+    }
+    for (int32_t i = 0; i < EQUALIZER_MAXIMUM_BANDS; i ++) {
+        CoefficientStore::release(mParametricHandle[i]);
+    }
 }
 
 int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
@@ -82,6 +117,8 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
 
         /* 100 updates per second. */
         mNextUpdateInterval = int32_t(mSamplingRate / 100.);
+        mMeter.configure(mSamplingRate, mChannels);
+        publishParameters(true);
 
         int32_t *replyData = (int32_t *) pReplyData;
         *replyData = 0;
@@ -117,6 +154,32 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
                 *replySize = sizeof(reply1x4_1x2_t);
                 return 0;
             }
+            if (cmd == CUSTOM_EQ_PARAM_LEVELS) {
+                reply1x4_7x2_t *replyData = (reply1x4_7x2_t *) pReplyData;
+                replyData->status = 0;
+                replyData->vsize = 14;
+                replyData->data[0] = int16_t(floorf(mLoudnessAdjustment * 100 + 0.5f));
+                for (int32_t i = 0; i < 6; i ++) {
+                    replyData->data[i + 1] = int16_t(floorf(mBand[i] * 100 + 0.5f));
+                }
+                *replySize = sizeof(reply1x4_7x2_t);
+                return 0;
+            }
+            if (cmd == CUSTOM_EQ_PARAM_PARAMETRIC) {
+                uint32_t vsize = mParametricBands * sizeof(parametric_band_t);
+                effect_param_t *rep = (effect_param_t *) pReplyData;
+                if (*replySize < 16 + vsize) {
+                    rep->status = -EINVAL;
+                    rep->vsize = 0;
+                    *replySize = sizeof(effect_param_t);
+                    return 0;
+                }
+                rep->status = 0;
+                rep->vsize = vsize;
+                memcpy(((int32_t *) rep) + 4, mParametric, vsize);
+                *replySize = 16 + vsize;
+                return 0;
+            }
         } else if (cep->psize == 8) {
             int32_t cmd = ((int32_t *) cep)[3];
             int32_t arg = ((int32_t *) cep)[4];
@@ -139,25 +202,62 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             }
         }
 
-        /* Didn't support this command. We'll just set error status. */
-        LOGE("Unknown GET_PARAM of size %d", cep->psize);
-        effect_param_t *replyData = (effect_param_t *) pReplyData;
-        replyData->status = -EINVAL;
-        replyData->vsize = 0;
-        *replySize = sizeof(effect_param_t);
-        return 0;
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     if (cmdCode == EFFECT_CMD_SET_PARAM) {
         effect_param_t *cep = (effect_param_t *) pCmdData;
         int32_t *replyData = (int32_t *) pReplyData;
 
+        if (cep->psize == 4 && ((int32_t *) cep)[3] == CUSTOM_EQ_PARAM_PARAMETRIC) {
+            if (cep->vsize % sizeof(parametric_band_t) != 0
+                || cep->vsize > sizeof(mParametric)) {
+                LOGE("Invalid parametric equalizer of %d bytes", cep->vsize);
+                *replyData = -EINVAL;
+                return 0;
+            }
+            *replyData = setParametric((const parametric_band_t *) (((int32_t *) cep) + 4),
+                cep->vsize / sizeof(parametric_band_t));
+            return 0;
+        }
+
+        if (cep->psize == 4 && ((int32_t *) cep)[3] == CUSTOM_EQ_PARAM_LEVELS) {
+            int32_t bands = cep->vsize / 2 - 1;
+            if (cep->vsize % 2 != 0 || bands < 1 || bands > 6) {
+                LOGE("Invalid equalizer levels of %d bytes", cep->vsize);
+                *replyData = -EINVAL;
+                return 0;
+            }
+            const int16_t *values = ((int16_t *) cep) + 8;
+
+            /* Same check as for single bands, but one table rebuild for
+             * all of them. */
+            bool changed = false;
+            for (int32_t i = 0; i < bands; i ++) {
+                float dB = values[i + 1] / 100.0f;
+                if (mBand[i] != dB) {
+                    mBand[i] = dB;
+                    changed = true;
+                }
+            }
+            float adjustment = values[0] / 100.0f;
+            if (changed || mLoudnessAdjustment != adjustment) {
+                LOGI("Setting %d bands, loudness correction reference %f dB", bands, adjustment);
+                mLoudnessAdjustment = adjustment;
+                publishParameters(changed && mParametricBands == 0);
+            }
+            *replyData = 0;
+            return 0;
+        }
+
         if (cep->psize == 4 && cep->vsize == 2) {
             int32_t cmd = ((int32_t *) cep)[3];
             if (cmd == CUSTOM_EQ_PARAM_LOUDNESS_CORRECTION) {
                 int16_t value = ((int16_t *) cep)[8];
                 mLoudnessAdjustment = value / 100.0f;
                 LOGI("Setting loudness correction reference to %f dB", mLoudnessAdjustment);
+                publishParameters(false);
                 *replyData = 0;
                 return 0;
             }
@@ -170,15 +270,20 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             if (cmd == EQ_PARAM_BAND_LEVEL && arg >= 0 && arg < 6) {
                 *replyData = 0;
                 int16_t value = ((int16_t *) cep)[10];
-                LOGI("Setting band %d to %d", arg, value);
-                mBand[arg] = value / 100.0f;
+                float dB = value / 100.0f;
+                /* HeadsetService resends every band on each update. */
+                if (mBand[arg] != dB) {
+                    LOGI("Setting band %d to %d", arg, value);
+                    mBand[arg] = dB;
+                    /* Parametric mode does not use the table for these. */
+                    publishParameters(mParametricBands == 0);
+                }
                 return 0;
             }
         }
 
-        LOGE("Unknown SET_PARAM size %d, %d bytes", cep->psize, cep->vsize);
-        *replyData = -EINVAL;
-        return 0;
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
@@ -204,99 +309,214 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
  * and linearly decreased for signals 20 dB ... 100 dB, and no adjustment is
  * made for 100 dB or higher. User must configure a reference level that maps the
  * digital sound level against the SPL achieved in the ear.
+ *
+ * The loudness level is quantized to 1 dB steps, which lets us precompute the
+ * filters for every step and skip refreshes while the level stays put.
  */
-float EffectEqualizer::getAdjustedBand(int32_t band, float loudness) {
-    /* 1st derived by linear extrapolation from (62.5, 28) to (20, 41) */
-    const float adj_beg[6] = {  0.0,  0.0,  0.0,  0.0, -1.0, -1.5 };
-    const float adj_end[6] = { 42.3, 28.0, 10.0,  0.0, -3.0,  8.0 };
-
+int32_t EffectEqualizer::getLoudnessIndex(float loudness, float adjustment) {
     /* Add loudness adjustment */
-    float loudnessLevel = loudness + mLoudnessAdjustment;
+    float loudnessLevel = loudness + adjustment;
     if (loudnessLevel > 100.f) {
         loudnessLevel = 100.f;
     }
     if (loudnessLevel < 20.f) {
         loudnessLevel = 20.f;
     }
+    return int32_t(loudnessLevel - 20.f + 0.5f);
+}
+
+float EffectEqualizer::getAdjustedBand(const float bands[6], int32_t band, int32_t loudnessIndex) {
+    /* 1st derived by linear extrapolation from (62.5, 28) to (20, 41) */
+    const float adj_beg[6] = {  0.0,  0.0,  0.0,  0.0, -1.0, -1.5 };
+    const float adj_end[6] = { 42.3, 28.0, 10.0,  0.0, -3.0,  8.0 };
+
     /* Maximum loudness = no adj (reference behavior at 100 dB) */
-    loudnessLevel = (loudnessLevel - 20.0f) / (100.0f - 20.0f);
+    float loudnessLevel = loudnessIndex / float(LOUDNESS_TABLE_SIZE - 1);
 
     /* Read user setting */
-    float f = mBand[band];
+    float f = bands[band];
     /* Add compensation values */
     f += adj_beg[band] + (adj_end[band] - adj_beg[band]) * (1.0f - loudnessLevel);
-    /* Account for effect smooth fade in/out */
-    return f * (mFade / 100.f);
+    return f;
 }
 
-void EffectEqualizer::refreshBands()
+/* The designs are referenced in the shared store through handles. */
+void EffectEqualizer::computeBands(BiquadCoefficients coefficients[5], int32_t handles[5], const float bands[6], int32_t loudnessIndex)
 {
+    float previous = getAdjustedBand(bands, 0, loudnessIndex);
     for (int32_t band = 0; band < 5; band ++) {
         /* 15.625, 62.5, 250, 1000, 4000, 16000 */
         float centerFrequency = 15.625f * powf(4, band);
 
-        float dBL = getAdjustedBand(band + 1, mLoudnessL) - getAdjustedBand(band, mLoudnessL);
-        float overallGainL = band == 0 ? getAdjustedBand(0, mLoudnessL) : 0.0f;
-        mFilterL[band].setHighShelf(mNextUpdateInterval, centerFrequency * 2.0f, mSamplingRate, dBL, 1.0f, overallGainL);
-
-        float dBR = getAdjustedBand(band + 1, mLoudnessR) - getAdjustedBand(band, mLoudnessR);
-        float overallGainR = band == 0 ? getAdjustedBand(0, mLoudnessR) : 0.0f;
-        mFilterR[band].setHighShelf(mNextUpdateInterval, centerFrequency * 2.0f, mSamplingRate, dBR, 1.0f, overallGainR);
+        float next = getAdjustedBand(bands, band + 1, loudnessIndex);
+        float overallGain = band == 0 ? previous : 0.0f;
+        BiquadKey key;
+        CoefficientStore::makeHighShelf(key, mSamplingRate, centerFrequency * 2.0f, next - previous, 1.0f, overallGain);
+        int32_t old = handles[band];
+        handles[band] = CoefficientStore::acquire(key, coefficients[band]);
+        CoefficientStore::release(old);
+        previous = next;
     }
 }
 
-void EffectEqualizer::updateLoudnessEstimate(float& loudness, int64_t powerSquared) {
-    float signalPowerDb = 96.0f + logf(powerSquared / mNextUpdateInterval / float(int64_t(1) << 48) + 1e-10f) / logf(10.0f) * 10.0f;
-    /* Immediate rise-time, and perceptibly linear 10 dB/s decay */
-    if (loudness > signalPowerDb + 0.1f) {
-        loudness -= 0.1f;
-    } else {
-        loudness = signalPowerDb;
+void EffectEqualizer::computeParametric(BiquadCoefficients& coefficients, int32_t& handle, const parametric_band_t& band)
+{
+    float centerFrequency = band.frequency / 1000.0f;
+    /* Keep designs below Nyquist at low sampling rates. */
+    if (centerFrequency > mSamplingRate * 0.45f) {
+        centerFrequency = mSamplingRate * 0.45f;
+    }
+    float dB = band.gain / 100.0f;
+    float q = band.q / 1000.0f;
+
+    BiquadKey key;
+    switch (band.type) {
+    case PARAMETRIC_LOW_SHELF:
+        CoefficientStore::makeLowShelf(key, mSamplingRate, centerFrequency, dB, q);
+        break;
+    case PARAMETRIC_HIGH_SHELF:
+        CoefficientStore::makeHighShelf(key, mSamplingRate, centerFrequency, dB, q, 0.0f);
+        break;
+    case PARAMETRIC_NOTCH:
+        CoefficientStore::makeNotch(key, mSamplingRate, centerFrequency, q);
+        break;
+    default:
+        CoefficientStore::makePeaking(key, mSamplingRate, centerFrequency, dB, q);
+        break;
     }
+    int32_t old = handle;
+    handle = CoefficientStore::acquire(key, coefficients);
+    CoefficientStore::release(old);
 }
 
-int32_t EffectEqualizer::process(audio_buffer_t *in, audio_buffer_t *out)
+int32_t EffectEqualizer::setParametric(const parametric_band_t *bands, int32_t count)
 {
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        /* Update EQ? */
-        if (mNextUpdate == 0) {
-            mNextUpdate = mNextUpdateInterval;
+    for (int32_t i = 0; i < count; i ++) {
+        if (bands[i].type < PARAMETRIC_PEAKING || bands[i].type > PARAMETRIC_NOTCH
+            || bands[i].frequency <= 0 || bands[i].q <= 0) {
+            LOGE("Invalid parametric band %d: type %d, %d mHz, q %d",
+                i, bands[i].type, bands[i].frequency, bands[i].q);
+            return -EINVAL;
+        }
+    }
 
-            //LOGI("powerSqL: %lld, powerSqR: %lld", mPowerSquaredL, mPowerSquaredR);
-            updateLoudnessEstimate(mLoudnessL, mPowerSquaredL);
-            updateLoudnessEstimate(mLoudnessR, mPowerSquaredR);
-            //LOGI("loudnessL: %f, loudnessR: %f", mLoudnessL, mLoudnessR);
-            mPowerSquaredL = 0;
-            mPowerSquaredR = 0;
+    /* HeadsetService resends every setting on each update. */
+    if (count == mParametricBands
+        && memcmp(bands, mParametric, count * sizeof(parametric_band_t)) == 0) {
+        return 0;
+    }
 
+    LOGI("Setting %d parametric bands", count);
+    memcpy(mParametric, bands, count * sizeof(parametric_band_t));
+    mParametricBands = count;
+    publishParameters(true);
+    return 0;
+}
 
-            if (mEnable && mFade < 100) {
-                mFade += 1;
-            }
-            if (! mEnable && mFade > 0) {
-                mFade -= 1;
+/* Called on the command thread. The new block becomes visible to process()
+ * at the start of the next buffer. */
+void EffectEqualizer::publishParameters(bool rebuildTable)
+{
+    EqualizerParameters& p = mParameters.edit();
+    p.mGeneration ++;
+    memcpy(p.mBand, mBand, sizeof(p.mBand));
+    p.mLoudnessAdjustment = mLoudnessAdjustment;
+
+    /* Without compensation at the quietest level the meter reports, the
+     * parametric mode shelves would stay flat. */
+    p.mShelves = 5;
+    if (mParametricBands != 0
+        && getLoudnessIndex(LOUDNESS_FULL_SCALE_SPL + LOUDNESS_SILENCE, mLoudnessAdjustment) == LOUDNESS_TABLE_SIZE - 1) {
+        p.mShelves = 0;
+    }
+
+    if (rebuildTable) {
+        /* Parametric mode keeps only the loudness compensation, made flat
+         * at the reference level. */
+        const float *bands = mBand;
+        float reference[6];
+        if (mParametricBands != 0) {
+            const float zero[6] = { 0, 0, 0, 0, 0, 0 };
+            for (int32_t band = 0; band < 6; band ++) {
+                reference[band] = -getAdjustedBand(zero, band, LOUDNESS_TABLE_SIZE - 1);
             }
+            bands = reference;
+        }
+        for (int32_t i = 0; i < LOUDNESS_TABLE_SIZE; i ++) {
+            computeBands(p.mTable[i], mTableHandle[i], bands, i);
+        }
 
-            refreshBands();
+        for (int32_t i = 0; i < EQUALIZER_MAXIMUM_BANDS; i ++) {
+            if (i < mParametricBands) {
+                computeParametric(p.mParametric[i], mParametricHandle[i], mParametric[i]);
+            } else {
+                CoefficientStore::release(mParametricHandle[i]);
+                mParametricHandle[i] = -1;
+            }
         }
-        mNextUpdate --;
+        p.mParametricBands = mParametricBands;
+    }
+    mParameters.publish();
+}
 
-        int32_t tmpL = read(in, i * 2);
-        int32_t tmpR = read(in, i * 2 + 1);
+void EffectEqualizer::refreshBands(const EqualizerParameters& p)
+{
+    int32_t loudnessIndex = getLoudnessIndex(getLoudness(), p.mLoudnessAdjustment);
+    if (mAppliedGeneration == p.mGeneration && mAppliedIndex == loudnessIndex) {
+        return;
+    }
+    mAppliedGeneration = p.mGeneration;
+    mAppliedIndex = loudnessIndex;
 
-        /* Update signal loudness estimate in SPL */
-        mPowerSquaredL += int64_t(tmpL) * tmpL;
-        mPowerSquaredR += int64_t(tmpR) * tmpR;
+    BiquadCoefficients coefficients[BIQUAD_CASCADE_MAXIMUM_SECTIONS];
+    memcpy(coefficients, p.mTable[loudnessIndex], p.mShelves * sizeof(BiquadCoefficients));
+    memcpy(coefficients + p.mShelves, p.mParametric, p.mParametricBands * sizeof(BiquadCoefficients));
+    mCascade.setCoefficients(mNextUpdateInterval, coefficients, p.mShelves + p.mParametricBands);
+}
 
-        /* Evaluate EQ filters */
-        for (int32_t j = 0; j < 5; j ++) {
-            tmpL = mFilterL[j].process(tmpL);
-            tmpR = mFilterR[j].process(tmpR);
+/* Program loudness in dB SPL. Momentary loudness lets the compensation back
+ * off quickly when the music gets loud, and short-term loudness keeps it
+ * from jumping up in every short pause. */
+float EffectEqualizer::getLoudness()
+{
+    float momentary = mMeter.getMomentary();
+    float shortTerm = mMeter.getShortTerm();
+    return LOUDNESS_FULL_SCALE_SPL + (momentary > shortTerm ? momentary : shortTerm);
+}
+
+const LoudnessMeter *EffectEqualizer::getLoudnessMeter() const
+{
+    return &mMeter;
+}
+
+int32_t EffectEqualizer::processBlock(audio_buffer_t *in, audio_buffer_t *out)
+{
+    const EqualizerParameters& p = mParameters.acquire();
+
+    int32_t buffer[EFFECT_MAXIMUM_CHANNELS][EQUALIZER_CHUNK_FRAMES];
+    int32_t *planes[EFFECT_MAXIMUM_CHANNELS];
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        planes[c] = buffer[c];
+    }
+
+    uint32_t frames;
+    for (uint32_t offset = 0; offset < in->frameCount; offset += frames) {
+        /* Update EQ? Chunks end at updates, so each sees one set of
+         * coefficient glides. */
+        if (mNextUpdate == 0) {
+            mNextUpdate = mNextUpdateInterval;
+            refreshBands(p);
         }
+        frames = min(in->frameCount - offset, min(mNextUpdate, EQUALIZER_CHUNK_FRAMES));
+        mNextUpdate -= frames;
+
+        readPlanar(in, offset, frames, planes);
+        mMeter.process(planes, frames);
+
+        mCascade.process(planes, mChannels, frames);
 
-        write(out, i * 2, tmpL);
-        write(out, i * 2 + 1, tmpR);
+        writePlanar(out, offset, frames, planes);
     }
 
-    return mEnable || mFade != 0 ? 0 : -ENODATA;
+    return 0;
 }
@@ -3,35 +3,103 @@
 #include <audio_effects/effect_equalizer.h>
 
 #include "Biquad.h"
+#include "BiquadCascade.h"
+#include "CoefficientStore.h"
 #include "Effect.h"
+#include "LoudnessMeter.h"
+#include "ParameterBlock.h"
 
 #define CUSTOM_EQ_PARAM_LOUDNESS_CORRECTION 1000
+/* Array of parametric_band_t. Replaces the six graphic bands with these;
+ * an empty array goes back to the graphic bands. */
+#define CUSTOM_EQ_PARAM_PARAMETRIC 1001
+/* int16 loudness correction reference, then the int16 levels of the first
+ * 1 .. 6 graphic bands, all in one call. GET returns all six bands. */
+#define CUSTOM_EQ_PARAM_LEVELS 1002
+
+#define EQUALIZER_MAXIMUM_BANDS 16
+
+#define EQUALIZER_CHUNK_FRAMES 256
+
+/* Loudness compensation is tabulated for 20 .. 100 dB in 1 dB steps. */
+#define LOUDNESS_TABLE_SIZE 81
+
+enum {
+    PARAMETRIC_PEAKING,
+    PARAMETRIC_LOW_SHELF,
+    PARAMETRIC_HIGH_SHELF,
+    PARAMETRIC_NOTCH
+};
+
+typedef struct {
+    int16_t type;
+    /* millibels, not used by notches */
+    int16_t gain;
+    /* millihertz, like EQ_PARAM_CENTER_FREQ */
+    int32_t frequency;
+    /* Q of peaks and notches, slope of shelves, in thousandths */
+    int32_t q;
+} parametric_band_t;
+
+/* Settings handed from command() to process(). */
+struct EqualizerParameters {
+    int32_t mGeneration;
+    float mBand[6];
+    float mLoudnessAdjustment;
+
+    /* Filter coefficients for every loudness step. Rebuilt only
+     * when band levels or sampling rate change. In parametric mode these
+     * only compensate loudness, and are left out while they are flat. */
+    int32_t mShelves;
+    BiquadCoefficients mTable[LOUDNESS_TABLE_SIZE][5];
+
+    /* Follow the shelves in parametric mode */
+    int32_t mParametricBands;
+    BiquadCoefficients mParametric[EQUALIZER_MAXIMUM_BANDS];
+};
 
 class EffectEqualizer : public Effect {
     private:
+    /* Command thread copies of the settings, and store references
+     * for the current table. */
     float mBand[6];
-    Biquad mFilterL[5], mFilterR[5];
+    float mLoudnessAdjustment;
+    int32_t mTableHandle[LOUDNESS_TABLE_SIZE][5];
+    parametric_band_t mParametric[EQUALIZER_MAXIMUM_BANDS];
+    int32_t mParametricBands;
+    int32_t mParametricHandle[EQUALIZER_MAXIMUM_BANDS];
+
+    ParameterBlock<EqualizerParameters> mParameters;
+
+    /* Shelves, then parametric bands, shared by all channels */
+    BiquadCascade mCascade;
 
     /* Automatic equalizer */
-    float mLoudnessAdjustment;
 
-    float mLoudnessL;
-    float mLoudnessR;
+    LoudnessMeter mMeter;
     int32_t mNextUpdate;
     int32_t mNextUpdateInterval;
-    int64_t mPowerSquaredL;
-    int64_t mPowerSquaredR;
 
-    /* Smooth enable/disable */
-    int32_t mFade;
+    /* Settings generation and loudness step last programmed into
+     * the cascade. */
+    int32_t mAppliedGeneration;
+    int32_t mAppliedIndex;
+
+    int32_t getLoudnessIndex(float loudness, float adjustment);
+    float getAdjustedBand(const float bands[6], int32_t idx, int32_t loudnessIndex);
+    void computeBands(BiquadCoefficients coefficients[5], int32_t handles[5], const float bands[6], int32_t loudnessIndex);
+    void computeParametric(BiquadCoefficients& coefficients, int32_t& handle, const parametric_band_t& band);
+    int32_t setParametric(const parametric_band_t *bands, int32_t count);
+    void publishParameters(bool rebuildTable);
+    void refreshBands(const EqualizerParameters& p);
+    float getLoudness();
 
-    void setBand(int32_t idx, float dB);
-    float getAdjustedBand(int32_t idx, float loudness);
-    void refreshBands();
-    void updateLoudnessEstimate(float& loudness, int64_t powerSquared);
+    protected:
+    const LoudnessMeter *getLoudnessMeter() const;
 
     public:
     EffectEqualizer();
+    ~EffectEqualizer();
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
-    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    int32_t processBlock(audio_buffer_t *in, audio_buffer_t *out);
 };
@@ -16,10 +16,17 @@
 
 #define LOG_TAG "Effect-Virtualizer"
 
+#include <cutils/atomic.h>
 #include <cutils/log.h>
 #include <math.h>
 
 #include "EffectVirtualizer.h"
+#include "ImpulseResponse.h"
+
+static uint32_t min(uint32_t a, uint32_t b)
+{
+    return a < b ? a : b;
+}
 
 typedef struct {
     int32_t status;
@@ -38,11 +45,20 @@ typedef struct {
 } reply1x4_1x2_t;
 
 EffectVirtualizer::EffectVirtualizer()
-    : mStrength(0)
+    : mStrength(0), mReverbDelayL(0.029f), mReverbDelayR(0.023f), mLocalizationHandle(-1),
+      mPendingResponse(0), mConvolver(0), mConvolverGeneration(0), mRetired(0), mConvolverSeen(0)
 {
     refreshStrength();
 }
 
+EffectVirtualizer::~EffectVirtualizer()
+{
+    collectRetired(true);
+    delete mConvolver;
+    delete mPendingResponse;
+    CoefficientStore::release(mLocalizationHandle);
+}
+
 int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
 {
     if (cmdCode == EFFECT_CMD_CONFIGURE) {
@@ -58,7 +74,12 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
         mReverbDelayL.setParameters(mSamplingRate, 0.029f);
         mReverbDelayR.setParameters(mSamplingRate, 0.023f);
         /* the -3 dB point is around 650 Hz, giving about 300 us to work with */
-        mLocalization.setHighShelf(0, 800.0f, mSamplingRate, -11.0f, 0.72f, 0);
+        BiquadKey key;
+        CoefficientStore::makeHighShelf(key, mSamplingRate, 800.0f, -11.0f, 0.72f, 0);
+        BiquadCoefficients coefficients;
+        CoefficientStore::release(mLocalizationHandle);
+        mLocalizationHandle = CoefficientStore::acquire(key, coefficients);
+        mLocalization.setCoefficients(0, coefficients);
 
         mDelayDataL = 0;
         mDelayDataR = 0;
@@ -90,12 +111,8 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
             }
         }
 
-        LOGE("Unknown GET_PARAM of %d bytes", cep->psize);
-        effect_param_t *replyData = (effect_param_t *) pReplyData;
-        replyData->status = -EINVAL;
-        replyData->vsize = 0;
-        *replySize = sizeof(effect_param_t);
-        return 0;
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     if (cmdCode == EFFECT_CMD_SET_PARAM) {
@@ -111,10 +128,28 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
             }
         }
 
-        LOGE("Unknown SET_PARAM of %d, %d bytes", cep->psize, cep->vsize);
-        int32_t *replyData = (int32_t *) pReplyData;
-        *replyData = -EINVAL;
-        return 0;
+        if (cep->psize == 4 && cep->vsize == 8
+            && ((int32_t *) cep)[3] == CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE) {
+            int32_t *replyData = (int32_t *) pReplyData;
+            *replyData = beginImpulseResponse(((int32_t *) cep)[4], ((int32_t *) cep)[5]);
+            return 0;
+        }
+
+        /* Frames arrive in pieces small enough for one binder call, so
+         * check the size against the command actually received. */
+        if (cep->psize == 4 && ((int32_t *) cep)[3] == CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_DATA) {
+            int32_t *replyData = (int32_t *) pReplyData;
+            if (cep->vsize % (4 * sizeof(float)) != 0 || cmdSize < sizeof(effect_param_t) + 4
+                || cmdSize - sizeof(effect_param_t) - 4 < cep->vsize) {
+                *replyData = -EINVAL;
+                return 0;
+            }
+            *replyData = appendImpulseResponse(((float *) cep) + 4, cep->vsize / (4 * sizeof(float)));
+            return 0;
+        }
+
+        /* Parameters common to all our effects are handled by Effect. */
+        return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
     }
 
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
@@ -122,67 +157,211 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
 
 void EffectVirtualizer::refreshStrength()
 {
-    mDeep = mStrength != 0;
-    mWide = mStrength >= 500;
+    VirtualizerParameters& p = mParameters.edit();
+    p.mDeep = mStrength != 0;
+    p.mWide = mStrength >= 500;
 
     if (mStrength != 0) {
         float start = -15.0f;
         float end = -5.0f;
         float attenuation = start + (end - start) * (mStrength / 1000.0f);
         float roomEcho = powf(10.0f, attenuation / 20.0f);
-        mLevel = int64_t(roomEcho * (int64_t(1) << 32));
+        p.mLevel = int64_t(roomEcho * (int64_t(1) << 32));
     } else {
-        mLevel = 0;
+        p.mLevel = 0;
+    }
+    mParameters.publish();
+}
+
+int32_t EffectVirtualizer::beginImpulseResponse(int32_t length, int32_t samplingRate)
+{
+    delete mPendingResponse;
+    mPendingResponse = 0;
+
+    if (length == 0) {
+        setConvolver(0);
+        return 0;
+    }
+    if (length < 0 || length > IMPULSE_RESPONSE_MAXIMUM_LENGTH || samplingRate <= 0) {
+        LOGE("Refusing %d frame impulse response at %d Hz", length, samplingRate);
+        return -EINVAL;
     }
+    mPendingResponse = new ImpulseResponse(length, samplingRate);
+    return 0;
 }
 
-int32_t EffectVirtualizer::process(audio_buffer_t* in, audio_buffer_t* out)
+int32_t EffectVirtualizer::appendImpulseResponse(const float *frames, int32_t count)
 {
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        /* calculate reverb wet into dataL, dataR */
-        int32_t dryL = read(in, i * 2);
-        int32_t dryR = read(in, i * 2 + 1);
-        int32_t dataL = dryL;
-        int32_t dataR = dryR;
-
-        if (mDeep) {
-            /* Note: a pinking filter here would be good. */
-            dataL += mDelayDataR;
-            dataR += mDelayDataL;
+    if (mPendingResponse == 0) {
+        LOGE("Impulse response data without a response being received");
+        return -EINVAL;
+    }
+    if (! mPendingResponse->append(frames, count)) {
+        delete mPendingResponse;
+        mPendingResponse = 0;
+        return -EINVAL;
+    }
+    if (! mPendingResponse->isComplete()) {
+        return 0;
+    }
+
+    if (mPendingResponse->getSamplingRate() != int32_t(mSamplingRate)) {
+        LOGW("Impulse response is for %d Hz, playing at %d Hz",
+            mPendingResponse->getSamplingRate(), int32_t(mSamplingRate));
+    }
+    setConvolver(new Convolver(mPendingResponse->getData(), mPendingResponse->getLength(), CONVOLVER_BLOCK_FRAMES));
+    LOGI("Using %d frame impulse response", mPendingResponse->getLength());
+    delete mPendingResponse;
+    mPendingResponse = 0;
+    return 0;
+}
+
+void EffectVirtualizer::setConvolver(Convolver *convolver)
+{
+    collectRetired(false);
+    if (mConvolver != 0) {
+        RetiredConvolver *retired = new RetiredConvolver();
+        retired->mConvolver = mConvolver;
+        retired->mGeneration = mConvolverGeneration + 1;
+        retired->mNext = mRetired;
+        mRetired = retired;
+    }
+    mConvolver = convolver;
+
+    VirtualizerParameters& p = mParameters.edit();
+    p.mConvolver = convolver;
+    p.mConvolverGeneration = ++ mConvolverGeneration;
+    mParameters.publish();
+}
+
+/* process() only touches the convolver of the block it acquired, so any
+ * convolver replaced before the generation it reports is unused. */
+void EffectVirtualizer::collectRetired(bool all)
+{
+    int32_t seen = android_atomic_acquire_load(&mConvolverSeen);
+    RetiredConvolver **link = &mRetired;
+    while (*link != 0) {
+        RetiredConvolver *retired = *link;
+        if (all || seen - retired->mGeneration >= 0) {
+            *link = retired->mNext;
+            delete retired->mConvolver;
+            delete retired;
+        } else {
+            link = &retired->mNext;
         }
+    }
+}
+
+void EffectVirtualizer::processConvolution(Convolver *convolver, audio_buffer_t *in, audio_buffer_t *out)
+{
+    int32_t buffer[EFFECT_MAXIMUM_CHANNELS][VIRTUALIZER_CHUNK_FRAMES];
+    int32_t *planes[EFFECT_MAXIMUM_CHANNELS];
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        planes[c] = buffer[c];
+    }
+
+    uint32_t frames;
+    for (uint32_t offset = 0; offset < in->frameCount; offset += frames) {
+        frames = min(in->frameCount - offset, VIRTUALIZER_CHUNK_FRAMES);
+        readPlanar(in, offset, frames, planes);
+        convolver->process(planes[0], planes[1], frames);
+        writePlanar(out, offset, frames, planes);
+    }
+}
+
+void EffectVirtualizer::processRoom(const VirtualizerParameters& p, audio_buffer_t *in, audio_buffer_t *out)
+{
+    int32_t buffer[EFFECT_MAXIMUM_CHANNELS][VIRTUALIZER_CHUNK_FRAMES];
+    int32_t *planes[EFFECT_MAXIMUM_CHANNELS];
+    for (int32_t c = 0; c < EFFECT_MAXIMUM_CHANNELS; c ++) {
+        planes[c] = buffer[c];
+    }
+    int32_t *dryL = planes[0], *dryR = planes[1];
+    int32_t wetL[VIRTUALIZER_CHUNK_FRAMES], wetR[VIRTUALIZER_CHUNK_FRAMES];
+    int32_t feedL[VIRTUALIZER_CHUNK_FRAMES], feedR[VIRTUALIZER_CHUNK_FRAMES];
 
-        dataL = mReverbDelayL.process(dataL);
-        dataR = mReverbDelayR.process(dataR);
+    /* The reverb feeds back through the delays, so a chunk may not be
+     * longer than either delay: all its echoes then come from history. */
+    uint32_t maximumChunk = min(VIRTUALIZER_CHUNK_FRAMES,
+        min(mReverbDelayL.getLength(), mReverbDelayR.getLength()));
 
-        if (mWide) {
-            dataR = -dataR;
+    uint32_t frames;
+    for (uint32_t offset = 0; offset < in->frameCount; offset += frames) {
+        frames = min(in->frameCount - offset, maximumChunk);
+
+        readPlanar(in, offset, frames, planes);
+
+        /* calculate reverb wet into wetL, wetR */
+        mReverbDelayL.read(wetL, frames);
+        mReverbDelayR.read(wetR, frames);
+        for (uint32_t i = 0; i < frames; i ++) {
+            int32_t dataL = wetL[i];
+            int32_t dataR = wetR[i];
+
+            if (p.mWide) {
+                dataR = -dataR;
+            }
+
+            wetL[i] = dataL * p.mLevel >> 32;
+            wetR[i] = dataR * p.mLevel >> 32;
+        }
+
+        /* Each delay line hears the other's previous echo. */
+        for (uint32_t i = 0; i < frames; i ++) {
+            feedL[i] = dryL[i];
+            feedR[i] = dryR[i];
+            if (p.mDeep) {
+                /* Note: a pinking filter here would be good. */
+                feedL[i] += mDelayDataR;
+                feedR[i] += mDelayDataL;
+            }
+            mDelayDataL = wetL[i];
+            mDelayDataR = wetR[i];
         }
+        mReverbDelayL.write(feedL, frames);
+        mReverbDelayR.write(feedR, frames);
 
-        dataL = dataL * mLevel >> 32;
-        dataR = dataR * mLevel >> 32;
+        for (uint32_t i = 0; i < frames; i ++) {
+            /* Reverb wet done; mix with dry and do headphone virtualization */
+            int32_t dataL = wetL[i] + dryL[i];
+            int32_t dataR = wetR[i] + dryR[i];
 
-        mDelayDataL = dataL;
-        mDelayDataR = dataR;
+            /* Center channel. */
+            int32_t center  = (dataL + dataR) >> 1;
+            /* Direct radiation components. */
+            int32_t side = (dataL - dataR) >> 1;
 
-        /* Reverb wet done; mix with dry and do headphone virtualization */
-        dataL += dryL;
-        dataR += dryR;
+            /* Adjust derived center channel coloration to emphasize forward
+             * direction impression. (XXX: disabled until configurable). */
+            //center = mColorization.process(center);
+            /* Sound reaching ear from the opposite speaker */
+            side -= mLocalization.process(side);
 
-        /* Center channel. */
-        int32_t center  = (dataL + dataR) >> 1;
-        /* Direct radiation components. */
-        int32_t side = (dataL - dataR) >> 1;
+            dryL[i] = center + side;
+            dryR[i] = center - side;
+        }
 
-        /* Adjust derived center channel coloration to emphasize forward
-         * direction impression. (XXX: disabled until configurable). */
-        //center = mColorization.process(center);
-        /* Sound reaching ear from the opposite speaker */
-        side -= mLocalization.process(side);
+        writePlanar(out, offset, frames, planes);
+    }
+}
 
-        write(out, i * 2, center + side);
-        write(out, i * 2 + 1, center - side);
+/* Only the front pair is virtualized. Further channels pass through, and
+ * so does mono, which has no stereo image to work with. */
+int32_t EffectVirtualizer::processBlock(audio_buffer_t* in, audio_buffer_t* out)
+{
+    const VirtualizerParameters& p = mParameters.acquire();
+    if (p.mConvolverGeneration != mConvolverSeen) {
+        android_atomic_release_store(p.mConvolverGeneration, &mConvolverSeen);
     }
 
-    return mEnable ? 0 : -ENODATA;
+    if (mChannels < 2) {
+        for (uint32_t i = 0; i < in->frameCount; i ++) {
+            write(out, i, read(in, i));
+        }
+    } else if (p.mConvolver != 0) {
+        processConvolution(p.mConvolver, in, out);
+    } else {
+        processRoom(p, in, out);
+    }
+    return 0;
 }
-
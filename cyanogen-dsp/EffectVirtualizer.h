@@ -3,26 +3,70 @@
 #include <audio_effects/effect_virtualizer.h>
 
 #include "Biquad.h"
+#include "CoefficientStore.h"
+#include "Convolver.h"
 #include "Delay.h"
 #include "Effect.h"
 #include "FIR16.h"
+#include "ImpulseResponse.h"
+#include "ParameterBlock.h"
 
-class EffectVirtualizer : public Effect {
-    private:
-    int16_t mStrength;
+/* int32 frames, int32 sampling rate: starts receiving an impulse response
+ * of that many frames, dropping any that was not finished. 0 frames selects
+ * the room effect. */
+#define CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE 1000
+/* float[]: the next frames of the impulse response being received, as
+ * LL, LR, RL, RR per frame. The response is used once the last one is in. */
+#define CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_DATA 1001
 
+/* Frames processed per pass; also bounded by the Haas delays. */
+#define VIRTUALIZER_CHUNK_FRAMES 256
+
+struct VirtualizerParameters {
     bool mDeep, mWide;
     int64_t mLevel;
+    /* Replaces the room effect when not NULL. */
+    Convolver *mConvolver;
+    int32_t mConvolverGeneration;
+};
+
+/* Convolver replaced in mGeneration, deleted once process() has seen it. */
+struct RetiredConvolver {
+    Convolver *mConvolver;
+    int32_t mGeneration;
+    RetiredConvolver *mNext;
+};
+
+class EffectVirtualizer : public Effect {
+    private:
+    int16_t mStrength;
+    ParameterBlock<VirtualizerParameters> mParameters;
 
     Delay mReverbDelayL, mReverbDelayR;
     int64_t mDelayDataL, mDelayDataR;
     Biquad mLocalization;
+    int32_t mLocalizationHandle;
+
+    /* Command thread ownership of impulse response convolvers */
+    ImpulseResponse *mPendingResponse;
+    Convolver *mConvolver;
+    int32_t mConvolverGeneration;
+    RetiredConvolver *mRetired;
+    /* Last generation picked up by process() */
+    volatile int32_t mConvolverSeen;
 
     void refreshStrength();
+    int32_t beginImpulseResponse(int32_t length, int32_t samplingRate);
+    int32_t appendImpulseResponse(const float *frames, int32_t count);
+    void setConvolver(Convolver *convolver);
+    void collectRetired(bool all);
+    void processConvolution(Convolver *convolver, audio_buffer_t *in, audio_buffer_t *out);
+    void processRoom(const VirtualizerParameters& p, audio_buffer_t *in, audio_buffer_t *out);
 
     public:
     EffectVirtualizer();
+    ~EffectVirtualizer();
 
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
-    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    int32_t processBlock(audio_buffer_t *in, audio_buffer_t *out);
 };
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "FFT.h"
+
+#include <math.h>
+
+FFT::FFT()
+    : mSize(0), mCos(0), mSin(0), mReverse(0)
+{
+}
+
+FFT::~FFT()
+{
+    delete[] mCos;
+    delete[] mSin;
+    delete[] mReverse;
+}
+
+void FFT::setSize(int32_t size)
+{
+    delete[] mCos;
+    delete[] mSin;
+    delete[] mReverse;
+
+    mSize = size;
+    mCos = new float[size / 2];
+    mSin = new float[size / 2];
+    for (int32_t i = 0; i < size / 2; i ++) {
+        double w = 2.0 * M_PI * i / size;
+        mCos[i] = float(cos(w));
+        mSin[i] = float(sin(w));
+    }
+
+    int32_t bits = 0;
+    while ((1 << bits) < size) {
+        bits ++;
+    }
+    mReverse = new int32_t[size];
+    for (int32_t i = 0; i < size; i ++) {
+        int32_t r = 0;
+        for (int32_t b = 0; b < bits; b ++) {
+            if (i & (1 << b)) {
+                r |= 1 << (bits - 1 - b);
+            }
+        }
+        mReverse[i] = r;
+    }
+}
+
+int32_t FFT::getSize() const
+{
+    return mSize;
+}
+
+void FFT::transform(float *re, float *im, bool inverse) const
+{
+    for (int32_t i = 0; i < mSize; i ++) {
+        int32_t j = mReverse[i];
+        if (j > i) {
+            float t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+        }
+    }
+
+    /* Forward transform uses exp(-i w), inverse exp(i w). */
+    float sign = inverse ? 1.0f : -1.0f;
+    for (int32_t length = 2; length <= mSize; length <<= 1) {
+        int32_t half = length >> 1;
+        int32_t step = mSize / length;
+        for (int32_t i = 0; i < mSize; i += length) {
+            for (int32_t j = 0; j < half; j ++) {
+                float wr = mCos[j * step];
+                float wi = sign * mSin[j * step];
+                int32_t a = i + j;
+                int32_t b = a + half;
+                float tr = re[b] * wr - im[b] * wi;
+                float ti = re[b] * wi + im[b] * wr;
+                re[b] = re[a] - tr;
+                im[b] = im[a] - ti;
+                re[a] += tr;
+                im[a] += ti;
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+#pragma once
+
+#include <stdint.h>
+
+/* Radix-2 complex FFT on split real and imaginary arrays. */
+class FFT {
+    int32_t mSize;
+    /* Twiddle factors for one half turn */
+    float *mCos, *mSin;
+    int32_t *mReverse;
+
+    public:
+    FFT();
+    ~FFT();
+    /* Size must be a power of two. Allocates; not for the audio thread. */
+    void setSize(int32_t size);
+    int32_t getSize() const;
+    /* In-place transform. The inverse is not scaled by 1 / size. */
+    void transform(float *re, float *im, bool inverse) const;
+};
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "Halfband.h"
+
+HalfbandDecimator::HalfbandDecimator()
+    : mCenter(0), mFirst(0), mHaveFirst(false)
+{
+    mEven[0] = mEven[1] = mEven[2] = 0;
+}
+
+int32_t HalfbandDecimator::process(const int32_t *in, int32_t *out, int32_t frames)
+{
+    int32_t e0 = mEven[0], e1 = mEven[1], e2 = mEven[2];
+    int32_t center = mCenter;
+    int32_t first = mFirst;
+
+    int32_t n = 0;
+    int32_t i = 0;
+    if (mHaveFirst) {
+        i = -1;
+    }
+    for (; i + 1 < frames; i += 2) {
+        int32_t a = i >= 0 ? in[i] : first;
+        int32_t b = in[i + 1];
+
+        /* 16 / 32 on the center tap; the rest fits in 32 bits for 8.24 input */
+        int32_t inner = e0 + e1;
+        int32_t outer = b + e2;
+        out[n ++] = (center >> 1) + (((inner << 3) + inner - outer) >> 5);
+
+        e2 = e1;
+        e1 = e0;
+        e0 = b;
+        center = a;
+    }
+    mHaveFirst = i < frames;
+    if (mHaveFirst) {
+        mFirst = i >= 0 ? in[i] : first;
+    }
+
+    mEven[0] = e0;
+    mEven[1] = e1;
+    mEven[2] = e2;
+    mCenter = center;
+    return n;
+}
+
+HalfbandInterpolator::HalfbandInterpolator()
+{
+    mState[0] = mState[1] = mState[2] = 0;
+}
+
+void HalfbandInterpolator::process(const int32_t *in, int32_t *out, int32_t frames)
+{
+    int32_t s1 = mState[0], s2 = mState[1], s3 = mState[2];
+
+    /* Zero-stuffed input through the doubled filter: the even phase is the
+     * center tap alone, the odd phase a 4-point interpolation. */
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t s0 = in[i];
+        int32_t inner = s2 + s1;
+        int32_t outer = s3 + s0;
+        out[i * 2] = s2;
+        out[i * 2 + 1] = ((inner << 3) + inner - outer) >> 4;
+        s3 = s2;
+        s2 = s1;
+        s1 = s0;
+    }
+
+    mState[0] = s1;
+    mState[1] = s2;
+    mState[2] = s3;
+}
@@ -0,0 +1,33 @@
+#pragma once
+
+#include <stdint.h>
+
+/* 7-tap half-band filter (-1, 0, 9, 16, 9, 0, -1) / 32 used to halve or
+ * double the sampling rate. It has a fourth order zero at the Nyquist
+ * frequency and is flat at low frequencies, which is all that narrowband
+ * low-frequency processing needs. Multiplications are shifts and adds,
+ * and the polyphase form only evaluates the taps that are not zero. */
+
+class HalfbandDecimator {
+    /* Recent second samples of each input pair, newest first */
+    int32_t mEven[3];
+    /* First sample of the previous pair; lands on the center tap */
+    int32_t mCenter;
+    /* First sample of a pair split across calls */
+    int32_t mFirst;
+    bool mHaveFirst;
+
+    public:
+    HalfbandDecimator();
+    /* Returns the number of samples written to out, at half the rate. */
+    int32_t process(const int32_t *in, int32_t *out, int32_t frames);
+};
+
+class HalfbandInterpolator {
+    int32_t mState[3];
+
+    public:
+    HalfbandInterpolator();
+    /* Writes frames * 2 samples to out. */
+    void process(const int32_t *in, int32_t *out, int32_t frames);
+};
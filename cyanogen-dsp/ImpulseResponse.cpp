@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "DSP-ImpulseResponse"
+
+#include <cutils/log.h>
+#include "ImpulseResponse.h"
+
+#include <math.h>
+
+ImpulseResponse::ImpulseResponse(int32_t length, int32_t samplingRate)
+    : mLength(length), mFilled(0), mSamplingRate(samplingRate)
+{
+    for (int32_t i = 0; i < 4; i ++) {
+        mData[i] = new float[length];
+    }
+}
+
+ImpulseResponse::~ImpulseResponse()
+{
+    for (int32_t i = 0; i < 4; i ++) {
+        delete[] mData[i];
+    }
+}
+
+bool ImpulseResponse::append(const float *frames, int32_t count)
+{
+    if (count < 0 || count > mLength - mFilled) {
+        LOGE("%d more frames do not fit in %d, of which %d are filled", count, mLength, mFilled);
+        return false;
+    }
+    for (int32_t i = 0; i < count * 4; i ++) {
+        if (! isfinite(frames[i])) {
+            LOGE("Impulse response sample %d is not a number", mFilled * 4 + i);
+            return false;
+        }
+    }
+    for (int32_t i = 0; i < count; i ++) {
+        for (int32_t c = 0; c < 4; c ++) {
+            mData[c][mFilled + i] = frames[i * 4 + c];
+        }
+    }
+    mFilled += count;
+    return true;
+}
+
+bool ImpulseResponse::isComplete() const
+{
+    return mFilled == mLength;
+}
+
+const float *const *ImpulseResponse::getData() const
+{
+    return mData;
+}
+
+int32_t ImpulseResponse::getLength() const
+{
+    return mLength;
+}
+
+int32_t ImpulseResponse::getSamplingRate() const
+{
+    return mSamplingRate;
+}
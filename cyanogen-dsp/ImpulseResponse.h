@@ -0,0 +1,30 @@
+#pragma once
+
+#include <stdint.h>
+
+/* Longest response accepted, in frames. */
+#define IMPULSE_RESPONSE_MAXIMUM_LENGTH 4096
+
+/* Stereo headphone impulse response set: the left to left, left to right,
+ * right to left and right to right paths.
+ *
+ * The app reads and checks the WAV file and sends the frames over in
+ * pieces, so the media server never opens a file a client names. */
+class ImpulseResponse {
+    float *mData[4];
+    int32_t mLength;
+    int32_t mFilled;
+    int32_t mSamplingRate;
+
+    public:
+    /* length must be 1 .. IMPULSE_RESPONSE_MAXIMUM_LENGTH */
+    ImpulseResponse(int32_t length, int32_t samplingRate);
+    ~ImpulseResponse();
+    /* Adds count frames of four interleaved paths after those already
+     * received. Fails if they do not fit or a sample is not finite. */
+    bool append(const float *frames, int32_t count);
+    bool isComplete() const;
+    const float *const *getData() const;
+    int32_t getLength() const;
+    int32_t getSamplingRate() const;
+};
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <math.h>
+#include <string.h>
+
+#include "Limiter.h"
+
+#define GAIN_UNITY (1 << 24)
+
+Limiter::Limiter()
+    : mCeiling(GAIN_UNITY)
+{
+    configure(44100, 2);
+}
+
+void Limiter::configure(float samplingRate, int32_t channels)
+{
+    mChannels = channels;
+    mWindowShift = 0;
+    while ((1 << mWindowShift) < LIMITER_MAXIMUM_WINDOW
+           && (1 << mWindowShift) < samplingRate * LIMITER_LOOKAHEAD) {
+        mWindowShift ++;
+    }
+    mWindow = 1 << mWindowShift;
+    mReleaseCoefficient = int32_t((1.0f - expf(-1.0f / (LIMITER_RELEASE * samplingRate))) * GAIN_UNITY);
+    reset();
+}
+
+void Limiter::setCeiling(int32_t ceiling)
+{
+    mCeiling = ceiling;
+}
+
+int32_t Limiter::getLatency() const
+{
+    return mWindow - 1;
+}
+
+int32_t Limiter::getGain() const
+{
+    return mGain;
+}
+
+void Limiter::reset()
+{
+    mTime = 0;
+    memset(mDelay, 0, sizeof(mDelay));
+    mPeakHead = 0;
+    mPeakCount = 0;
+    mGain = GAIN_UNITY;
+    for (int32_t i = 0; i < LIMITER_MAXIMUM_WINDOW; i ++) {
+        mGainHistory[i] = GAIN_UNITY;
+    }
+    mGainSum = int64_t(GAIN_UNITY) << mWindowShift;
+}
+
+/* The gain required by the loudest sample in the window is held for the
+ * whole window, and then averaged over another window. Every gain that goes
+ * into the average was computed over a window containing the sample leaving
+ * the delay line, so the average can never exceed the gain that sample needs
+ * even though the reduction starts ramping in a window ahead of it. */
+void Limiter::process(int32_t *samples, int32_t frames)
+{
+    const int32_t mask = mWindow - 1;
+    const int32_t dequeMask = LIMITER_MAXIMUM_WINDOW - 1;
+
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t *frame = samples + i * mChannels;
+        int32_t peak = 0;
+        for (int32_t c = 0; c < mChannels; c ++) {
+            int32_t magnitude = frame[c] < 0 ? -frame[c] : frame[c];
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+
+        /* Drop the peak leaving the window first: with a falling envelope
+         * the deque holds a whole window, and the new sample would
+         * otherwise overwrite the head. */
+        if (mPeakCount != 0 && int32_t(mTime - mPeakTime[mPeakHead]) >= mWindow) {
+            mPeakHead = (mPeakHead + 1) & dequeMask;
+            mPeakCount --;
+        }
+
+        /* Anything not louder than the new sample can never be the maximum
+         * again. Each sample enters and leaves the deque once. */
+        while (mPeakCount != 0
+               && mPeakValue[(mPeakHead + mPeakCount - 1) & dequeMask] <= peak) {
+            mPeakCount --;
+        }
+        int32_t tail = (mPeakHead + mPeakCount) & dequeMask;
+        mPeakTime[tail] = mTime;
+        mPeakValue[tail] = peak;
+        mPeakCount ++;
+
+        int32_t maximum = mPeakValue[mPeakHead];
+        int32_t target = GAIN_UNITY;
+        if (maximum > mCeiling) {
+            /* Integer division rounds down, so the gain never lets the peak
+             * past the ceiling. */
+            target = int32_t((int64_t(mCeiling) << 24) / maximum);
+        }
+
+        if (target < mGain) {
+            mGain = target;
+        } else {
+            mGain += int32_t(int64_t(target - mGain) * mReleaseCoefficient >> 24);
+        }
+
+        int32_t position = mTime & mask;
+        mGainSum += mGain - mGainHistory[position];
+        mGainHistory[position] = mGain;
+        int32_t gain = int32_t(mGainSum >> mWindowShift);
+
+        int32_t *current = mDelay + position * mChannels;
+        const int32_t *oldest = mDelay + ((position + 1) & mask) * mChannels;
+        for (int32_t c = 0; c < mChannels; c ++) {
+            current[c] = frame[c];
+            frame[c] = int32_t(int64_t(oldest[c]) * gain >> 24);
+        }
+
+        mTime ++;
+    }
+}
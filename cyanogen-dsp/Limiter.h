@@ -0,0 +1,49 @@
+#pragma once
+
+#include <stdint.h>
+
+/* The look-ahead window is the smallest power of two covering this long. */
+#define LIMITER_LOOKAHEAD 0.0015f
+/* Enough for 1.5 ms at 96 kHz. Must be a power of two. */
+#define LIMITER_MAXIMUM_WINDOW 256
+#define LIMITER_RELEASE 0.05f
+#define LIMITER_MAXIMUM_CHANNELS 8
+
+/* Channel-linked brick-wall limiter working on 8.24 samples. The output is
+ * delayed by getLatency() frames and never exceeds the ceiling. */
+class Limiter {
+    int32_t mChannels;
+    int32_t mWindow;
+    int32_t mWindowShift;
+    int32_t mCeiling;
+    int32_t mReleaseCoefficient;
+
+    uint32_t mTime;
+    /* Input, interleaved, until it leaves the look-ahead window */
+    int32_t mDelay[LIMITER_MAXIMUM_WINDOW * LIMITER_MAXIMUM_CHANNELS];
+
+    /* Monotonic deque of peaks within the window, largest at the head */
+    int32_t mPeakTime[LIMITER_MAXIMUM_WINDOW];
+    int32_t mPeakValue[LIMITER_MAXIMUM_WINDOW];
+    int32_t mPeakHead;
+    int32_t mPeakCount;
+
+    /* Gain after release, and its moving sum over the window */
+    int32_t mGain;
+    int32_t mGainHistory[LIMITER_MAXIMUM_WINDOW];
+    int64_t mGainSum;
+
+    public:
+    Limiter();
+    void configure(float samplingRate, int32_t channels);
+    /* Peak level to hold the output at, 8.24 */
+    void setCeiling(int32_t ceiling);
+    int32_t getLatency() const;
+    /* Gain the output is held to or releasing from, 8.24. Readable from
+     * other threads for metering. */
+    int32_t getGain() const;
+    void reset();
+
+    /* Limits interleaved frames in place. */
+    void process(int32_t *samples, int32_t frames);
+};
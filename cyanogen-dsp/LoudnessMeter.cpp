@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <math.h>
+#include <string.h>
+
+#include "Decibels.h"
+#include "LoudnessMeter.h"
+
+/* Offset from mean square power to LUFS */
+#define LOUDNESS_OFFSET -0.691f
+/* Gating blocks more than this far below the ungated mean are ignored. */
+#define LOUDNESS_RELATIVE_GATE -10.0f
+
+float LoudnessMeter::toLoudness(double power)
+{
+    float loudness = LOUDNESS_OFFSET + Decibels::fromPower(float(power) + 1e-10f);
+    return loudness < LOUDNESS_SILENCE ? LOUDNESS_SILENCE : loudness;
+}
+
+static double toPower(float loudness)
+{
+    return pow(10.0, (loudness - LOUDNESS_OFFSET) / 10.0);
+}
+
+LoudnessMeter::LoudnessMeter()
+{
+    configure(44100, 2);
+}
+
+/* The K-weighting pre-filter of BS.1770: a high shelf modelling the head,
+ * followed by a high-pass. The reference gives coefficients for 48 kHz
+ * only; these are the analog prototypes it was derived from. */
+void LoudnessMeter::configure(float samplingRate, int32_t channels)
+{
+    mChannels = channels;
+    for (int32_t c = 0; c < channels; c ++) {
+        mWeight[c] = 256;
+        if (channels >= 6 && c == 3) {
+            mWeight[c] = 0;
+        }
+        if (channels >= 6 && c > 3) {
+            /* +1.5 dB */
+            mWeight[c] = 362;
+        }
+    }
+
+    BiquadCoefficients shelf;
+    double k = tan(M_PI * 1681.974450955533 / samplingRate);
+    double q = 0.7071752369554196;
+    double vh = pow(10.0, 3.999843853973347 / 20.0);
+    double vb = pow(vh, 0.4996667741545416);
+    Biquad::computeCoefficients(shelf,
+        1.0 + k / q + k * k, 2.0 * (k * k - 1.0), 1.0 - k / q + k * k,
+        vh + vb * k / q + k * k, 2.0 * (k * k - vh), vh - vb * k / q + k * k);
+
+    BiquadCoefficients highPass;
+    k = tan(M_PI * 38.13547087602444 / samplingRate);
+    q = 0.5003270373238773;
+    Biquad::computeCoefficients(highPass,
+        1.0 + k / q + k * k, 2.0 * (k * k - 1.0), 1.0 - k / q + k * k,
+        1.0, -2.0, 1.0);
+
+    for (int32_t c = 0; c < LOUDNESS_MAXIMUM_CHANNELS; c ++) {
+        mShelf[c].reset();
+        mShelf[c].setCoefficients(0, shelf);
+        mHighPass[c].reset();
+        mHighPass[c].setCoefficients(0, highPass);
+    }
+
+    mBlockFrames = int32_t(samplingRate * LOUDNESS_BLOCK_TIME);
+    reset();
+}
+
+void LoudnessMeter::reset()
+{
+    mBlockFill = 0;
+    mEnergy = 0;
+    mRecentEnergy = 0;
+    mRecentFrames = 0;
+    memset(mBlockPower, 0, sizeof(mBlockPower));
+    mBlockIndex = 0;
+    mBlocks = 0;
+    mMomentarySum = 0;
+    mShortTermSum = 0;
+    mMomentary = LOUDNESS_SILENCE;
+    mShortTerm = LOUDNESS_SILENCE;
+    memset(mHistogram, 0, sizeof(mHistogram));
+}
+
+void LoudnessMeter::process(int32_t *const planes[], int32_t frames)
+{
+    for (int32_t offset = 0; offset < frames; ) {
+        int32_t count = mBlockFrames - mBlockFill;
+        if (count > frames - offset) {
+            count = frames - offset;
+        }
+        if (mRecentFrames >= mBlockFrames) {
+            mRecentEnergy = 0;
+            mRecentFrames = 0;
+        }
+
+        for (int32_t c = 0; c < mChannels; c ++) {
+            if (mWeight[c] == 0) {
+                continue;
+            }
+            const int32_t *samples = planes[c] + offset;
+            uint64_t energy = 0;
+            for (int32_t i = 0; i < count; i ++) {
+                int32_t weighted = mHighPass[c].process(mShelf[c].process(samples[i]));
+                energy += uint64_t(int64_t(weighted) * weighted >> 16);
+            }
+            mEnergy += energy * mWeight[c];
+            mRecentEnergy += energy * mWeight[c];
+        }
+
+        mBlockFill += count;
+        mRecentFrames += count;
+        if (mBlockFill == mBlockFrames) {
+            endBlock();
+        }
+        offset += count;
+    }
+}
+
+/* The windows slide by one block: add the new block power to the running
+ * sums and take out the one that fell off the end. Every momentary window
+ * is also a gating block of integrated loudness, which goes into a
+ * histogram instead of a list so that memory stays bounded. */
+void LoudnessMeter::endBlock()
+{
+    float power = mEnergy / (float(mBlockFrames) * float(int64_t(1) << 40));
+    mEnergy = 0;
+    mBlockFill = 0;
+
+    const int32_t mask = LOUDNESS_HISTORY - 1;
+    mMomentarySum += power - mBlockPower[(mBlockIndex - LOUDNESS_MOMENTARY_BLOCKS) & mask];
+    mShortTermSum += power - mBlockPower[(mBlockIndex - LOUDNESS_SHORT_TERM_BLOCKS) & mask];
+    mBlockPower[mBlockIndex] = power;
+    mBlockIndex = (mBlockIndex + 1) & mask;
+    /* Rounding could leave the sums slightly negative after silence. */
+    if (mMomentarySum < 0) {
+        mMomentarySum = 0;
+    }
+    if (mShortTermSum < 0) {
+        mShortTermSum = 0;
+    }
+
+    mMomentary = toLoudness(mMomentarySum / LOUDNESS_MOMENTARY_BLOCKS);
+    mShortTerm = toLoudness(mShortTermSum / LOUDNESS_SHORT_TERM_BLOCKS);
+
+    if (mBlocks < LOUDNESS_MOMENTARY_BLOCKS) {
+        mBlocks ++;
+        if (mBlocks < LOUDNESS_MOMENTARY_BLOCKS) {
+            return;
+        }
+    }
+    if (mMomentary > LOUDNESS_SILENCE) {
+        int32_t bin = int32_t((mMomentary - LOUDNESS_SILENCE) * 10.0f);
+        if (bin >= LOUDNESS_HISTOGRAM_BINS) {
+            bin = LOUDNESS_HISTOGRAM_BINS - 1;
+        }
+        mHistogram[bin] ++;
+    }
+}
+
+float LoudnessMeter::takeRecentPower()
+{
+    if (mRecentFrames == 0) {
+        return 0;
+    }
+    float power = mRecentEnergy / (float(mRecentFrames) * float(int64_t(1) << 40));
+    mRecentEnergy = 0;
+    mRecentFrames = 0;
+    return power;
+}
+
+float LoudnessMeter::getMomentary() const
+{
+    return mMomentary;
+}
+
+float LoudnessMeter::getShortTerm() const
+{
+    return mShortTerm;
+}
+
+/* Called off the audio thread, so a block may land in the histogram while
+ * we read it. That can only move the result by one gating block. */
+float LoudnessMeter::getIntegrated() const
+{
+    double sum = 0;
+    uint32_t count = 0;
+    for (int32_t i = 0; i < LOUDNESS_HISTOGRAM_BINS; i ++) {
+        if (mHistogram[i] != 0) {
+            sum += mHistogram[i] * toPower(LOUDNESS_SILENCE + (i + 0.5f) / 10.0f);
+            count += mHistogram[i];
+        }
+    }
+    if (count == 0) {
+        return LOUDNESS_SILENCE;
+    }
+
+    float gate = toLoudness(sum / count) + LOUDNESS_RELATIVE_GATE;
+    int32_t first = int32_t((gate - LOUDNESS_SILENCE) * 10.0f);
+    if (first < 0) {
+        first = 0;
+    }
+    sum = 0;
+    count = 0;
+    for (int32_t i = first; i < LOUDNESS_HISTOGRAM_BINS; i ++) {
+        if (mHistogram[i] != 0) {
+            sum += mHistogram[i] * toPower(LOUDNESS_SILENCE + (i + 0.5f) / 10.0f);
+            count += mHistogram[i];
+        }
+    }
+    return count == 0 ? LOUDNESS_SILENCE : toLoudness(sum / count);
+}
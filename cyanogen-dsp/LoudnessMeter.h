@@ -0,0 +1,73 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "Biquad.h"
+
+/* ITU-R BS.1770 / EBU R128 measurement is done in 100 ms blocks. Momentary
+ * loudness covers the last 4 blocks and short-term loudness the last 30. */
+#define LOUDNESS_BLOCK_TIME 0.1f
+#define LOUDNESS_MOMENTARY_BLOCKS 4
+#define LOUDNESS_SHORT_TERM_BLOCKS 30
+#define LOUDNESS_MAXIMUM_CHANNELS 8
+/* Ring of block powers. Must be a power of two. */
+#define LOUDNESS_HISTORY 32
+
+/* Absolute gate of integrated loudness, and the reading for silence */
+#define LOUDNESS_SILENCE -70.0f
+/* Integrated loudness histogram: 0.1 LU bins from the absolute gate up */
+#define LOUDNESS_HISTOGRAM_BINS 800
+
+/* Sound pressure level we assume a 0 LUFS signal plays at */
+#define LOUDNESS_FULL_SCALE_SPL 96.0f
+
+/* Streaming loudness meter for planar 8.24 input. Channels are taken to be
+ * in Android order, so in 5.1 and 7.1 the fourth is LFE and the ones after
+ * it surrounds. Each block costs O(1);
+ * only getIntegrated() walks the histogram, and it is meant for the command
+ * thread. */
+class LoudnessMeter {
+    int32_t mChannels;
+    /* BS.1770 channel weights, 8.8 */
+    int32_t mWeight[LOUDNESS_MAXIMUM_CHANNELS];
+    Biquad mShelf[LOUDNESS_MAXIMUM_CHANNELS];
+    Biquad mHighPass[LOUDNESS_MAXIMUM_CHANNELS];
+
+    int32_t mBlockFrames;
+    int32_t mBlockFill;
+    /* K-weighted energy of the current block, summed over channels, 24.40 */
+    uint64_t mEnergy;
+    /* The same since takeRecentPower() was last called */
+    uint64_t mRecentEnergy;
+    int32_t mRecentFrames;
+
+    float mBlockPower[LOUDNESS_HISTORY];
+    int32_t mBlockIndex;
+    int32_t mBlocks;
+    double mMomentarySum;
+    double mShortTermSum;
+
+    float mMomentary;
+    float mShortTerm;
+    uint32_t mHistogram[LOUDNESS_HISTOGRAM_BINS];
+
+    void endBlock();
+
+    public:
+    LoudnessMeter();
+    void configure(float samplingRate, int32_t channels);
+    void reset();
+    void process(int32_t *const planes[], int32_t frames);
+
+    /* Readings in LUFS, never below LOUDNESS_SILENCE */
+    float getMomentary() const;
+    float getShortTerm() const;
+    float getIntegrated() const;
+
+    /* K-weighted mean square power since the previous call, for detectors
+     * that need to react faster than a block. Forgotten after a block if
+     * nobody takes it. */
+    float takeRecentPower();
+    /* Mean square power to LUFS */
+    static float toLoudness(double power);
+};
@@ -0,0 +1,66 @@
+#pragma once
+
+#include <stdint.h>
+#include <string.h>
+#include <cutils/atomic.h>
+
+/* Hands a block of parameters from the command thread to the audio thread
+ * without locks and without ever exposing a half-written block.
+ *
+ * There are two copies. The audio thread owns one of them between calls to
+ * acquire(); the writer fills the other one and publishes it by setting the
+ * pending flag. acquire() swaps to the pending copy at buffer start. Should
+ * the writer want to update again before that happens, edit() takes the
+ * pending copy back with a compare-and-swap, so the writer never waits.
+ *
+ * Only one writer is supported; effect commands are serialized by
+ * AudioFlinger. */
+template <typename T>
+class ParameterBlock {
+    T mSlot[2];
+    /* bit 0: pending, bit 1: index of the copy owned by the audio thread */
+    volatile int32_t mState;
+    /* writer side: copy holding the most recently published values */
+    int32_t mLatest;
+    int32_t mEditing;
+
+    public:
+    ParameterBlock()
+        : mState(0), mLatest(0), mEditing(1)
+    {
+        memset(mSlot, 0, sizeof(mSlot));
+    }
+
+    /* Returns the inactive copy, initialized to the latest published values. */
+    T& edit() {
+        int32_t state;
+        do {
+            state = android_atomic_acquire_load(&mState);
+        } while ((state & 1) && android_atomic_acquire_cas(state, state & ~1, &mState));
+
+        mEditing = ((state >> 1) & 1) ^ 1;
+        if (mLatest != mEditing) {
+            mSlot[mEditing] = mSlot[mLatest];
+        }
+        return mSlot[mEditing];
+    }
+
+    void publish() {
+        mLatest = mEditing;
+        android_atomic_release_store(((mEditing ^ 1) << 1) | 1, &mState);
+    }
+
+    /* Audio thread: call once at the start of each buffer. */
+    const T& acquire() {
+        int32_t state = android_atomic_acquire_load(&mState);
+        if (state & 1) {
+            int32_t swapped = (((state >> 1) & 1) ^ 1) << 1;
+            if (android_atomic_acquire_cas(state, swapped, &mState) == 0) {
+                state = swapped;
+            } else {
+                state = android_atomic_acquire_load(&mState);
+            }
+        }
+        return mSlot[(state >> 1) & 1];
+    }
+};
@@ -18,12 +18,14 @@
 
 #include <cutils/log.h>
 #include <string.h>
+#include <time.h>
 #include <media/AudioEffect.h>
 #include <hardware/audio_effect.h>
 #include <audio_effects/effect_bassboost.h>
 #include <audio_effects/effect_equalizer.h>
 #include <audio_effects/effect_virtualizer.h>
 
+#include "CoefficientStore.h"
 #include "Effect.h"
 #include "EffectBassBoost.h"
 #include "EffectCompression.h"
@@ -35,8 +37,8 @@ static effect_descriptor_t compression_descriptor = {
 	{ 0xf27317f4, 0xc984, 0x4de6, 0x9a90, { 0x54, 0x57, 0x59, 0x49, 0x5b, 0xf2 } }, // own UUID
 	EFFECT_CONTROL_API_VERSION,
 	EFFECT_FLAG_INSERT_FIRST | EFFECT_FLAG_VOLUME_CTRL,
-	10, /* 1 MIPS. FIXME: should be measured. */
-	1,
+	10, /* 1 MIPS; live instances report measured load. */
+	(sizeof(EffectCompression) + 1023) / 1024,
 	"CyanogenMod's Dynamic Range Compression",
 	"Antti S. Lankila"
 };
@@ -46,8 +48,8 @@ static effect_descriptor_t virtualizer_descriptor = {
 	{ 0x7c6cc5f8, 0x6f34, 0x4449, 0xa282, { 0xbe, 0xd8, 0x4f, 0x1a, 0x5b, 0x5a } }, // own UUID
 	EFFECT_CONTROL_API_VERSION,
 	EFFECT_FLAG_INSERT_LAST,
-	10, /* 1 MIPS. FIXME: should be measured. */
-	1,
+	10, /* 1 MIPS; live instances report measured load. */
+	(sizeof(EffectVirtualizer) + 1023) / 1024,
 	"CyanogenMod's Headset Virtualization",
 	"Antti S. Lankila"
 };
@@ -57,8 +59,8 @@ static effect_descriptor_t equalizer_descriptor = {
         { 0x58bc9000, 0x0d7f, 0x462e, 0x90d2, { 0x03, 0x5e, 0xdd, 0xd8, 0xb4, 0x34 } }, // own UUID
 	EFFECT_CONTROL_API_VERSION,
 	0,
-	10, /* 1 MIPS. FIXME: should be measured. */
-	1,
+	10, /* 1 MIPS; live instances report measured load. */
+	(sizeof(EffectEqualizer) + 1023) / 1024,
 	"CyanogenMod's Equalizer",
 	"Antti S. Lankila"
 };
@@ -68,8 +70,8 @@ static effect_descriptor_t bassboost_descriptor = {
 	{ 0x42b5cbf5, 0x4dd8, 0x4e79, 0xa5fb, { 0xcc, 0xeb, 0x2c, 0xb5, 0x4e, 0x13 } }, // own UUID
 	EFFECT_CONTROL_API_VERSION,
 	0,
-	10, /* 1 MIPS. FIXME: should be measured. */
-	1,
+	10, /* 1 MIPS; live instances report measured load. */
+	(sizeof(EffectBassBoost) + 1023) / 1024,
 	"CyanogenMod's Bass Boost",
 	"Antti S. Lankila"
 };
@@ -83,9 +85,18 @@ struct effect_module_s {
 	effect_descriptor_t *descriptor;
 };
 
+static int64_t now() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return int64_t(ts.tv_sec) * 1000000000 + ts.tv_nsec;
+}
+
 static int32_t generic_process(effect_handle_t self, audio_buffer_t *in, audio_buffer_t *out) {
 	struct effect_module_s *e = (struct effect_module_s *) self;
-	return e->effect->process(in, out);
+	int64_t start = now();
+	int32_t ret = e->effect->process(in, out);
+	e->effect->accountProcess(in->frameCount, now() - start);
+	return ret;
 }
 
 static int32_t generic_command(effect_handle_t self, uint32_t cmdCode, uint32_t cmdSize, void *pCmdData, uint32_t *replySize, void *pReplyData) {
@@ -96,6 +107,11 @@ static int32_t generic_command(effect_handle_t self, uint32_t cmdCode, uint32_t
 static int32_t generic_getDescriptor(effect_handle_t self, effect_descriptor_t *pDescriptor) {
 	struct effect_module_s *e = (struct effect_module_s *) self;
 	memcpy(pDescriptor, e->descriptor, sizeof(effect_descriptor_t));
+	/* Prefer the measured load once the effect has been running. */
+	uint16_t cpuLoad = e->effect->getCpuLoad();
+	if (cpuLoad != 0) {
+	    pDescriptor->cpuLoad = cpuLoad;
+	}
 	return 0;
 }
 
@@ -172,6 +188,10 @@ int32_t EffectRelease(effect_handle_t ei) {
 	struct effect_module_s *e = (struct effect_module_s *) ei;
 	delete e->effect;
 	free(e);
+
+	int32_t hits, misses, entries;
+	CoefficientStore::getStatistics(&hits, &misses, &entries);
+	LOGI("Coefficient store: %d hits, %d misses, %d entries", hits, misses, entries);
 	return 0;
 }
 
@@ -0,0 +1,112 @@
+# Host tests and benchmarks of the DSP building blocks. Each one prints its
+# measurements and exits with a non-zero status when a check fails, e.g.
+#   make cyanogen-dsp-convolver-test && cyanogen-dsp-convolver-test
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := cyanogen-dsp-convolver-test
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := \
+	ConvolverTest.cpp \
+	../Convolver.cpp \
+	../FFT.cpp \
+	../ImpulseResponse.cpp \
+# terminator
+
+LOCAL_C_INCLUDES += \
+	$(LOCAL_PATH)/.. \
+	system/core/include \
+# terminator
+
+LOCAL_STATIC_LIBRARIES := \
+	libcutils \
+	liblog \
+# terminator
+
+LOCAL_LDLIBS := -lm -lpthread -lrt
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := cyanogen-dsp-bassboost-test
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := \
+	BassBoostTest.cpp \
+	../Biquad.cpp \
+	../CoefficientStore.cpp \
+	../Decibels.cpp \
+	../Delay.cpp \
+	../Effect.cpp \
+	../EffectBassBoost.cpp \
+	../Halfband.cpp \
+	../Limiter.cpp \
+	../LoudnessMeter.cpp \
+# terminator
+
+LOCAL_C_INCLUDES += \
+	$(LOCAL_PATH)/.. \
+	frameworks/base/include \
+	hardware/libhardware/include \
+	system/core/include \
+	system/media/audio_effects/include \
+# terminator
+
+LOCAL_STATIC_LIBRARIES := \
+	libcutils \
+	liblog \
+# terminator
+
+LOCAL_LDLIBS := -lm -lpthread -lrt
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := cyanogen-dsp-limiter-test
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := \
+	LimiterTest.cpp \
+	../Limiter.cpp \
+# terminator
+
+LOCAL_C_INCLUDES += \
+	$(LOCAL_PATH)/.. \
+	system/core/include \
+# terminator
+
+LOCAL_STATIC_LIBRARIES := \
+	libcutils \
+	liblog \
+# terminator
+
+LOCAL_LDLIBS := -lm -lpthread -lrt
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := cyanogen-dsp-delay-test
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := \
+	DelayTest.cpp \
+	../Delay.cpp \
+# terminator
+
+LOCAL_C_INCLUDES += \
+	$(LOCAL_PATH)/.. \
+# terminator
+
+LOCAL_LDLIBS := -lm
+
+include $(BUILD_HOST_EXECUTABLE)
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Compares the decimated bass boost with the full-rate design it replaced:
+ * a 55 Hz low-pass of the mono sum added to both channels. The gain at each
+ * test frequency must match within tolerance while the limiter is idle, and
+ * both paths are timed. Exits with a non-zero status on failure. */
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+
+#include "Biquad.h"
+#include "EffectBassBoost.h"
+
+#define SAMPLING_RATE 44100
+#define BUFFER_FRAMES 512
+#define SECONDS 2
+/* Quiet enough that the boost never reaches the limiter */
+#define LEVEL 0.05
+
+/* Largest difference from the reference at any test frequency, in dB */
+#define TOLERANCE_DB 0.5
+
+static double now()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec * 1e-9;
+}
+
+static void command(Effect &effect, uint32_t code, uint32_t size, void *data)
+{
+    int32_t reply[16];
+    uint32_t replySize = sizeof(reply);
+    effect.command(code, size, data, &replySize, reply);
+}
+
+static void setStrength(Effect &effect, int16_t strength)
+{
+    struct {
+        effect_param_t ep;
+        int32_t code;
+        int16_t value;
+    } __attribute__((packed)) param;
+    param.ep.status = 0;
+    param.ep.psize = 4;
+    param.ep.vsize = 2;
+    param.code = BASSBOOST_PARAM_STRENGTH;
+    param.value = strength;
+    command(effect, EFFECT_CMD_SET_PARAM, sizeof(param), &param);
+}
+
+/* Amplitude of the frequency in the second half of the left channel */
+static double amplitude(const int16_t *pcm, int32_t frames, double frequency)
+{
+    double c = 0, s = 0;
+    for (int32_t i = frames / 2; i < frames; i ++) {
+        double phase = 2 * M_PI * frequency * i / SAMPLING_RATE;
+        c += pcm[i * 2] * cos(phase);
+        s += pcm[i * 2] * sin(phase);
+    }
+    return 2 * sqrt(c * c + s * s) / (frames - frames / 2);
+}
+
+static void tone(int16_t *pcm, int32_t frames, double frequency)
+{
+    for (int32_t i = 0; i < frames; i ++) {
+        int16_t v = int16_t(32767 * LEVEL * sin(2 * M_PI * frequency * i / SAMPLING_RATE));
+        pcm[i * 2] = v;
+        pcm[i * 2 + 1] = v;
+    }
+}
+
+/* The full-rate reference, in the same 8.24 arithmetic the effect used */
+static void reference(int16_t *pcm, int32_t frames, int16_t strength)
+{
+    Biquad boost;
+    boost.setLowPass(0, 55.0, SAMPLING_RATE, 0.5 + strength / 666.0);
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t left = pcm[i * 2] << 8;
+        int32_t right = pcm[i * 2 + 1] << 8;
+        int32_t b = boost.process(left + right);
+        pcm[i * 2] = (left + b) >> 8;
+        pcm[i * 2 + 1] = (right + b) >> 8;
+    }
+}
+
+static void decimated(int16_t *pcm, int32_t frames, int16_t strength)
+{
+    EffectBassBoost effect;
+    effect_config_t config;
+    memset(&config, 0, sizeof(config));
+    config.inputCfg.samplingRate = config.outputCfg.samplingRate = SAMPLING_RATE;
+    config.inputCfg.channels = config.outputCfg.channels = AUDIO_CHANNEL_OUT_STEREO;
+    config.inputCfg.format = config.outputCfg.format = AUDIO_FORMAT_PCM_16_BIT;
+    config.outputCfg.accessMode = EFFECT_BUFFER_ACCESS_WRITE;
+    config.inputCfg.mask = config.outputCfg.mask = EFFECT_CONFIG_SMP_RATE | EFFECT_CONFIG_CHANNELS | EFFECT_CONFIG_FORMAT | EFFECT_CONFIG_ACC_MODE;
+    command(effect, EFFECT_CMD_CONFIGURE, sizeof(config), &config);
+    setStrength(effect, strength);
+
+    for (int32_t offset = 0; offset < frames; offset += BUFFER_FRAMES) {
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s16 = pcm + offset * 2;
+        effect.processBlock(&buffer, &buffer);
+    }
+}
+
+/* Times the boost of a mono sum both ways, in the effect's chunk size: the
+ * full-rate filter against decimation, the filter at a 16th of the rate
+ * and interpolation. Reading, the dry delay and writing are the same for
+ * both designs and are left out; so is the limiter, which the full-rate
+ * design did not have. */
+static volatile int32_t sink;
+static void benchmark(int32_t frames, double *fullRate, double *lowBand)
+{
+    int32_t *input = new int32_t[frames];
+    int32_t *output = new int32_t[frames];
+    for (int32_t i = 0; i < frames; i ++) {
+        input[i] = int32_t((1 << 24) * LEVEL * (sin(2 * M_PI * 55 * i / SAMPLING_RATE)
+                + sin(2 * M_PI * 1000 * i / SAMPLING_RATE)));
+    }
+
+    Biquad full;
+    full.setLowPass(0, 55.0, SAMPLING_RATE, 1.25);
+    double t0 = now();
+    for (int32_t i = 0; i < frames; i ++) {
+        output[i] = full.process(input[i]);
+    }
+    *fullRate = now() - t0;
+
+    HalfbandDecimator decimator[BASSBOOST_DECIMATION_STAGES];
+    HalfbandInterpolator interpolator[BASSBOOST_DECIMATION_STAGES];
+    Biquad low;
+    low.setLowPass(0, 55.0, SAMPLING_RATE / BASSBOOST_DECIMATION, 1.25);
+    int32_t a[BASSBOOST_CHUNK_FRAMES], b[BASSBOOST_CHUNK_FRAMES];
+    t0 = now();
+    for (int32_t offset = 0; offset < frames; offset += BASSBOOST_CHUNK_FRAMES) {
+        int32_t count = decimator[0].process(input + offset, a, BASSBOOST_CHUNK_FRAMES);
+        int32_t *src = a, *dst = b;
+        for (int32_t i = 1; i < BASSBOOST_DECIMATION_STAGES; i ++) {
+            count = decimator[i].process(src, dst, count);
+            int32_t *tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        for (int32_t i = 0; i < count; i ++) {
+            src[i] = low.process(src[i]);
+        }
+        for (int32_t i = BASSBOOST_DECIMATION_STAGES - 1; i > 0; i --) {
+            interpolator[i].process(src, dst, count);
+            count *= 2;
+            int32_t *tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        interpolator[0].process(src, output + offset, count);
+    }
+    *lowBand = now() - t0;
+
+    /* Keep the output alive */
+    int32_t sum = 0;
+    for (int32_t i = 0; i < frames; i ++) {
+        sum ^= output[i];
+    }
+    sink = sum;
+    delete[] input;
+    delete[] output;
+}
+
+int main()
+{
+    static const double frequencies[] = { 20, 35, 55, 80, 120, 200, 500, 1000, 5000 };
+    static const int16_t strengths[] = { 0, 500, 1000 };
+    const int32_t frames = SAMPLING_RATE * SECONDS / BUFFER_FRAMES * BUFFER_FRAMES;
+    int16_t *expected = new int16_t[frames * 2];
+    int16_t *actual = new int16_t[frames * 2];
+
+    bool ok = true;
+    for (uint32_t s = 0; s < sizeof(strengths) / sizeof(strengths[0]); s ++) {
+        printf("strength %d:\n", strengths[s]);
+        for (uint32_t f = 0; f < sizeof(frequencies) / sizeof(frequencies[0]); f ++) {
+            tone(expected, frames, frequencies[f]);
+            memcpy(actual, expected, frames * 2 * sizeof(int16_t));
+            reference(expected, frames, strengths[s]);
+            decimated(actual, frames, strengths[s]);
+
+            double want = 20 * log10(amplitude(expected, frames, frequencies[f]) / (32767 * LEVEL));
+            double got = 20 * log10(amplitude(actual, frames, frequencies[f]) / (32767 * LEVEL));
+            bool good = fabs(got - want) < TOLERANCE_DB;
+            printf("  %s %5.0f Hz: reference %+6.2f dB, decimated %+6.2f dB\n",
+                    good ? "ok  " : "FAIL", frequencies[f], want, got);
+            ok = ok && good;
+        }
+    }
+
+    const int32_t benchmarkFrames = SAMPLING_RATE * 10 / BASSBOOST_CHUNK_FRAMES * BASSBOOST_CHUNK_FRAMES;
+    double fullRate, lowBand;
+    benchmark(benchmarkFrames, &fullRate, &lowBand);
+    printf("full rate filter %.1f ns/frame, low band path %.1f ns/frame\n",
+            fullRate * 1e9 / benchmarkFrames, lowBand * 1e9 / benchmarkFrames);
+
+    delete[] expected;
+    delete[] actual;
+    return ok ? 0 : 1;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the partitioned convolver against a direct-form FIR of the same
+ * response set, times both, and checks how responses are received in
+ * pieces. Exits with a non-zero status on failure. */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "Convolver.h"
+#include "ImpulseResponse.h"
+
+#define SIGNAL_FRAMES 32768
+
+static double now()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec * 1e-9;
+}
+
+/* Deterministic decaying noise, -1 .. 1 */
+static float response(int32_t i, int32_t c)
+{
+    uint32_t x = uint32_t(i * 4 + c) * 2654435761u;
+    x ^= x >> 15;
+    return ((x & 0xffff) / 32768.0f - 1.0f) * expf(-i / 300.0f) * 0.3f;
+}
+
+/* Fill ir with the test response in pieces of uneven size, as the app
+ * sends it. */
+static bool receive(ImpulseResponse *ir, int32_t length)
+{
+    float *frames = new float[length * 4];
+    for (int32_t i = 0; i < length; i ++) {
+        for (int32_t c = 0; c < 4; c ++) {
+            frames[i * 4 + c] = response(i, c);
+        }
+    }
+    bool ok = true;
+    for (int32_t offset = 0, count; offset < length && ok; offset += count) {
+        count = 1 + rand() % 300;
+        if (count > length - offset) {
+            count = length - offset;
+        }
+        ok = ! ir->isComplete() && ir->append(frames + offset * 4, count);
+    }
+    delete[] frames;
+    return ok && ir->isComplete();
+}
+
+static bool testReceive()
+{
+    bool ok = true;
+
+    ImpulseResponse ir(512, 44100);
+    bool good = receive(&ir, 512);
+    const float *const *data = ir.getData();
+    for (int32_t i = 0; i < 512 && good; i ++) {
+        for (int32_t c = 0; c < 4; c ++) {
+            good = good && data[c][i] == response(i, c);
+        }
+    }
+    printf("%s pieces received in order\n", good ? "ok" : "FAIL");
+    ok = ok && good;
+
+    float frame[8] = { 0 };
+    ImpulseResponse full(1, 44100);
+    good = ! full.append(frame, 2) && full.append(frame, 1) && ! full.append(frame, 1);
+    printf("%s frames past the end refused\n", good ? "ok" : "FAIL");
+    ok = ok && good;
+
+    ImpulseResponse bad(2, 44100);
+    frame[5] = NAN;
+    good = ! bad.append(frame, 2) && ! bad.isComplete();
+    frame[5] = INFINITY;
+    good = good && ! bad.append(frame, 2);
+    printf("%s samples that are not numbers refused\n", good ? "ok" : "FAIL");
+    ok = ok && good;
+
+    return ok;
+}
+
+/* Four-path convolution with output delayed by one block, as the
+ * convolver does it. */
+static void directForm(const float *const h[4], int32_t length,
+        const int32_t *left, const int32_t *right, float *outLeft, float *outRight, int32_t frames)
+{
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t j = i - CONVOLVER_BLOCK_FRAMES;
+        float l = 0, r = 0;
+        for (int32_t k = 0; k < length && k <= j; k ++) {
+            l += left[j - k] * h[0][k] + right[j - k] * h[2][k];
+            r += left[j - k] * h[1][k] + right[j - k] * h[3][k];
+        }
+        outLeft[i] = l;
+        outRight[i] = r;
+    }
+}
+
+static bool testConvolution(int32_t length)
+{
+    ImpulseResponse ir(length, 44100);
+    if (! receive(&ir, length)) {
+        printf("FAIL: %d-tap response not received\n", length);
+        return false;
+    }
+    const float *const *h = ir.getData();
+
+    int32_t *inLeft = new int32_t[SIGNAL_FRAMES];
+    int32_t *inRight = new int32_t[SIGNAL_FRAMES];
+    int32_t *left = new int32_t[SIGNAL_FRAMES];
+    int32_t *right = new int32_t[SIGNAL_FRAMES];
+    float *refLeft = new float[SIGNAL_FRAMES];
+    float *refRight = new float[SIGNAL_FRAMES];
+    srand(length);
+    for (int32_t i = 0; i < SIGNAL_FRAMES; i ++) {
+        inLeft[i] = left[i] = (rand() % 65536 - 32768) << 8;
+        inRight[i] = right[i] = (rand() % 65536 - 32768) << 8;
+    }
+
+    /* Buffers of uneven size, as AudioFlinger may hand out */
+    Convolver convolver(h, ir.getLength(), CONVOLVER_BLOCK_FRAMES);
+    double t0 = now();
+    for (int32_t offset = 0, frames; offset < SIGNAL_FRAMES; offset += frames) {
+        frames = 1 + rand() % 700;
+        if (frames > SIGNAL_FRAMES - offset) {
+            frames = SIGNAL_FRAMES - offset;
+        }
+        convolver.process(left + offset, right + offset, frames);
+    }
+    double t1 = now();
+    directForm(h, length, inLeft, inRight, refLeft, refRight, SIGNAL_FRAMES);
+    double t2 = now();
+
+    double error = 0, peak = 0;
+    for (int32_t i = 0; i < SIGNAL_FRAMES; i ++) {
+        error = fmax(error, fmax(fabs(refLeft[i] - left[i]), fabs(refRight[i] - right[i])));
+        peak = fmax(peak, fmax(fabs(refLeft[i]), fabs(refRight[i])));
+    }
+    bool ok = error / peak < 1e-4;
+    printf("%s %4d taps: error %.2e of peak, partitioned %.1f ns/frame, direct form %.1f ns/frame\n",
+            ok ? "ok" : "FAIL", length, error / peak,
+            (t1 - t0) * 1e9 / SIGNAL_FRAMES, (t2 - t1) * 1e9 / SIGNAL_FRAMES);
+
+    delete[] inLeft;
+    delete[] inRight;
+    delete[] left;
+    delete[] right;
+    delete[] refLeft;
+    delete[] refRight;
+    return ok;
+}
+
+int main()
+{
+    bool ok = testReceive();
+    static const int32_t lengths[] = { 256, 512, 1024, 2048 };
+    for (uint32_t i = 0; i < sizeof(lengths) / sizeof(lengths[0]); i ++) {
+        ok = testConvolution(lengths[i]) && ok;
+    }
+    return ok ? 0 : 1;
+}
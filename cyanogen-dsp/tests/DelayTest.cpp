@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the fractional read taps of Delay: whole-frame taps return the
+ * samples written that many frames ago, and fractional ones follow a slow
+ * sine to within the error of linear interpolation. Exits with a non-zero
+ * status on failure. */
+
+#include <math.h>
+#include <stdio.h>
+
+#include "Delay.h"
+
+#define SAMPLING_RATE 44100
+/* Longest delay tested, frames */
+#define MAXIMUM_DELAY 1000
+#define FRAMES 4096
+
+static int32_t sample(int32_t i)
+{
+    return int32_t(sin(2 * M_PI * 100.0 * i / SAMPLING_RATE) * (1 << 23));
+}
+
+/* Whole-frame taps are exact, and agree with the block interface */
+static bool testWhole()
+{
+    Delay delay(0.03f);
+    delay.setParameters(SAMPLING_RATE, float(MAXIMUM_DELAY) / SAMPLING_RATE);
+    int32_t errors = 0;
+    for (int32_t i = 0; i < FRAMES; i ++) {
+        int32_t x = sample(i);
+        int32_t delayed;
+        delay.read(&delayed, 1);
+        if (i >= MAXIMUM_DELAY && delay.tap(MAXIMUM_DELAY << 16) != delayed) {
+            errors ++;
+        }
+        delay.write(&x, 1);
+        for (int32_t d = 1; d <= i && d <= MAXIMUM_DELAY; d += 37) {
+            if (delay.tap(d << 16) != sample(i + 1 - d)) {
+                errors ++;
+            }
+        }
+    }
+    printf("%s whole-frame taps: %d mismatches\n", errors == 0 ? "ok  " : "FAIL", errors);
+    return errors == 0;
+}
+
+/* A 100 Hz sine bends so little between frames that linear interpolation
+ * is within a few LSB of the true value at any fraction. */
+static bool testFractional()
+{
+    Delay delay(0.03f);
+    delay.setParameters(SAMPLING_RATE, float(MAXIMUM_DELAY) / SAMPLING_RATE);
+    double worst = 0;
+    for (int32_t i = 0; i < FRAMES; i ++) {
+        int32_t x = sample(i);
+        delay.write(&x, 1);
+        if (i < MAXIMUM_DELAY + 1) {
+            continue;
+        }
+        for (int32_t d = 1 << 16; d < MAXIMUM_DELAY << 16; d += 0x12345) {
+            double t = i + 1 - d / 65536.0;
+            double expected = sin(2 * M_PI * 100.0 * t / SAMPLING_RATE) * (1 << 23);
+            double error = fabs(delay.tap(d) - expected);
+            if (error > worst) {
+                worst = error;
+            }
+        }
+    }
+    /* Interpolation error of a sine is at most (2 pi f / fs)^2 / 8 of its
+     * amplitude, plus rounding. */
+    double bound = pow(2 * M_PI * 100.0 / SAMPLING_RATE, 2) / 8 * (1 << 23) + 2;
+    bool ok = worst <= bound;
+    printf("%s fractional taps: worst error %.2f LSB, bound %.2f LSB\n",
+            ok ? "ok  " : "FAIL", worst, bound);
+    return ok;
+}
+
+int main()
+{
+    bool ok = testWhole();
+    ok = testFractional() && ok;
+    return ok ? 0 : 1;
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks that the limiter holds its ceiling, including on a falling
+ * envelope that keeps a whole window of peaks in the deque, and that it
+ * leaves quiet signals untouched. Also reports its cost and the true peak
+ * of the output. Exits with a non-zero status on failure. */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "Limiter.h"
+
+#define CHANNELS 2
+#define BUFFER_FRAMES 256
+/* 1 << 20 frames of program material per rate */
+#define PROGRAM_FRAMES (1 << 20)
+
+static double now()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec * 1e-9;
+}
+
+static int32_t peakOf(const int32_t *samples, int32_t count)
+{
+    int32_t peak = 0;
+    for (int32_t i = 0; i < count; i ++) {
+        int32_t magnitude = abs(samples[i]);
+        if (magnitude > peak) {
+            peak = magnitude;
+        }
+    }
+    return peak;
+}
+
+static double toDb(double level)
+{
+    return 20 * log10(level / (1 << 24));
+}
+
+/* 4x oversampled peak of the left channel, by windowed sinc */
+static double truePeak(const int32_t *samples, int32_t frames)
+{
+    double peak = 0;
+    for (int32_t i = 16; i < frames - 16; i ++) {
+        for (int32_t phase = 0; phase < 4; phase ++) {
+            double acc = 0;
+            for (int32_t k = -15; k <= 16; k ++) {
+                double d = k - phase / 4.0;
+                double sinc = fabs(d) < 1e-9 ? 1 : sin(M_PI * d) / (M_PI * d);
+                double window = 0.5 + 0.5 * cos(M_PI * d / 16.5);
+                acc += samples[(i + k) * CHANNELS] * sinc * window;
+            }
+            peak = fmax(peak, fabs(acc));
+        }
+    }
+    return peak;
+}
+
+static void run(Limiter &limiter, int32_t *samples, int32_t frames)
+{
+    for (int32_t offset = 0; offset < frames; offset += BUFFER_FRAMES) {
+        int32_t n = frames - offset < BUFFER_FRAMES ? frames - offset : BUFFER_FRAMES;
+        limiter.process(samples + offset * CHANNELS, n);
+    }
+}
+
+/* Every sample a little quieter than the one before, from +12 dB down to
+ * the ceiling, for several windows. */
+static bool testFallingEnvelope(float rate, int32_t ceiling)
+{
+    /* A falling ramp keeps every sample in the peak deque, so the deque
+     * fills to a whole window; isolated peaks after it must still be
+     * caught. */
+    const int32_t ramp = LIMITER_MAXIMUM_WINDOW * 8;
+    const int32_t frames = ramp + LIMITER_MAXIMUM_WINDOW * 16;
+    int32_t *samples = new int32_t[frames * CHANNELS];
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t v;
+        if (i < ramp) {
+            v = (4 << 24) - int32_t(int64_t(2 << 24) * i / ramp);
+        } else if ((i - ramp) % (LIMITER_MAXIMUM_WINDOW * 2) == 0) {
+            v = 2 << 24;
+        } else {
+            v = (1 << 24) / 10;
+        }
+        samples[i * CHANNELS] = v;
+        samples[i * CHANNELS + 1] = -v;
+    }
+
+    Limiter limiter;
+    limiter.configure(rate, CHANNELS);
+    limiter.setCeiling(ceiling);
+    run(limiter, samples, frames);
+
+    int32_t peak = peakOf(samples, frames * CHANNELS);
+    bool ok = peak <= ceiling;
+    printf("%s %6.0f Hz falling envelope: peak %.3f dBFS, ceiling %.3f dBFS\n",
+            ok ? "ok  " : "FAIL", rate, toDb(peak), toDb(ceiling));
+    delete[] samples;
+    return ok;
+}
+
+/* Boosted bass plus noise and treble, up to about +8 dB over full scale */
+static void program(int32_t *samples, int32_t frames, float rate, double scale)
+{
+    srand(1);
+    for (int32_t i = 0; i < frames; i ++) {
+        double v = 2.2 * sin(2 * M_PI * 60 * i / rate) * (0.5 + 0.5 * sin(2 * M_PI * 0.7 * i / rate))
+            + 0.3 * (rand() / double(RAND_MAX) - 0.5) + 0.4 * sin(2 * M_PI * 9000 * i / rate);
+        samples[i * CHANNELS] = int32_t(v * scale * (1 << 24));
+        samples[i * CHANNELS + 1] = int32_t(-0.8 * v * scale * (1 << 24));
+    }
+}
+
+static bool testProgram(float rate, int32_t ceiling)
+{
+    int32_t *samples = new int32_t[PROGRAM_FRAMES * CHANNELS];
+    program(samples, PROGRAM_FRAMES, rate, 1.0);
+
+    Limiter limiter;
+    limiter.configure(rate, CHANNELS);
+    limiter.setCeiling(ceiling);
+    double t0 = now();
+    run(limiter, samples, PROGRAM_FRAMES);
+    double t1 = now();
+
+    int32_t peak = peakOf(samples, PROGRAM_FRAMES * CHANNELS);
+    bool ok = peak <= ceiling;
+    printf("%s %6.0f Hz program: latency %.2f ms, %.2f ns/frame, sample peak %.3f dBFS, true peak %.3f dBFS\n",
+            ok ? "ok  " : "FAIL", rate, limiter.getLatency() * 1000.0 / rate,
+            (t1 - t0) * 1e9 / PROGRAM_FRAMES, toDb(peak), toDb(truePeak(samples, 1 << 16)));
+    delete[] samples;
+    return ok;
+}
+
+/* Below the ceiling the output is the input, delayed */
+static bool testTransparent(float rate, int32_t ceiling)
+{
+    const int32_t frames = 1 << 16;
+    int32_t *input = new int32_t[frames * CHANNELS];
+    int32_t *samples = new int32_t[frames * CHANNELS];
+    program(input, frames, rate, 0.25);
+    for (int32_t i = 0; i < frames * CHANNELS; i ++) {
+        samples[i] = input[i];
+    }
+
+    Limiter limiter;
+    limiter.configure(rate, CHANNELS);
+    limiter.setCeiling(ceiling);
+    run(limiter, samples, frames);
+
+    int32_t latency = limiter.getLatency();
+    bool ok = true;
+    for (int32_t i = latency * CHANNELS; i < frames * CHANNELS; i ++) {
+        ok = ok && samples[i] == input[i - latency * CHANNELS];
+    }
+    printf("%s %6.0f Hz quiet signal unchanged after %d frames\n", ok ? "ok  " : "FAIL", rate, latency);
+    delete[] input;
+    delete[] samples;
+    return ok;
+}
+
+int main()
+{
+    static const float rates[] = { 22050, 44100, 48000, 96000 };
+    /* -1 dBFS */
+    const int32_t ceiling = int32_t(powf(10, -1 / 20.0f) * (1 << 24));
+
+    bool ok = true;
+    for (uint32_t r = 0; r < sizeof(rates) / sizeof(rates[0]); r ++) {
+        ok = testFallingEnvelope(rates[r], ceiling) && ok;
+        ok = testProgram(rates[r], ceiling) && ok;
+        ok = testTransparent(rates[r], ceiling) && ok;
+    }
+    return ok ? 0 : 1;
+}
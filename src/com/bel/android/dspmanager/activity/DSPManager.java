@@ -9,11 +9,14 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.support.v13.app.FragmentPagerAdapter;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.view.ViewPager;
@@ -29,6 +32,7 @@ import com.bel.android.dspmanager.R;
 import com.bel.android.dspmanager.service.HeadsetService;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * Setting utility for CyanogenMod's DSP capabilities. This page is displays the
@@ -38,51 +42,30 @@ import java.util.ArrayList;
  */
 public final class DSPManager extends FragmentActivity {
     public static final String SHARED_PREFERENCES_BASENAME = "com.bel.android.dspmanager";
-    public static final String ACTION_UPDATE_PREFERENCES = "com.bel.android.dspmanager.UPDATE";
 
     protected MyAdapter pagerAdapter;
     protected ActionBar actionBar;
     protected ViewPager viewPager;
 
+    /** Whether the service has been started since onCreate */
+    private boolean mServiceQueried;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        long start = SystemClock.uptimeMillis();
+        StartupTrace.begin("onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.top);
 
-        pagerAdapter = new MyAdapter(getFragmentManager(), this);
+        pagerAdapter = new MyAdapter(getFragmentManager());
         actionBar = getActionBar();
         viewPager = (ViewPager) findViewById(R.id.viewPager);
 
-        Intent serviceIntent = new Intent(this, HeadsetService.class);
-        startService(serviceIntent);
-
         actionBar.setNavigationMode(ActionBar.NAVIGATION_MODE_TABS);
         actionBar.setDisplayShowTitleEnabled(true);
 
-        for (String entry : pagerAdapter.getEntries()) {
-            ActionBar.Tab tab = actionBar.newTab();
-            tab.setTabListener(new TabListener() {
-                @Override
-                public void onTabReselected(Tab tab, FragmentTransaction ft) {
-                }
-
-                @Override
-                public void onTabSelected(Tab tab, FragmentTransaction ft) {
-                    viewPager.setCurrentItem(tab.getPosition());
-                }
-
-                @Override
-                public void onTabUnselected(Tab tab, FragmentTransaction ft) {
-                }
-            });
-            try {
-                int stringId = R.string.class.getField(entry + "_title")
-                        .getInt(null);
-                tab.setText(getString(stringId));
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            actionBar.addTab(tab);
+        for (Screens.Screen screen : Screens.ROUTES) {
+            addScreen(screen);
         }
 
         viewPager.setAdapter(pagerAdapter);
@@ -100,34 +83,105 @@ public final class DSPManager extends FragmentActivity {
             public void onPageScrollStateChanged(int arg0) {
             }
         });
+
+        /* Probing the codec reads sysfs and asks the package manager, so
+         * only do it here if another component already has. */
+        WM8994Capabilities caps = WM8994Capabilities.peek();
+        if (caps != null) {
+            if (caps.isSupported()) {
+                addScreen(Screens.WM8994_SCREEN);
+            }
+        } else {
+            new ProbeTask().execute();
+        }
+
+        StartupTrace.end();
+        StartupTrace.reportFirstFrame(this, start);
+    }
+
+    private void addScreen(Screens.Screen screen) {
+        pagerAdapter.addScreen(screen);
+
+        ActionBar.Tab tab = actionBar.newTab();
+        tab.setTabListener(new TabListener() {
+            @Override
+            public void onTabReselected(Tab tab, FragmentTransaction ft) {
+            }
+
+            @Override
+            public void onTabSelected(Tab tab, FragmentTransaction ft) {
+                viewPager.setCurrentItem(tab.getPosition());
+            }
+
+            @Override
+            public void onTabUnselected(Tab tab, FragmentTransaction ft) {
+            }
+        });
+        tab.setText(screen.title);
+        actionBar.addTab(tab);
+    }
+
+    /**
+     * Adds the WM8994 tab once the codec has been probed off the main thread.
+     */
+    private class ProbeTask extends AsyncTask<Void, Void, Boolean> {
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return WM8994.isSupported(getApplicationContext());
+        }
+
+        @Override
+        protected void onPostExecute(Boolean supported) {
+            if (supported && !isFinishing()) {
+                addScreen(Screens.WM8994_SCREEN);
+            }
+        }
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        ServiceConnection connection = new ServiceConnection() {
+        if (mServiceQueried) {
+            bindService(new Intent(this, HeadsetService.class), mConnection, 0);
+            return;
+        }
+
+        /* The service lives in this process, so creating it would hold up
+         * the first frame; wait until the main thread is idle. */
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
             @Override
-            public void onServiceConnected(ComponentName name, IBinder binder) {
-                HeadsetService service = ((HeadsetService.LocalBinder) binder).getService();
-                String routing = service.getAudioOutputRouting();
-                String[] entries = pagerAdapter.getEntries();
-                for (int i = 0; i < entries.length; i++) {
-                    if (routing.equals(entries[i])) {
-                        viewPager.setCurrentItem(i);
-                        actionBar.selectTab(actionBar.getTabAt(i));
-                        break;
-                    }
+            public boolean queueIdle() {
+                if (isFinishing() || mServiceQueried) {
+                    return false;
                 }
-                unbindService(this);
+                mServiceQueried = true;
+                StartupTrace.begin("start service");
+                Intent serviceIntent = new Intent(DSPManager.this, HeadsetService.class);
+                startService(serviceIntent);
+                bindService(serviceIntent, mConnection, 0);
+                StartupTrace.end();
+                return false;
             }
+        });
+    }
 
-            @Override
-            public void onServiceDisconnected(ComponentName name) {
+    /** Shows the tab of the route in use when the service first answers */
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            HeadsetService service = ((HeadsetService.LocalBinder) binder).getService();
+            int position = pagerAdapter.indexOf(service.getAudioOutputRouting());
+            if (position >= 0) {
+                viewPager.setCurrentItem(position);
+                actionBar.selectTab(actionBar.getTabAt(position));
             }
-        };
-        Intent serviceIntent = new Intent(this, HeadsetService.class);
-        bindService(serviceIntent, connection, 0);
-    }
+            unbindService(this);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -153,53 +207,260 @@ public final class DSPManager extends FragmentActivity {
 		df.setStyle(DialogFragment.STYLE_NO_TITLE, 0);
                 df.show(getFragmentManager(), "help");
                 return true;
+            case R.id.statistics:
+                new StatisticsDialog().show(getFragmentManager(), "statistics");
+                return true;
+            case R.id.meters:
+                new MetersDialog().show(getFragmentManager(), "meters");
+                return true;
+            case R.id.presets:
+                int page = viewPager.getCurrentItem();
+                String route = page < Screens.ROUTES.length ? Screens.ROUTES[page].name : Screens.ROUTES[0].name;
+                PresetLibraryDialog.newInstance(route).show(getFragmentManager(), "presets");
+                return true;
             default:
                 return false;
         }
     }
-}
 
-class MyAdapter extends FragmentPagerAdapter {
-    private final ArrayList<String> tmpEntries;
-    private final String[] entries;
+    /**
+     * Shows what each live audio session costs in DSP time. The service only
+     * polls the effects while this dialog is bound to it.
+     */
+    public static class StatisticsDialog extends DialogFragment implements HeadsetService.StatisticsListener {
+        private static final int[] EFFECT_TITLES = {
+            R.string.pref_dsp_title, R.string.pref_equalizer_title,
+            R.string.pref_bassboost_title, R.string.pref_headset_virtual_title
+        };
 
-    public MyAdapter(FragmentManager fm, Context context) {
-        super(fm);
+        private TextView mText;
 
-        tmpEntries = new ArrayList<String>();
-        tmpEntries.add("headset");
-        tmpEntries.add("speaker");
-        tmpEntries.add("bluetooth");
+        private HeadsetService mService;
 
-        // Determine if WM8994 is supported
-        if (WM8994.isSupported(context)) {
-            tmpEntries.add(WM8994.NAME);
+        /** Needed to recreate the dialog with the activity */
+        public StatisticsDialog() {
         }
 
-        entries = (String[]) tmpEntries.toArray(new String[tmpEntries.size()]);
+        private final ServiceConnection mConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                mService = ((HeadsetService.LocalBinder) binder).getService();
+                mService.addStatisticsListener(StatisticsDialog.this);
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                mService = null;
+            }
+        };
+
+        @Override
+        public void onCreate(Bundle state) {
+            super.onCreate(state);
+            setStyle(DialogFragment.STYLE_NO_TITLE, 0);
+        }
+
+        @Override
+        public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle state) {
+            View v = inflater.inflate(R.layout.statistics, null);
+            mText = (TextView) v.findViewById(R.id.statistics);
+            mText.setText(R.string.statistics_empty);
+            return v;
+        }
+
+        @Override
+        public void onStart() {
+            super.onStart();
+            Intent serviceIntent = new Intent(getActivity(), HeadsetService.class);
+            getActivity().bindService(serviceIntent, mConnection, 0);
+        }
+
+        @Override
+        public void onStop() {
+            if (mService != null) {
+                mService.removeStatisticsListener(this);
+                mService = null;
+            }
+            getActivity().unbindService(mConnection);
+            super.onStop();
+        }
+
+        @Override
+        public void onStatistics(Map<Integer, HeadsetService.EffectStatistics[]> statistics) {
+            if (statistics.isEmpty()) {
+                mText.setText(R.string.statistics_empty);
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Integer, HeadsetService.EffectStatistics[]> entry : statistics.entrySet()) {
+                sb.append(getString(R.string.statistics_session, entry.getKey())).append('\n');
+                HeadsetService.EffectStatistics[] effects = entry.getValue();
+                for (int i = 0; i < effects.length; i++) {
+                    if (effects[i] == null) {
+                        continue;
+                    }
+                    sb.append(getString(R.string.statistics_effect,
+                            getString(EFFECT_TITLES[i]),
+                            effects[i].cyclesPerFrame,
+                            effects[i].maxBufferTime / 1e6f)).append('\n');
+                }
+                sb.append('\n');
+            }
+            mText.setText(sb);
+        }
     }
 
-    public String[] getEntries() {
-        return entries;
+    /**
+     * Shows live loudness, gain and limiter levels of each session's effects,
+     * refreshed a few times per second while visible.
+     */
+    public static class MetersDialog extends DialogFragment implements HeadsetService.MeterListener {
+        private static final int[] EFFECT_TITLES = {
+            R.string.pref_dsp_title, R.string.pref_equalizer_title,
+            R.string.pref_bassboost_title, R.string.pref_headset_virtual_title
+        };
+
+        private TextView mText;
+
+        private HeadsetService mService;
+
+        /** Needed to recreate the dialog with the activity */
+        public MetersDialog() {
+        }
+
+        private final ServiceConnection mConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                mService = ((HeadsetService.LocalBinder) binder).getService();
+                mService.addMeterListener(MetersDialog.this);
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                mService = null;
+            }
+        };
+
+        @Override
+        public void onCreate(Bundle state) {
+            super.onCreate(state);
+            setStyle(DialogFragment.STYLE_NO_TITLE, 0);
+        }
+
+        @Override
+        public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle state) {
+            View v = inflater.inflate(R.layout.meters, null);
+            mText = (TextView) v.findViewById(R.id.meters);
+            mText.setText(R.string.statistics_empty);
+            return v;
+        }
+
+        @Override
+        public void onStart() {
+            super.onStart();
+            Intent serviceIntent = new Intent(getActivity(), HeadsetService.class);
+            getActivity().bindService(serviceIntent, mConnection, 0);
+        }
+
+        @Override
+        public void onStop() {
+            if (mService != null) {
+                mService.removeMeterListener(this);
+                mService = null;
+            }
+            getActivity().unbindService(mConnection);
+            super.onStop();
+        }
+
+        @Override
+        public void onMeters(Map<Integer, HeadsetService.EffectMeters[]> meters) {
+            if (meters.isEmpty()) {
+                mText.setText(R.string.statistics_empty);
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Integer, HeadsetService.EffectMeters[]> entry : meters.entrySet()) {
+                sb.append(getString(R.string.statistics_session, entry.getKey())).append('\n');
+                HeadsetService.EffectMeters[] effects = entry.getValue();
+                for (int i = 0; i < effects.length; i++) {
+                    if (effects[i] == null) {
+                        continue;
+                    }
+                    if (effects[i].fade == 0f) {
+                        sb.append(getString(R.string.meters_effect_off,
+                                getString(EFFECT_TITLES[i]))).append('\n');
+                        continue;
+                    }
+                    sb.append(getString(R.string.meters_effect,
+                            getString(EFFECT_TITLES[i]),
+                            effects[i].loudness,
+                            effects[i].gain,
+                            effects[i].limiter,
+                            effects[i].fade * 100f)).append('\n');
+                }
+                sb.append('\n');
+            }
+            mText.setText(sb);
+        }
+    }
+}
+
+class MyAdapter extends FragmentPagerAdapter {
+    private final ArrayList<Screens.Screen> screens = new ArrayList<Screens.Screen>();
+
+    public MyAdapter(FragmentManager fm) {
+        super(fm);
+    }
+
+    /**
+     * Append a page. Pages are never removed or reordered, so positions
+     * stay valid as item ids.
+     */
+    public void addScreen(Screens.Screen screen) {
+        screens.add(screen);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return The position of the page called name, or -1
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < screens.size(); i++) {
+            if (screens.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     @Override
     public int getCount() {
-        return entries.length;
+        return screens.size();
     }
 
     @Override
     public Fragment getItem(int position) {
+        Screens.Screen screen = screens.get(position);
 
         // Determine if fragment is WM8994
-        if (entries[position].equals(WM8994.NAME)) {
+        if (screen == Screens.WM8994_SCREEN) {
             return new WM8994();
         } else {
             final DSPScreen dspFragment = new DSPScreen();
             Bundle b = new Bundle();
-            b.putString("config", entries[position]);
+            b.putString("config", screen.name);
             dspFragment.setArguments(b);
             return dspFragment;
         }
     }
+
+    @Override
+    public void setPrimaryItem(ViewGroup container, int position, Object object) {
+        super.setPrimaryItem(container, position, object);
+        if (object instanceof DSPScreen) {
+            ((DSPScreen) object).requestPreferences();
+        }
+    }
 }
@@ -1,13 +1,13 @@
 package com.bel.android.dspmanager.activity;
 
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.preference.PreferenceFragment;
 
-import com.bel.android.dspmanager.R;
 import com.bel.android.dspmanager.preference.EqualizerPreference;
 import com.bel.android.dspmanager.preference.SummariedListPreference;
 import com.bel.android.dspmanager.service.HeadsetService;
@@ -23,6 +23,9 @@ import com.bel.android.dspmanager.service.HeadsetService;
 public final class DSPScreen extends PreferenceFragment {
 	protected static final String TAG = DSPScreen.class.getSimpleName();
 
+	/** Route whose settings this page edits */
+	private String mConfig;
+
 	private final OnSharedPreferenceChangeListener listener = new OnSharedPreferenceChangeListener() {
 		@Override
 		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
@@ -32,7 +35,7 @@ public final class DSPScreen extends PreferenceFragment {
 				if (! "custom".equals(newValue)) {
 					Editor e = sharedPreferences.edit();
 					e.putString("dsp.tone.eq.custom", newValue);
-					e.commit();
+					e.apply();
 
 					/* Now tell the equalizer that it must display something else. */
 					EqualizerPreference eq = (EqualizerPreference) getPreferenceScreen().findPreference("dsp.tone.eq.custom");
@@ -57,36 +60,78 @@ public final class DSPScreen extends PreferenceFragment {
 				if (! desiredValue.equals(preset.getEntry())) {
 					Editor e = sharedPreferences.edit();
 					e.putString("dsp.tone.eq", desiredValue);
-					e.commit();
+					e.apply();
 					preset.refreshFromPreference();
 				}
 			}
+		}
+	};
+
+	/** Set once the page is shown; it then needs its preferences at once */
+	private boolean mWanted;
 
-			getActivity().sendBroadcast(new Intent(DSPManager.ACTION_UPDATE_PREFERENCES));
+	private boolean mCreated;
+
+	private boolean mInflated;
+
+	/** Inflates the preferences of a page built ahead of being shown */
+	private final MessageQueue.IdleHandler mIdleInflater = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			inflatePreferences();
+			return false;
 		}
 	};
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		String config = getArguments().getString("config");
+		mConfig = getArguments().getString("config");
+		mCreated = true;
 
-		getPreferenceManager().setSharedPreferencesName(DSPManager.SHARED_PREFERENCES_BASENAME + "." + config);
+		getPreferenceManager().setSharedPreferencesName(DSPManager.SHARED_PREFERENCES_BASENAME + "." + mConfig);
 
-		try {
-			int xmlId = R.xml.class.getField(config + "_preferences").getInt(null);
-			addPreferencesFromResource(xmlId);
+		/* The pager also builds the pages on either side of the visible one;
+		 * leave their preferences until the main thread has nothing to do. */
+		if (mWanted) {
+			inflatePreferences();
+		} else {
+			Looper.myQueue().addIdleHandler(mIdleInflater);
 		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
+	}
+
+	/**
+	 * Called when the page becomes the visible one, possibly before
+	 * {@link #onCreate(Bundle)}.
+	 */
+	protected void requestPreferences() {
+		mWanted = true;
+		if (mCreated) {
+			inflatePreferences();
+		}
+	}
+
+	private void inflatePreferences() {
+		if (mInflated) {
+			return;
 		}
+		mInflated = true;
+		Looper.myQueue().removeIdleHandler(mIdleInflater);
 
+		StartupTrace.begin("inflate " + mConfig);
+		addPreferencesFromResource(Screens.get(mConfig).preferences);
 		getPreferenceManager().getSharedPreferences().registerOnSharedPreferenceChangeListener(listener);
+		StartupTrace.end();
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		getPreferenceManager().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(listener);
+		mCreated = false;
+		if (mInflated) {
+			getPreferenceManager().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(listener);
+		} else {
+			Looper.myQueue().removeIdleHandler(mIdleInflater);
+		}
 	}
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Nodes are files, either the real ones or copies under a root directory.
+ */
+public class FileSysfsBackend implements SysfsBackend {
+    private final File mRoot;
+
+    /**
+     * Backend on the real files.
+     */
+    public FileSysfsBackend() {
+        mRoot = null;
+    }
+
+    /**
+     * Backend on files below root, which stands in for "/". Writes truncate
+     * the file after the new value, since regular files keep their tail.
+     *
+     * @param root The directory to resolve absolute node paths against
+     */
+    public FileSysfsBackend(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Backend on a fresh, empty temporary directory.
+     */
+    public static FileSysfsBackend createTemporary() throws IOException {
+        File root = File.createTempFile("sysfs", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Can't create directory " + root);
+        }
+        return new FileSysfsBackend(root);
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Create or overwrite a node, for setting up a temporary tree.
+     */
+    public void create(String path, String value) throws IOException {
+        File file = getFile(path);
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file, false);
+        try {
+            fos.write(value.getBytes());
+        } finally {
+            fos.close();
+        }
+    }
+
+    private File getFile(String path) {
+        return mRoot == null ? new File(path) : new File(mRoot, path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return getFile(path).exists();
+    }
+
+    @Override
+    public String readLine(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(getFile(path)), 512);
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public Handle open(String path) throws IOException {
+        File file = getFile(path);
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        final FileOutputStream fos = new FileOutputStream(file, false);
+        final boolean truncate = mRoot != null;
+        return new Handle() {
+            @Override
+            public void write(byte[] value) throws IOException {
+                FileChannel channel = fos.getChannel();
+                channel.write(ByteBuffer.wrap(value), 0);
+                if (truncate) {
+                    channel.truncate(value.length);
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // Nothing was buffered, so nothing is lost
+                }
+            }
+        };
+    }
+}
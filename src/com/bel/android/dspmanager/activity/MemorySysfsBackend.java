@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Nodes kept in a map, for running the sysfs code without any files.
+ */
+public class MemorySysfsBackend implements SysfsBackend {
+    private final ConcurrentHashMap<String, String> mValues = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Create or overwrite a node.
+     */
+    public void create(String path, String value) {
+        mValues.put(path, value);
+    }
+
+    /**
+     * @return The node's whole value, or null if it doesn't exist
+     */
+    public String get(String path) {
+        return mValues.get(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return mValues.containsKey(path);
+    }
+
+    @Override
+    public String readLine(String path) throws IOException {
+        String value = mValues.get(path);
+        if (value == null) {
+            throw new FileNotFoundException(path);
+        }
+        int end = value.indexOf('\n');
+        if (end != -1) {
+            value = value.substring(0, end);
+        }
+        return value.length() == 0 ? null : value;
+    }
+
+    @Override
+    public Handle open(final String path) throws IOException {
+        if (!mValues.containsKey(path)) {
+            throw new FileNotFoundException(path);
+        }
+        return new Handle() {
+            @Override
+            public void write(byte[] value) {
+                mValues.put(path, new String(value));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,374 @@
+package com.bel.android.dspmanager.activity;
+
+import android.app.DialogFragment;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.bel.android.dspmanager.R;
+import com.bel.android.dspmanager.preference.EqualizerSurface;
+import com.bel.android.dspmanager.preference.ImpulseResponsePreference;
+import com.bel.android.dspmanager.preset.PresetImporter;
+import com.bel.android.dspmanager.preset.PresetLibrary;
+import com.bel.android.dspmanager.service.HeadsetService;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Searches the imported preset library. Picking a preset previews it on the
+ * equalizer surface and, through the service, on the audio; Apply stores it
+ * as the custom equalizer of the route in use.
+ */
+public class PresetLibraryDialog extends DialogFragment {
+    protected static final String TAG = PresetLibraryDialog.class.getSimpleName();
+
+    private static final String LIBRARY_FILE = "presets.bin";
+    private static final int MAX_RESULTS = 200;
+    /** Typing pause before a search starts */
+    private static final int SEARCH_DELAY_MS = 150;
+
+    /** Argument: route to apply to when the service can't tell the one in use */
+    private static final String ARG_ROUTE = "route";
+
+    private PresetLibrary mLibrary;
+
+    private final List<Integer> mResults = new ArrayList<Integer>();
+
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search();
+        }
+    };
+
+    private SearchTask mSearchTask;
+
+    private float[] mSelected;
+
+    private EditText mSearch;
+    private EqualizerSurface mSurface;
+    private TextView mStatus;
+    private ArrayAdapter<String> mAdapter;
+    private Button mImport;
+    private Button mApply;
+
+    private HeadsetService mService;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((HeadsetService.LocalBinder) binder).getService();
+            if (mSelected != null) {
+                mService.setEqualizerLevels(mSelected);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    /** Needed to recreate the dialog with the activity */
+    public PresetLibraryDialog() {
+    }
+
+    /**
+     * @param route route to store presets in if the service isn't running
+     */
+    public static PresetLibraryDialog newInstance(String route) {
+        PresetLibraryDialog dialog = new PresetLibraryDialog();
+        Bundle arguments = new Bundle();
+        arguments.putString(ARG_ROUTE, route);
+        dialog.setArguments(arguments);
+        return dialog;
+    }
+
+    @Override
+    public void onCreate(Bundle state) {
+        super.onCreate(state);
+        setStyle(DialogFragment.STYLE_NO_TITLE, 0);
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle state) {
+        View v = inflater.inflate(R.layout.preset_library, null);
+        mSearch = (EditText) v.findViewById(R.id.preset_search);
+        mSurface = (EqualizerSurface) v.findViewById(R.id.FrequencyResponse);
+        mStatus = (TextView) v.findViewById(R.id.preset_status);
+        mImport = (Button) v.findViewById(R.id.preset_import);
+        mApply = (Button) v.findViewById(R.id.preset_apply);
+
+        mAdapter = new ArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_single_choice);
+        ListView list = (ListView) v.findViewById(R.id.preset_list);
+        list.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
+        list.setAdapter(mAdapter);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                preview(mResults.get(position));
+            }
+        });
+
+        mSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mSearchRunnable);
+                mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+            }
+        });
+
+        mImport.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                new ImportTask().execute();
+            }
+        });
+
+        mApply.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                apply();
+                dismiss();
+            }
+        });
+
+        openLibrary();
+        return v;
+    }
+
+    @Override
+    public void onDestroyView() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+            mSearchTask = null;
+        }
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        Intent serviceIntent = new Intent(getActivity(), HeadsetService.class);
+        getActivity().bindService(serviceIntent, mConnection, 0);
+    }
+
+    @Override
+    public void onStop() {
+        if (mService != null) {
+            mService.setEqualizerLevels(null);
+            mService = null;
+        }
+        getActivity().unbindService(mConnection);
+        super.onStop();
+    }
+
+    private File getLibraryFile() {
+        return new File(getActivity().getFilesDir(), LIBRARY_FILE);
+    }
+
+    private void openLibrary() {
+        try {
+            mLibrary = PresetLibrary.open(getLibraryFile());
+        } catch (IOException e) {
+            Log.w(TAG, "Can't open preset library", e);
+            mLibrary = null;
+        }
+        if (mLibrary == null || mLibrary.size() == 0) {
+            mStatus.setText(getString(R.string.presets_empty,
+                    ImpulseResponsePreference.getImpulseResponseDirectory().getPath()));
+        } else {
+            mStatus.setText(getString(R.string.presets_count, mLibrary.size()));
+        }
+        search();
+    }
+
+    /**
+     * Start searching for the current query, replacing any search still
+     * running. Short queries scan every name, so this stays off the main
+     * thread.
+     */
+    private void search() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+            mSearchTask = null;
+        }
+        if (mLibrary == null) {
+            mResults.clear();
+            mAdapter.clear();
+            return;
+        }
+        mSearchTask = new SearchTask(mLibrary, mSearch.getText().toString());
+        mSearchTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void preview(int index) {
+        mSelected = mLibrary.getLevels(index);
+        for (int i = 0; i < mSelected.length; i++) {
+            mSurface.setBand(i, mSelected[i]);
+        }
+        mApply.setEnabled(true);
+        if (mService != null) {
+            mService.setEqualizerLevels(mSelected);
+        }
+    }
+
+    private void apply() {
+        if (mSelected == null) {
+            return;
+        }
+        String route = mService != null ? mService.getAudioOutputRouting() : getArguments().getString(ARG_ROUTE);
+        /* Levels are stored in millibels, so keep both decimals. */
+        StringBuilder value = new StringBuilder();
+        for (float level : mSelected) {
+            value.append(String.format(Locale.ROOT, "%.2f", level)).append(';');
+        }
+
+        SharedPreferences preferences = getActivity().getSharedPreferences(
+                DSPManager.SHARED_PREFERENCES_BASENAME + "." + route, 0);
+        preferences.edit()
+                .putString("dsp.tone.eq", "custom")
+                .putString("dsp.tone.eq.custom", value.toString())
+                .apply();
+    }
+
+    /**
+     * Looks up the matches and their names, which both read the mapped
+     * library.
+     */
+    private class SearchTask extends AsyncTask<Void, Void, Void> {
+        private final PresetLibrary mSearchLibrary;
+        private final String mQuery;
+
+        private final List<Integer> mMatches = new ArrayList<Integer>();
+        private final List<String> mNames = new ArrayList<String>();
+
+        public SearchTask(PresetLibrary library, String query) {
+            mSearchLibrary = library;
+            mQuery = query;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            mMatches.addAll(mSearchLibrary.search(mQuery, MAX_RESULTS));
+            for (Integer index : mMatches) {
+                if (isCancelled()) {
+                    break;
+                }
+                mNames.add(mSearchLibrary.getName(index));
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (mSearchTask != this) {
+                return;
+            }
+            mSearchTask = null;
+            mResults.clear();
+            mResults.addAll(mMatches);
+            mAdapter.clear();
+            for (String name : mNames) {
+                mAdapter.add(name);
+            }
+        }
+    }
+
+    /**
+     * Streams every CSV and text file in the impulse response directory into
+     * a new library, off the main thread.
+     */
+    private class ImportTask extends AsyncTask<Void, Void, IOException> {
+        private final File mFile = getLibraryFile();
+
+        private int mCount;
+        private int mSkipped;
+
+        @Override
+        protected void onPreExecute() {
+            mImport.setEnabled(false);
+            mStatus.setText(R.string.presets_importing);
+        }
+
+        @Override
+        protected IOException doInBackground(Void... params) {
+            PresetImporter importer = null;
+            try {
+                importer = new PresetImporter(mFile);
+                File[] files = ImpulseResponsePreference.getImpulseResponseDirectory().listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        String name = file.getName().toLowerCase(Locale.ROOT);
+                        if (file.isFile() && (name.endsWith(".csv") || name.endsWith(".txt"))) {
+                            FileReader reader = new FileReader(file);
+                            try {
+                                importer.read(reader);
+                            } finally {
+                                reader.close();
+                            }
+                        }
+                    }
+                }
+                importer.finish();
+                mCount = importer.getCount();
+                mSkipped = importer.getSkipped();
+                return null;
+            } catch (IOException e) {
+                Log.w(TAG, "Preset import failed", e);
+                if (importer != null) {
+                    importer.abort();
+                }
+                return e;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(IOException error) {
+            if (getActivity() == null) {
+                return;
+            }
+            mImport.setEnabled(true);
+            openLibrary();
+            if (error != null) {
+                mStatus.setText(getString(R.string.presets_import_failed, error.getMessage()));
+            } else {
+                mStatus.setText(getString(R.string.presets_imported, mCount, mSkipped));
+            }
+        }
+    }
+}
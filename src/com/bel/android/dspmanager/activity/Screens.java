@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import com.bel.android.dspmanager.R;
+
+/**
+ * The pages the activity can show, with their resources resolved at compile
+ * time instead of looked up by name when the activity starts.
+ */
+public final class Screens {
+    public static final class Screen {
+        /** Route or page name, also the suffix of its preferences file */
+        public final String name;
+        public final int title;
+        public final int preferences;
+
+        private Screen(String name, int title, int preferences) {
+            this.name = name;
+            this.title = title;
+            this.preferences = preferences;
+        }
+    }
+
+    /** The audio routes, in tab order */
+    public static final Screen[] ROUTES = {
+        new Screen("headset", R.string.headset_title, R.xml.headset_preferences),
+        new Screen("speaker", R.string.speaker_title, R.xml.speaker_preferences),
+        new Screen("bluetooth", R.string.bluetooth_title, R.xml.bluetooth_preferences),
+    };
+
+    /** Shown after the routes when the kernel has Voodoo sound */
+    public static final Screen WM8994_SCREEN =
+            new Screen(WM8994.NAME, R.string.wm8994_title, R.xml.wm8994_preferences);
+
+    private Screens() {
+    }
+
+    /**
+     * @return The screen called name
+     * @throws IllegalArgumentException if there is none
+     */
+    public static Screen get(String name) {
+        for (Screen screen : ROUTES) {
+            if (screen.name.equals(name)) {
+                return screen;
+            }
+        }
+        if (WM8994_SCREEN.name.equals(name)) {
+            return WM8994_SCREEN;
+        }
+        throw new IllegalArgumentException("No screen " + name);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import android.app.Activity;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+
+/**
+ * Times the sections of activity startup on the main thread and logs them,
+ * together with how long the first frame took to come up after onCreate.
+ * Filter logcat on this tag to compare cold starts.
+ */
+public final class StartupTrace {
+    protected static final String TAG = "DSPManagerStartup";
+
+    private static final ArrayList<String> sNames = new ArrayList<String>();
+    private static final ArrayList<Long> sStarts = new ArrayList<Long>();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Start a section. Sections nest and must be closed with
+     * {@link #end()} on the same thread.
+     */
+    public static void begin(String name) {
+        sNames.add(name);
+        sStarts.add(System.nanoTime());
+    }
+
+    public static void end() {
+        int last = sNames.size() - 1;
+        String name = sNames.remove(last);
+        long start = sStarts.remove(last);
+        Log.i(TAG, String.format("%s: %.2f ms", name,
+                (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Log the time from start until the activity's first frame is about to
+     * be drawn.
+     *
+     * @param start {@link SystemClock#uptimeMillis()} at onCreate
+     */
+    public static void reportFirstFrame(Activity activity, final long start) {
+        final View decor = activity.getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(TAG, String.format("First frame %d ms after onCreate",
+                        SystemClock.uptimeMillis() - start));
+                return true;
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.io.IOException;
+
+/**
+ * Where sysfs reads and writes go. On the device this is the real file
+ * system; off the device the same code can run against a temporary
+ * directory or plain memory, see {@link SysfsBackends}.
+ * Implementations must be usable from several threads at once.
+ */
+public interface SysfsBackend {
+    /**
+     * An open node that can be written repeatedly. Every write replaces the
+     * node's whole value, as a store to a sysfs attribute does.
+     */
+    public interface Handle {
+        void write(byte[] value) throws IOException;
+
+        void close();
+    }
+
+    boolean exists(String path);
+
+    /**
+     * @return The first line of the node, without line terminator, or null
+     *         if it is empty
+     */
+    String readLine(String path) throws IOException;
+
+    /**
+     * Open an existing node for writing. Like sysfs, nodes can't be created
+     * by opening them.
+     */
+    Handle open(String path) throws IOException;
+}
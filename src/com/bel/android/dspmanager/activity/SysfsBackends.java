@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.io.File;
+
+/**
+ * Chooses the {@link SysfsBackend} that {@link Utils} and the
+ * {@link SysfsWriter} use.
+ */
+public class SysfsBackends {
+    /**
+     * System property choosing the sysfs backend: "memory", or a directory
+     * standing in for "/". Unset means the real files.
+     */
+    public static final String BACKEND_PROPERTY = "dspmanager.sysfs";
+
+    private static SysfsBackend sBackend;
+
+    private SysfsBackends() {
+    }
+
+    /**
+     * Return the backend all sysfs access goes through.
+     */
+    public static synchronized SysfsBackend get() {
+        if (sBackend == null) {
+            String backend = System.getProperty(BACKEND_PROPERTY);
+            if (backend == null || backend.length() == 0) {
+                sBackend = new FileSysfsBackend();
+            } else if ("memory".equals(backend)) {
+                sBackend = new MemorySysfsBackend();
+            } else {
+                sBackend = new FileSysfsBackend(new File(backend));
+            }
+        }
+        return sBackend;
+    }
+
+    /**
+     * Replace the backend. Must be called before the first sysfs access.
+     */
+    public static synchronized void set(SysfsBackend backend) {
+        sBackend = backend;
+    }
+}
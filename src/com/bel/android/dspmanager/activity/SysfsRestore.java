@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.util.Map;
+
+/**
+ * Applies a set of wanted node values, writing only those that differ from
+ * what the nodes hold now.
+ */
+public class SysfsRestore {
+    private SysfsRestore() {
+    }
+
+    /**
+     * Queue the writes needed to get from current to plan, in plan's
+     * iteration order, and wait for them to finish.
+     *
+     * @param writer Writer to queue on
+     * @param current Values the nodes hold now; missing means unknown
+     * @param plan Values the nodes should hold
+     * @return Number of writes skipped because the value already matched
+     */
+    public static int apply(SysfsWriter writer, Map<String, String> current, Map<String, String> plan) {
+        int skipped = 0;
+        for (Map.Entry<String, String> entry : plan.entrySet()) {
+            if (sameValue(current.get(entry.getKey()), entry.getValue())) {
+                skipped++;
+            } else {
+                writer.write(entry.getKey(), entry.getValue());
+            }
+        }
+        writer.flush();
+        return skipped;
+    }
+
+    /**
+     * Compare a value read back from sysfs with one we would write. Numbers
+     * are compared by value, as we write some of them as decimals.
+     */
+    public static boolean sameValue(String current, String value) {
+        if (current == null || value == null) {
+            return false;
+        }
+        current = current.trim();
+        value = value.trim();
+        if (current.equals(value)) {
+            return true;
+        }
+        try {
+            return Double.parseDouble(current) == Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
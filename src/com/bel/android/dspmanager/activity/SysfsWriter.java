@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes sysfs values on a single background thread. Writes to the same
+ * path are coalesced so that only the latest value queued before the thread
+ * gets to it reaches the kernel, which lets seek bars write on every tick
+ * without blocking the UI thread.
+ * <p>
+ * Files are kept open and rewritten at offset 0 after the first write. sysfs
+ * calls the attribute's store function once per write regardless of the file
+ * position; a path whose handle stops accepting writes falls back to being
+ * reopened every time.
+ * <p>
+ * This class only uses plain Java so that it can be benchmarked off the
+ * device; java.util.logging ends up in logcat on Android.
+ */
+public class SysfsWriter {
+    protected static final String TAG = SysfsWriter.class.getSimpleName();
+
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    private static SysfsWriter sInstance;
+
+    private final SysfsBackend mBackend;
+
+    /** Values not yet handed to the writer thread, in first-queued order */
+    private final Map<String, String> mPending = new LinkedHashMap<String, String>();
+
+    /** Paths of the batch the writer thread is draining; empty when idle */
+    private Set<String> mWriting = Collections.emptySet();
+
+    /** Number of values that reached the backend */
+    private long mWriteCount;
+
+    /** Paths whose latest write did not reach the backend */
+    private final Set<String> mFailed = new HashSet<String>();
+
+    /** Open handles, only touched on the writer thread */
+    private final Map<String, SysfsBackend.Handle> mHandles = new HashMap<String, SysfsBackend.Handle>();
+
+    /** Paths whose handles could not be reused */
+    private final Set<String> mReopen = new HashSet<String>();
+
+    private final Thread mThread;
+
+    public SysfsWriter(SysfsBackend backend) {
+        mBackend = backend;
+        mThread = new Thread(TAG) {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        mThread.setDaemon(true);
+        // Maps to nice 10 on Android, as THREAD_PRIORITY_BACKGROUND does
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+        mThread.start();
+    }
+
+    public static synchronized SysfsWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new SysfsWriter(SysfsBackends.get());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue value to be written to path. Replaces any value for the same
+     * path that has not been written yet.
+     *
+     * @param path The sysfs file
+     * @param value The value
+     */
+    public void write(String path, String value) {
+        synchronized (mPending) {
+            mPending.put(path, value);
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * Block until every value queued before this call has been written.
+     * Returns at once if nothing is queued.
+     */
+    public void flush() {
+        if (Thread.currentThread() == mThread) {
+            return;
+        }
+        synchronized (mPending) {
+            try {
+                while (!mPending.isEmpty() || !mWriting.isEmpty()) {
+                    mPending.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Block until the value queued for path before this call, if any, has
+     * been written. Other paths may still be queued when this returns.
+     *
+     * @param path The sysfs file
+     */
+    public void flush(String path) {
+        if (Thread.currentThread() == mThread) {
+            return;
+        }
+        synchronized (mPending) {
+            try {
+                while (mPending.containsKey(path) || mWriting.contains(path)) {
+                    mPending.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Whether the latest value the writer thread took for path failed to
+     * reach the backend. Call {@link #flush()} first to include values
+     * still queued.
+     *
+     * @param path The sysfs file
+     */
+    public boolean hasFailed(String path) {
+        synchronized (mPending) {
+            return mFailed.contains(path);
+        }
+    }
+
+    /**
+     * @return How many values have reached the backend so far
+     */
+    public long getWriteCount() {
+        synchronized (mPending) {
+            return mWriteCount;
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Map<String, String> batch;
+            synchronized (mPending) {
+                mWriting = Collections.emptySet();
+                mPending.notifyAll();
+                while (mPending.isEmpty()) {
+                    try {
+                        mPending.wait();
+                    } catch (InterruptedException e) {
+                        // Keep serving writes; this thread lives as long as the process
+                    }
+                }
+                batch = new LinkedHashMap<String, String>(mPending);
+                mPending.clear();
+                mWriting = batch.keySet();
+            }
+
+            int written = 0;
+            Set<String> failed = new HashSet<String>();
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                if (writeNow(entry.getKey(), entry.getValue())) {
+                    written++;
+                } else {
+                    failed.add(entry.getKey());
+                }
+            }
+
+            synchronized (mPending) {
+                mWriteCount += written;
+                mFailed.removeAll(batch.keySet());
+                mFailed.addAll(failed);
+            }
+        }
+    }
+
+    private boolean writeNow(String path, String value) {
+        byte[] bytes = value.getBytes();
+
+        SysfsBackend.Handle handle = mHandles.get(path);
+        if (handle != null) {
+            try {
+                handle.write(bytes);
+                LOG.fine("File " + path + ": " + value);
+                return true;
+            } catch (IOException e) {
+                LOG.warning("Can't rewrite open " + path + ", reopening on each write: " + e);
+                mHandles.remove(path);
+                mReopen.add(path);
+                handle.close();
+            }
+        }
+
+        try {
+            handle = mBackend.open(path);
+        } catch (IOException e) {
+            LOG.warning("File " + path + " not found: " + e);
+            return false;
+        }
+
+        boolean keep = false;
+        try {
+            handle.write(bytes);
+            LOG.fine("File " + path + ": " + value);
+            keep = !mReopen.contains(path);
+            return true;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "IOException trying to write " + path, e);
+            return false;
+        } finally {
+            if (keep) {
+                mHandles.put(path, handle);
+            } else {
+                handle.close();
+            }
+        }
+    }
+}
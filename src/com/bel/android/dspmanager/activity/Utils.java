@@ -18,52 +18,27 @@ package com.bel.android.dspmanager.activity;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.SyncFailedException;
-
 public class Utils {
     protected static final String TAG = DSPManager.class.getSimpleName();
     private static final String TAG_READ = TAG + "_Read";
-    private static final String TAG_WRITE = TAG + "_Write";
 
     /**
-     * Write a string value to the specified file.
+     * Write a string value to the specified file. The write happens on the
+     * {@link SysfsWriter} thread; use {@link #flushWrites()} to wait for it.
      *
      * @param filename The filename
      * @param value The value
      */
     public static void writeValue(String filename, String value) {
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(new File(filename), false);
-            fos.write(value.getBytes());
-            fos.flush();
-        } catch (FileNotFoundException ex) {
-            Log.w(TAG, "File " + filename + " not found: " + ex);
-        } catch (SyncFailedException ex) {
-            Log.w(TAG, "File " + filename + " sync failed: " + ex);
-        } catch (IOException ex) {
-            Log.w(TAG, "IOException trying to sync " + filename + ": " + ex);
-        } catch (RuntimeException ex) {
-            Log.w(TAG, "RuntimeException while syncing file: ", ex);
-        } finally {
-            if (fos != null) {
-                try {
-                    Log.w(TAG_WRITE, "File " + filename + ": " + value);
-                    fos.close();
-                } catch (IOException ex) {
-                    Log.w(TAG, "IOException while closing synced file: ", ex);
-                } catch (RuntimeException ex) {
-                    Log.w(TAG, "RuntimeException while closing file: ", ex);
-                }
-            }
-        }
+        WM8994Capabilities.noteWritten(filename, value);
+        SysfsWriter.getInstance().write(filename, value);
+    }
 
+    /**
+     * Wait until all values passed to writeValue have reached their files.
+     */
+    public static void flushWrites() {
+        SysfsWriter.getInstance().flush();
     }
 
     /**
@@ -94,22 +69,19 @@ public class Utils {
      * @return Whether the file exists or not
      */
     public static boolean fileExists(String filename) {
-        return new File(filename).exists();
+        return SysfsBackends.get().exists(filename);
     }
 
     // Read value from sysfs interface
     public static String readOneLine(String sFile) {
-        BufferedReader brBuffer;
         String sLine = null;
 
+        // Don't read back a value that is still queued for this file
+        SysfsWriter.getInstance().flush(sFile);
+
         try {
-            brBuffer = new BufferedReader(new FileReader(sFile), 512);
-            try {
-                sLine = brBuffer.readLine();
-            } finally {
-                Log.w(TAG_READ, "File " + sFile + ": " + sLine);
-                brBuffer.close();
-            }
+            sLine = SysfsBackends.get().readLine(sFile);
+            Log.d(TAG_READ, "File " + sFile + ": " + sLine);
         } catch (Exception e) {
             Log.e(TAG_READ, "Exception when reading /sys/ file", e);
         }
@@ -18,9 +18,8 @@ package com.bel.android.dspmanager.activity;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -33,31 +32,35 @@ import com.bel.android.dspmanager.R;
 import com.bel.android.dspmanager.preference.BassBoostPreference;
 import com.bel.android.dspmanager.preference.HeadsetAmplifierPreference;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class WM8994 extends PreferenceFragment implements Preference.OnPreferenceChangeListener {
     protected static final String TAG = WM8994.class.getSimpleName();
 
     public static final String NAME = "wm8994";
-    public static final String WM8994_ENABLE_FILE = "/sys/class/misc/voodoo_sound_control/enable";
+    public static final String WM8994_ENABLE_FILE = WM8994Nodes.ENABLE;
     public static final String VOODOO_SOUND_PACKAGE = "org.projectvoodoo.controlapp";
 
     public static final String BASS_BOOST_ENABLE_PREF = "dsp.wm8994.bassboost.enable";
     public static final String BASS_BOOST_PRESET_PREF = "dsp.wm8994.bassboost.preset";
     public static final String BASS_BOOST_GAIN_RANGE_PREF = "dsp.wm8994.bassboost.gainrange";
-    public static final String BASS_BOOST_ENABLE_FILE = "/sys/class/misc/voodoo_sound/headphone_eq";
+    public static final String BASS_BOOST_ENABLE_FILE = WM8994Nodes.HEADPHONE_EQ;
 
     public static final String[][] OPTION_CONTROLS = {
-        {"/sys/class/misc/voodoo_sound/speaker_tuning", "pref_wm8994_speaker_tuning"},
-        {"/sys/class/misc/voodoo_sound/mono_downmix", "pref_wm8994_mono_downmix"},
-        {"/sys/class/misc/voodoo_sound/stereo_expansion", "pref_wm8994_stereo_expansion"},
-        {"/sys/class/misc/voodoo_sound/dac_direct", "pref_wm8994_dac_direct"},
-        {"/sys/class/misc/voodoo_sound/dac_osr128", "pref_wm8994_dac_osr128"},
-        {"/sys/class/misc/voodoo_sound/adc_osr128", "pref_wm8994_adc_osr128"},
-        {"/sys/class/misc/voodoo_sound/fll_tuning", "pref_wm8994_fll_tuning"},
+        {WM8994Nodes.SPEAKER_TUNING, "pref_wm8994_speaker_tuning"},
+        {WM8994Nodes.MONO_DOWNMIX, "pref_wm8994_mono_downmix"},
+        {WM8994Nodes.STEREO_EXPANSION, "pref_wm8994_stereo_expansion"},
+        {WM8994Nodes.DAC_DIRECT, "pref_wm8994_dac_direct"},
+        {WM8994Nodes.DAC_OSR128, "pref_wm8994_dac_osr128"},
+        {WM8994Nodes.ADC_OSR128, "pref_wm8994_adc_osr128"},
+        {WM8994Nodes.FLL_TUNING, "pref_wm8994_fll_tuning"},
         {BASS_BOOST_ENABLE_FILE, BASS_BOOST_ENABLE_PREF},
     };
 
     public static final String MIC_REC_PRESET[][] = {
-        {"/sys/class/misc/voodoo_sound/recording_preset", "dsp.wm8994.microphone.recording"}
+        {WM8994Nodes.RECORDING_PRESET, "dsp.wm8994.microphone.recording"}
     };
 
     private static final String PREF_ENABLED = "1";
@@ -71,11 +74,12 @@ public class WM8994 extends PreferenceFragment implements Preference.OnPreferenc
         addPreferencesFromResource(R.xml.wm8994_preferences);
 
         PreferenceScreen prefSet = getPreferenceScreen();
+        WM8994Capabilities caps = WM8994Capabilities.get(getActivity());
 
         for (int i = 0; i < OPTION_CONTROLS.length;i++) {
-            if (Utils.fileExists(OPTION_CONTROLS[i][0])) {
+            if (caps.exists(OPTION_CONTROLS[i][0])) {
                 mPreferences[i] = (CheckBoxPreference) prefSet.findPreference(OPTION_CONTROLS[i][1]);
-                mPreferences[i].setChecked(PREF_ENABLED.equals(Utils.readOneLine(OPTION_CONTROLS[i][0])));
+                mPreferences[i].setChecked(PREF_ENABLED.equals(caps.getValue(OPTION_CONTROLS[i][0])));
                 mPreferences[i].setOnPreferenceChangeListener(this);
             } else {
                 mPreferences[i] = (CheckBoxPreference) prefSet.findPreference(OPTION_CONTROLS[i][1]);
@@ -85,7 +89,7 @@ public class WM8994 extends PreferenceFragment implements Preference.OnPreferenc
         }
 
         Preference headsetPref = prefSet.findPreference("headphone_amp");
-        if (Utils.fileExists(HeadsetAmplifierPreference.FILE_PATH)) {
+        if (caps.exists(HeadsetAmplifierPreference.FILE_PATH)) {
             headsetPref.setOnPreferenceChangeListener(this);
         } else {
             PreferenceCategory category = (PreferenceCategory) prefSet.findPreference("wm8994_headphone_amp_category");
@@ -94,7 +98,7 @@ public class WM8994 extends PreferenceFragment implements Preference.OnPreferenc
         }
 
         Preference micPref = prefSet.findPreference(MIC_REC_PRESET[0][1]);
-        if (Utils.fileExists(MIC_REC_PRESET[0][0])) {
+        if (caps.exists(MIC_REC_PRESET[0][0])) {
             micPref.setOnPreferenceChangeListener(this);
         } else {
             PreferenceCategory category = (PreferenceCategory) prefSet.findPreference("wm8994_microphone_recording_category");
@@ -104,7 +108,7 @@ public class WM8994 extends PreferenceFragment implements Preference.OnPreferenc
 
         Preference bassBoostPreset = prefSet.findPreference(BASS_BOOST_PRESET_PREF);
         Preference bassBoostGainRange = prefSet.findPreference(BASS_BOOST_GAIN_RANGE_PREF);
-        if (Utils.fileExists(BASS_BOOST_ENABLE_FILE)) {
+        if (caps.exists(BASS_BOOST_ENABLE_FILE)) {
             bassBoostPreset.setOnPreferenceChangeListener(this);
             bassBoostGainRange.setOnPreferenceChangeListener(this);
         } else {
@@ -138,45 +142,81 @@ public class WM8994 extends PreferenceFragment implements Preference.OnPreferenc
     }
 
     /**
-     * Check if WM8994 is supported on this phone
+     * Check if WM8994 is supported on this phone. The Voodoo Sound app
+     * disables our control to prevent conflict.
      */
     public static boolean isSupported(Context context) {
-        boolean hasVoodoo = true;
-
-        // Try to detect presence of Voodoo Sound app and disable our control
-        // to prevent conflict.
-        try {
-            PackageManager pm = context.getPackageManager();
-            pm.getPackageInfo(VOODOO_SOUND_PACKAGE, 0);
-        } catch (NameNotFoundException e) {
-            hasVoodoo = false;
-        }
-
-        return !hasVoodoo && Utils.fileExists(WM8994_ENABLE_FILE);
+        return WM8994Capabilities.get(context).isSupported();
     }
 
+    /**
+     * Put the codec back into the state the user chose. The current values
+     * come from the capability snapshot, only nodes whose value differs are
+     * written, and the writes are applied in {@link WM8994Nodes#RESTORE_ORDER}
+     * before this returns. Blocks on sysfs, so call it off the main thread.
+     */
     public static void restore(Context context) {
+        long start = SystemClock.elapsedRealtime();
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        WM8994Capabilities caps = WM8994Capabilities.get(context);
 
+        Map<String, String> wanted = new HashMap<String, String>();
         for (String[] pair : OPTION_CONTROLS) {
-            if (Utils.fileExists(pair[0])) {
-                Log.d(TAG, "Does " + pair[1] + " exist == " + sharedPrefs.contains(pair[1]));
-                Utils.writeValue(pair[0], sharedPrefs.getBoolean(pair[1],
-                        PREF_ENABLED.equals(Utils.readOneLine(pair[0]))));
+            if (caps.exists(pair[0])) {
+                boolean enabled = sharedPrefs.getBoolean(pair[1],
+                        PREF_ENABLED.equals(caps.getValue(pair[0])));
+                wanted.put(pair[0], enabled ? PREF_ENABLED : PREF_DISABLED);
             }
         }
 
-        if (Utils.fileExists(MIC_REC_PRESET[0][0])) {
-            Log.d(TAG,"Does " + MIC_REC_PRESET[0][1] + " exist == " + sharedPrefs.contains(MIC_REC_PRESET[0][1]));
-            Utils.writeValue(MIC_REC_PRESET[0][0], sharedPrefs.getString(MIC_REC_PRESET[0][1], Utils.readOneLine(MIC_REC_PRESET[0][0])));
+        if (caps.exists(MIC_REC_PRESET[0][0])) {
+            wanted.put(MIC_REC_PRESET[0][0], sharedPrefs.getString(MIC_REC_PRESET[0][1],
+                    caps.getValue(MIC_REC_PRESET[0][0])));
         }
 
-        if (Utils.fileExists(BASS_BOOST_ENABLE_FILE)) {
-            BassBoostPreference.restore(context);
+        if (caps.exists(BASS_BOOST_ENABLE_FILE)) {
+            String[] values = BassBoostPreference.getBassBoostValues(context);
+            for (int i = 0; i < values.length; i++) {
+                wanted.put(BassBoostPreference.BASS_BOOST_FILES[i], values[i]);
+            }
         }
 
-        HeadsetAmplifierPreference.restore(context);
+        String amplifier = caps.getValue(HeadsetAmplifierPreference.FILE_PATH);
+        if (amplifier != null) {
+            try {
+                int level = sharedPrefs.getInt(HeadsetAmplifierPreference.FILE_PATH, Integer.valueOf(amplifier.trim()));
+                wanted.put(HeadsetAmplifierPreference.FILE_PATH, String.valueOf(level));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected headphone amplifier level " + amplifier);
+            }
+        }
 
-    }
+        Map<String, String> plan = new LinkedHashMap<String, String>();
+        for (String path : WM8994Nodes.RESTORE_ORDER) {
+            if (wanted.containsKey(path)) {
+                plan.put(path, wanted.get(path));
+            }
+        }
 
+        Map<String, String> current = new HashMap<String, String>();
+        for (String path : plan.keySet()) {
+            current.put(path, caps.getValue(path));
+        }
+        SysfsWriter writer = SysfsWriter.getInstance();
+        int skipped = SysfsRestore.apply(writer, current, plan);
+        int failed = 0;
+        for (Map.Entry<String, String> entry : plan.entrySet()) {
+            if (SysfsRestore.sameValue(current.get(entry.getKey()), entry.getValue())) {
+                continue;
+            }
+            if (writer.hasFailed(entry.getKey())) {
+                failed++;
+            } else {
+                WM8994Capabilities.noteWritten(entry.getKey(), entry.getValue());
+            }
+        }
+
+        Log.i(TAG, String.format("Restore took %d ms: %d writes, %d skipped, %d failed",
+                SystemClock.elapsedRealtime() - start, plan.size() - skipped - failed, skipped, failed));
+    }
 }
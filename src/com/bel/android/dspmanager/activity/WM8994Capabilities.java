@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Which Voodoo sound sysfs nodes this kernel has, and what they held when
+ * probed. The nodes are read in parallel the first time anyone asks and the
+ * result is kept for the life of the process, so the WM8994 tab, the page
+ * adapter and boot restore all share one probe. Installing or removing the
+ * Voodoo control app throws the snapshot away.
+ * <p>
+ * Values are kept in a concurrent map and the probe runs without the lock
+ * that guards the snapshot, so writes can be noted while a probe is
+ * running.
+ */
+public class WM8994Capabilities {
+    protected static final String TAG = WM8994Capabilities.class.getSimpleName();
+
+    private static final int PROBE_THREADS = 4;
+
+    /** The snapshot; replaced under sLock, read without it */
+    private static volatile WM8994Capabilities sInstance;
+
+    /** Bumped on invalidation, so a probe already running is not installed */
+    private static int sGeneration;
+
+    /** Guards sInstance and sGeneration updates; never held while probing */
+    private static final Object sLock = new Object();
+
+    /** Serializes probes, so concurrent first callers share one */
+    private static final Object sProbeLock = new Object();
+
+    private static boolean sReceiverRegistered;
+
+    private final boolean mVoodooApp;
+
+    /** Nodes that exist, readable or not */
+    private final Set<String> mPaths;
+
+    /** Last known values of the readable nodes */
+    private final Map<String, String> mValues;
+
+    private WM8994Capabilities(boolean voodooApp, Set<String> paths, Map<String, String> values) {
+        mVoodooApp = voodooApp;
+        mPaths = paths;
+        mValues = values;
+    }
+
+    /**
+     * Return the snapshot, probing the hardware if there is none yet.
+     *
+     * @param context Any context; its application context is kept
+     */
+    public static WM8994Capabilities get(Context context) {
+        WM8994Capabilities caps = sInstance;
+        if (caps != null) {
+            return caps;
+        }
+
+        synchronized (sProbeLock) {
+            int generation;
+            synchronized (sLock) {
+                if (sInstance != null) {
+                    return sInstance;
+                }
+                generation = sGeneration;
+            }
+
+            Context app = context.getApplicationContext();
+            if (!sReceiverRegistered) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+                filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+                filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+                filter.addDataScheme("package");
+                app.registerReceiver(sPackageReceiver, filter);
+                sReceiverRegistered = true;
+            }
+            caps = probe(app);
+
+            synchronized (sLock) {
+                if (sGeneration == generation) {
+                    sInstance = caps;
+                }
+            }
+            return caps;
+        }
+    }
+
+    /**
+     * Return the snapshot if there is one, without probing.
+     *
+     * @return The snapshot, or null if nobody has asked for it yet
+     */
+    public static WM8994Capabilities peek() {
+        return sInstance;
+    }
+
+    /**
+     * Probe again now, for callers that must see what the kernel holds
+     * rather than what this process last wrote.
+     */
+    public static WM8994Capabilities refresh(Context context) {
+        invalidate();
+        return get(context);
+    }
+
+    /**
+     * Drop the snapshot; the next {@link #get(Context)} probes again.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sInstance = null;
+        }
+    }
+
+    private static final BroadcastReceiver sPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null && WM8994.VOODOO_SOUND_PACKAGE.equals(data.getSchemeSpecificPart())) {
+                Log.i(TAG, "Voodoo control app changed, dropping capabilities");
+                invalidate();
+            }
+        }
+    };
+
+    private static WM8994Capabilities probe(Context context) {
+        List<String> paths = new ArrayList<String>();
+        paths.add(WM8994Nodes.ENABLE);
+        for (String path : WM8994Nodes.RESTORE_ORDER) {
+            paths.add(path);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(PROBE_THREADS);
+        List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+        try {
+            for (final String path : paths) {
+                futures.add(executor.submit(new Callable<String[]>() {
+                    @Override
+                    public String[] call() {
+                        if (!Utils.fileExists(path)) {
+                            return null;
+                        }
+                        return new String[] { path, Utils.readOneLine(path) };
+                    }
+                }));
+            }
+
+            // Query the package manager while the nodes are being read
+            boolean voodooApp = true;
+            try {
+                PackageManager pm = context.getPackageManager();
+                pm.getPackageInfo(WM8994.VOODOO_SOUND_PACKAGE, 0);
+            } catch (NameNotFoundException e) {
+                voodooApp = false;
+            }
+
+            Set<String> present = new HashSet<String>();
+            Map<String, String> values = new ConcurrentHashMap<String, String>();
+            for (Future<String[]> future : futures) {
+                try {
+                    String[] result = future.get();
+                    if (result != null) {
+                        present.add(result[0]);
+                        if (result[1] != null) {
+                            values.put(result[0], result[1]);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Probing sysfs failed", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new WM8994Capabilities(voodooApp, present, values);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Whether we should control the codec: the kernel has Voodoo sound and
+     * the Voodoo control app is not around to conflict with us.
+     */
+    public boolean isSupported() {
+        return !mVoodooApp && exists(WM8994.WM8994_ENABLE_FILE);
+    }
+
+    public boolean exists(String path) {
+        return mPaths.contains(path);
+    }
+
+    /**
+     * Last known value of a probed node: its value at probe time, or what
+     * was written to it since.
+     *
+     * @param path The sysfs file
+     * @return The value, or null if the node is missing or unreadable
+     */
+    public String getValue(String path) {
+        return mValues.get(path);
+    }
+
+    /**
+     * Record a value written to path, if it is a probed node. Takes no lock,
+     * so writers never wait for a probe.
+     */
+    protected static void noteWritten(String path, String value) {
+        WM8994Capabilities caps = sInstance;
+        if (caps != null && value != null && caps.mPaths.contains(path)) {
+            caps.mValues.put(path, value);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+/**
+ * The Voodoo sound sysfs nodes of the WM8994 codec. This class has no
+ * Android dependencies so the node set can be used off the device.
+ */
+public class WM8994Nodes {
+    public static final String CONTROL_DIRECTORY = "/sys/class/misc/voodoo_sound_control";
+    public static final String DIRECTORY = "/sys/class/misc/voodoo_sound";
+
+    public static final String ENABLE = CONTROL_DIRECTORY + "/enable";
+
+    public static final String SPEAKER_TUNING = DIRECTORY + "/speaker_tuning";
+    public static final String MONO_DOWNMIX = DIRECTORY + "/mono_downmix";
+    public static final String STEREO_EXPANSION = DIRECTORY + "/stereo_expansion";
+    public static final String DAC_DIRECT = DIRECTORY + "/dac_direct";
+    public static final String DAC_OSR128 = DIRECTORY + "/dac_osr128";
+    public static final String ADC_OSR128 = DIRECTORY + "/adc_osr128";
+    public static final String FLL_TUNING = DIRECTORY + "/fll_tuning";
+    public static final String HEADPHONE_EQ = DIRECTORY + "/headphone_eq";
+
+    public static final String RECORDING_PRESET = DIRECTORY + "/recording_preset";
+
+    public static final String DIGITAL_GAIN = DIRECTORY + "/digital_gain";
+    public static final String HEADPHONE_EQ_B1_GAIN = DIRECTORY + "/headphone_eq_b1_gain";
+    public static final String HEADPHONE_EQ_B2_GAIN = DIRECTORY + "/headphone_eq_b2_gain";
+
+    public static final String HEADPHONE_AMPLIFIER_LEVEL = DIRECTORY + "/headphone_amplifier_level";
+
+    /**
+     * Every node we restore, in the order restore writes them.
+     */
+    public static final String[] RESTORE_ORDER = {
+        SPEAKER_TUNING, MONO_DOWNMIX, STEREO_EXPANSION, DAC_DIRECT,
+        DAC_OSR128, ADC_OSR128, FLL_TUNING, HEADPHONE_EQ,
+        RECORDING_PRESET,
+        DIGITAL_GAIN, HEADPHONE_EQ_B1_GAIN, HEADPHONE_EQ_B2_GAIN,
+        HEADPHONE_AMPLIFIER_LEVEL,
+    };
+}
@@ -15,6 +15,7 @@ import android.widget.TextView;
 import com.bel.android.dspmanager.R;
 import com.bel.android.dspmanager.activity.Utils;
 import com.bel.android.dspmanager.activity.WM8994;
+import com.bel.android.dspmanager.activity.WM8994Nodes;
 
 public class BassBoostPreference extends DialogPreference {
 
@@ -26,9 +27,9 @@ public class BassBoostPreference extends DialogPreference {
     public static final String BASS_BOOST_PREF_GAIN = "dsp.wm8994.bassboost.gain";
     public static final String BASS_BOOST_PREF_RANGE = "dsp.wm8994.bassboost.range";
     public static final String[] BASS_BOOST_FILES = new String[] {
-        "/sys/class/misc/voodoo_sound/digital_gain",
-        "/sys/class/misc/voodoo_sound/headphone_eq_b1_gain",
-        "/sys/class/misc/voodoo_sound/headphone_eq_b2_gain",
+        WM8994Nodes.DIGITAL_GAIN,
+        WM8994Nodes.HEADPHONE_EQ_B1_GAIN,
+        WM8994Nodes.HEADPHONE_EQ_B2_GAIN,
     };
 
     public static final String[] BASS_BOOST_PREFS = {
@@ -98,11 +99,6 @@ public class BassBoostPreference extends DialogPreference {
         }
     }
 
-    public static void restore(Context context) {
-        Log.d(TAG, "restore");
-        writeBassBoost(context);
-    }
-
     public static void writeBassBoost(Context context) {
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         int gain = sharedPrefs.getInt(BASS_BOOST_PREF_GAIN, MAX_VALUE_GAIN);
@@ -119,6 +115,26 @@ public class BassBoostPreference extends DialogPreference {
     }
 
     public static void writeBassBoost(int gain, int range, String preset) {
+        String[] values = getBassBoostValues(gain, range, preset);
+        for (int i = 0; i < values.length; i++) {
+            Utils.writeValue(BASS_BOOST_FILES[i], values[i]);
+        }
+        Log.d(TAG, "writeBassBoost");
+
+    }
+
+    /**
+     * Values for {@link #BASS_BOOST_FILES} from the saved preferences.
+     */
+    public static String[] getBassBoostValues(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int gain = sharedPrefs.getInt(BASS_BOOST_PREF_GAIN, MAX_VALUE_GAIN);
+        int range = sharedPrefs.getInt(BASS_BOOST_PREF_RANGE, MAX_VALUE_RANGE);
+        String preset = sharedPrefs.getString(WM8994.BASS_BOOST_PRESET_PREF, "0");
+        return getBassBoostValues(gain, range, preset);
+    }
+
+    private static String[] getBassBoostValues(int gain, int range, String preset) {
         int mGain1 = 1;
         int mGain2 = 1;
         if (preset.equals("0")) {
@@ -129,11 +145,11 @@ public class BassBoostPreference extends DialogPreference {
 
         double digitalGain = (range / 5) * (gain * 1000);
         Log.d(TAG, "mDigitalGain == " + digitalGain);
-        Utils.writeValue(BASS_BOOST_FILES[0], String.valueOf(digitalGain * -1));
-        Utils.writeValue(BASS_BOOST_FILES[1], String.valueOf(gain * mGain1));
-        Utils.writeValue(BASS_BOOST_FILES[2], String.valueOf(gain * mGain2));
-        Log.d(TAG, "writeBassBoost");
-
+        return new String[] {
+            String.valueOf(digitalGain * -1),
+            String.valueOf(gain * mGain1),
+            String.valueOf(gain * mGain2),
+        };
     }
 
     class BassBoostSeekBar implements SeekBar.OnSeekBarChangeListener {
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.preference.DialogPreference;
-import android.preference.PreferenceManager;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -13,6 +12,8 @@ import android.widget.TextView;
 
 import com.bel.android.dspmanager.R;
 import com.bel.android.dspmanager.activity.Utils;
+import com.bel.android.dspmanager.activity.WM8994Capabilities;
+import com.bel.android.dspmanager.activity.WM8994Nodes;
 
 public class HeadsetAmplifierPreference extends DialogPreference {
 
@@ -24,7 +25,7 @@ public class HeadsetAmplifierPreference extends DialogPreference {
     private static final int MAX_VALUE = 62;
     private static final int OFFSET_VALUE = 57;
 
-    public static final String FILE_PATH = "/sys/class/misc/voodoo_sound/headphone_amplifier_level";
+    public static final String FILE_PATH = WM8994Nodes.HEADPHONE_AMPLIFIER_LEVEL;
 
     private static int sInstances = 0;
 
@@ -60,22 +61,6 @@ public class HeadsetAmplifierPreference extends DialogPreference {
         }
     }
 
-    public static void restore(Context context) {
-        if (!isSupported()) {
-            return;
-        }
-
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
-        Log.d(TAG, "restore");
-        String sDefaultValue = Utils.readOneLine(FILE_PATH);
-        int value = sharedPrefs.getInt(FILE_PATH, Integer.valueOf(sDefaultValue));
-        Utils.writeValue(FILE_PATH, String.valueOf(value));
-    }
-
-    public static boolean isSupported() {
-        return Utils.fileExists(FILE_PATH);
-    }
-
     class HeadsetAmplifierSeekBar implements SeekBar.OnSeekBarChangeListener {
 
         private String mFilePath;
@@ -90,7 +75,7 @@ public class HeadsetAmplifierPreference extends DialogPreference {
 
             // Read original value
             SharedPreferences sharedPreferences = getSharedPreferences();
-            mOriginal = sharedPreferences.getInt(mFilePath, Integer.valueOf(Utils.readOneLine(mFilePath)));
+            mOriginal = sharedPreferences.getInt(mFilePath, Integer.valueOf(WM8994Capabilities.get(getContext()).getValue(mFilePath)));
 
             mSeekBar.setMax(MAX_VALUE);
             reset();
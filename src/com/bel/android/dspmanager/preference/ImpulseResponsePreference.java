@@ -0,0 +1,46 @@
+package com.bel.android.dspmanager.preference;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.AttributeSet;
+
+import com.bel.android.dspmanager.R;
+
+/**
+ * Chooses a headphone impulse response among the WAV files in
+ * {@link #getImpulseResponseDirectory()}. The value is the absolute path,
+ * or the empty string for the built-in room effect.
+ */
+public class ImpulseResponsePreference extends SummariedListPreference {
+	public ImpulseResponsePreference(Context context, AttributeSet set) {
+		super(context, set);
+
+		List<CharSequence> entries = new ArrayList<CharSequence>();
+		List<CharSequence> entryValues = new ArrayList<CharSequence>();
+		entries.add(context.getString(R.string.pref_impulse_response_none));
+		entryValues.add("");
+
+		File[] files = getImpulseResponseDirectory().listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.isFile() && file.getName().toLowerCase().endsWith(".wav")) {
+					entries.add(file.getName());
+					entryValues.add(file.getAbsolutePath());
+				}
+			}
+		}
+
+		setEntries(entries.toArray(new CharSequence[entries.size()]));
+		setEntryValues(entryValues.toArray(new CharSequence[entryValues.size()]));
+	}
+
+	public static File getImpulseResponseDirectory() {
+		return new File(Environment.getExternalStorageDirectory(), "DSPManager");
+	}
+}
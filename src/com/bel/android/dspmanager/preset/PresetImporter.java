@@ -0,0 +1,378 @@
+package com.bel.android.dspmanager.preset;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds a {@link PresetLibrary} file from preset text, one preset per line,
+ * read as a stream. Understood lines are
+ * <pre>
+ * name,g1,g2,g3,g4,g5,g6            gains in dB of our six bands
+ * name,g1,...,g10                   gains in dB at 31 Hz .. 16 kHz octaves
+ * name,GraphicEQ: f g; f g; ...     AutoEQ curve, gain g dB at f Hz
+ * </pre>
+ * The name may be in double quotes and a tab may stand in for the first
+ * comma. Blank lines, lines starting with # and a header row starting with
+ * "name" are ignored; other lines that don't parse are counted and skipped.
+ * <p>
+ * Each preset is written out as soon as it is parsed: records go to the
+ * library file being built and names to a scratch file next to it. Only
+ * the trigram posting lists are kept in memory until {@link #finish()}.
+ */
+public class PresetImporter {
+	/** Centre frequencies of the equalizer bands, Hz */
+	public static final double[] BAND_FREQUENCIES = { 15.625, 62.5, 250, 1000, 4000, 16000 };
+
+	private static final double[] OCTAVE_FREQUENCIES = {
+		31.25, 62.5, 125, 250, 500, 1000, 2000, 4000, 8000, 16000
+	};
+
+	/** Range the equalizer UI can show and set, dB */
+	private static final float MAX_GAIN = 12;
+
+	/** Scratch space for records, names and the index on their way out */
+	private static final int BUFFER_SIZE = 16384;
+
+	/** Growable list of record indexes, without boxing each one */
+	private static class Postings {
+		int[] indexes = new int[4];
+		int size;
+
+		void add(int index) {
+			/* Records are added in order, so each list stays ascending. */
+			if (size != 0 && indexes[size - 1] == index) {
+				return;
+			}
+			if (size == indexes.length) {
+				indexes = Arrays.copyOf(indexes, size * 2);
+			}
+			indexes[size ++] = index;
+		}
+	}
+
+	private final File mFile;
+	private final File mTemporary;
+	private final File mNamesTemporary;
+	private final RandomAccessFile mOutput;
+	private final RandomAccessFile mNamesOutput;
+	private final ByteBuffer mRecordBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer mNameBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private final Map<Integer, Postings> mGrams = new HashMap<Integer, Postings>();
+
+	private int mCount;
+	private int mNamesSize;
+	private int mSkipped;
+	private boolean mDone;
+
+	/**
+	 * Start building a library that will replace file. The file is built
+	 * next to its destination and renamed over it by {@link #finish()}, so
+	 * readers never see a partial library.
+	 */
+	public PresetImporter(File file) throws IOException {
+		mFile = file;
+		mTemporary = new File(file.getPath() + ".tmp");
+		mNamesTemporary = new File(file.getPath() + ".names.tmp");
+		mTemporary.delete();
+		mNamesTemporary.delete();
+		mOutput = new RandomAccessFile(mTemporary, "rw");
+		try {
+			mNamesOutput = new RandomAccessFile(mNamesTemporary, "rw");
+		} catch (IOException e) {
+			mOutput.close();
+			mTemporary.delete();
+			throw e;
+		}
+		/* The header is filled in once the sizes are known. */
+		mOutput.seek(PresetLibrary.HEADER_SIZE);
+	}
+
+	/**
+	 * Parse all presets from reader, which is read line by line.
+	 */
+	public void read(Reader reader) throws IOException {
+		BufferedReader lines = new BufferedReader(reader, 8192);
+		String line;
+		while ((line = lines.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			if (!parse(line) && !line.regionMatches(true, 0, "name", 0, 4)) {
+				mSkipped ++;
+			}
+		}
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public int getSkipped() {
+		return mSkipped;
+	}
+
+	/**
+	 * Parse one line and write out the preset it holds.
+	 *
+	 * @return false if the line is not a preset
+	 */
+	private boolean parse(String line) throws IOException {
+		String name;
+		int rest;
+		if (line.charAt(0) == '"') {
+			StringBuilder sb = new StringBuilder();
+			int i = 1;
+			while (true) {
+				if (i >= line.length()) {
+					return false;
+				}
+				char c = line.charAt(i ++);
+				if (c == '"') {
+					if (i < line.length() && line.charAt(i) == '"') {
+						sb.append('"');
+						i ++;
+					} else {
+						break;
+					}
+				} else {
+					sb.append(c);
+				}
+			}
+			name = sb.toString();
+			rest = i;
+		} else {
+			rest = 0;
+			while (rest < line.length() && line.charAt(rest) != ',' && line.charAt(rest) != '\t') {
+				rest ++;
+			}
+			name = line.substring(0, rest);
+		}
+		name = name.trim();
+		while (rest < line.length() && (line.charAt(rest) == ',' || line.charAt(rest) == '\t' || line.charAt(rest) == ' ')) {
+			rest ++;
+		}
+		if (name.length() == 0 || name.length() > 255 || rest >= line.length()) {
+			return false;
+		}
+
+		try {
+			float[] gains;
+			String values = line.substring(rest);
+			if (values.startsWith("GraphicEQ:")) {
+				gains = sampleGraphicEq(values.substring(10));
+			} else {
+				String[] fields = values.split("[,;\\t]");
+				float[] numbers = new float[fields.length];
+				for (int i = 0; i < fields.length; i ++) {
+					numbers[i] = Float.parseFloat(fields[i].trim());
+				}
+				if (numbers.length == BAND_FREQUENCIES.length) {
+					gains = numbers;
+				} else if (numbers.length == OCTAVE_FREQUENCIES.length) {
+					gains = sample(OCTAVE_FREQUENCIES, numbers);
+				} else {
+					return false;
+				}
+			}
+			if (gains == null) {
+				return false;
+			}
+
+			short[] levels = new short[gains.length];
+			for (int i = 0; i < gains.length; i ++) {
+				float gain = Math.max(-MAX_GAIN, Math.min(MAX_GAIN, gains[i]));
+				levels[i] = (short) Math.round(gain * 100);
+			}
+			add(name, levels);
+			return true;
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static float[] sampleGraphicEq(String curve) {
+		String[] points = curve.split(";");
+		double[] frequencies = new double[points.length];
+		float[] gains = new float[points.length];
+		int n = 0;
+		for (String point : points) {
+			String[] fg = point.trim().split("\\s+");
+			if (fg.length != 2) {
+				continue;
+			}
+			frequencies[n] = Double.parseDouble(fg[0]);
+			gains[n] = Float.parseFloat(fg[1]);
+			if (frequencies[n] <= 0 || (n > 0 && frequencies[n] <= frequencies[n - 1])) {
+				return null;
+			}
+			n ++;
+		}
+		if (n == 0) {
+			return null;
+		}
+		return sample(Arrays.copyOf(frequencies, n), Arrays.copyOf(gains, n));
+	}
+
+	/**
+	 * Read a curve given at ascending frequencies at our band frequencies,
+	 * interpolating linearly over log frequency and holding the end values.
+	 */
+	private static float[] sample(double[] frequencies, float[] gains) {
+		float[] result = new float[BAND_FREQUENCIES.length];
+		int j = 0;
+		for (int i = 0; i < BAND_FREQUENCIES.length; i ++) {
+			double f = BAND_FREQUENCIES[i];
+			while (j < frequencies.length - 1 && frequencies[j + 1] < f) {
+				j ++;
+			}
+			if (f <= frequencies[0]) {
+				result[i] = gains[0];
+			} else if (j == frequencies.length - 1) {
+				result[i] = gains[j];
+			} else {
+				double t = Math.log(f / frequencies[j]) / Math.log(frequencies[j + 1] / frequencies[j]);
+				result[i] = (float) (gains[j] + (gains[j + 1] - gains[j]) * Math.min(1, t));
+			}
+		}
+		return result;
+	}
+
+	private void add(String name, short[] levels) throws IOException {
+		byte[] bytes = name.getBytes(PresetLibrary.UTF8);
+		if (mRecordBuffer.remaining() < PresetLibrary.recordSize(levels.length)) {
+			drain(mRecordBuffer, mOutput);
+		}
+		mRecordBuffer.putInt(mNamesSize);
+		mRecordBuffer.putShort((short) bytes.length);
+		for (short level : levels) {
+			mRecordBuffer.putShort(level);
+		}
+		if (mNameBuffer.remaining() < bytes.length) {
+			drain(mNameBuffer, mNamesOutput);
+		}
+		mNameBuffer.put(bytes);
+		mNamesSize += bytes.length;
+
+		String folded = PresetLibrary.fold(name);
+		for (int j = 0; j + 3 <= folded.length(); j ++) {
+			Integer gram = PresetLibrary.gram(folded, j);
+			Postings postings = mGrams.get(gram);
+			if (postings == null) {
+				postings = new Postings();
+				mGrams.put(gram, postings);
+			}
+			postings.add(mCount);
+		}
+		mCount ++;
+	}
+
+	private static void drain(ByteBuffer buffer, RandomAccessFile file) throws IOException {
+		buffer.flip();
+		file.getChannel().write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Append the names and the index to what has been read so far, and put
+	 * the library in place.
+	 */
+	public void finish() throws IOException {
+		try {
+			int bands = BAND_FREQUENCIES.length;
+			int records = PresetLibrary.HEADER_SIZE;
+			int namesOffset = records + mCount * PresetLibrary.recordSize(bands);
+			int gramsOffset = namesOffset + mNamesSize;
+
+			drain(mRecordBuffer, mOutput);
+			drain(mNameBuffer, mNamesOutput);
+			FileChannel output = mOutput.getChannel();
+			FileChannel names = mNamesOutput.getChannel();
+			for (long done = 0; done < mNamesSize; ) {
+				done += names.transferTo(done, mNamesSize - done, output);
+			}
+
+			Integer[] keys = mGrams.keySet().toArray(new Integer[mGrams.size()]);
+			Arrays.sort(keys);
+			int postingsOffset = gramsOffset + keys.length * 12;
+			int first = 0;
+			for (Integer key : keys) {
+				if (mRecordBuffer.remaining() < 12) {
+					drain(mRecordBuffer, mOutput);
+				}
+				int size = mGrams.get(key).size;
+				mRecordBuffer.putInt(key);
+				mRecordBuffer.putInt(first);
+				mRecordBuffer.putInt(size);
+				first += size;
+			}
+			for (Integer key : keys) {
+				Postings postings = mGrams.get(key);
+				for (int i = 0; i < postings.size; i ++) {
+					if (mRecordBuffer.remaining() < 4) {
+						drain(mRecordBuffer, mOutput);
+					}
+					mRecordBuffer.putInt(postings.indexes[i]);
+				}
+			}
+			drain(mRecordBuffer, mOutput);
+
+			mRecordBuffer.putInt(PresetLibrary.MAGIC);
+			mRecordBuffer.putShort(PresetLibrary.VERSION);
+			mRecordBuffer.putShort((short) bands);
+			mRecordBuffer.putInt(mCount);
+			mRecordBuffer.putInt(keys.length);
+			mRecordBuffer.putInt(records);
+			mRecordBuffer.putInt(namesOffset);
+			mRecordBuffer.putInt(gramsOffset);
+			mRecordBuffer.putInt(postingsOffset);
+			mRecordBuffer.flip();
+			output.write(mRecordBuffer, 0);
+			mRecordBuffer.clear();
+
+			close();
+			if (!mTemporary.renameTo(mFile)) {
+				throw new IOException("Can't replace " + mFile);
+			}
+		} finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Give up, leaving any previous library in place. Does nothing after
+	 * {@link #finish()}.
+	 */
+	public void abort() {
+		try {
+			close();
+		} catch (IOException e) {
+			/* The files are deleted anyway. */
+		}
+		mTemporary.delete();
+		mNamesTemporary.delete();
+	}
+
+	private void close() throws IOException {
+		if (mDone) {
+			return;
+		}
+		mDone = true;
+		try {
+			mOutput.close();
+		} finally {
+			mNamesOutput.close();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.bel.android.dspmanager.preset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only view of an imported equalizer preset table, memory-mapped so
+ * that opening it costs nothing and a search only touches the index and the
+ * names it matches. Band levels are decoded only by {@link #getLevels(int)}.
+ * <p>
+ * The file is little-endian:
+ * <pre>
+ * header   int32 magic "DSPL", int16 version, int16 bands, int32 count,
+ *          int32 gram count, int32 records, int32 names, int32 grams,
+ *          int32 postings
+ * records  count x { int32 name offset, int16 name length,
+ *          int16[bands] levels in millibels }, in import order
+ * names    UTF-8
+ * grams    gram count x { int32 trigram hash, int32 first posting,
+ *          int32 posting count }, sorted by hash
+ * postings int32 record indexes, ascending within each gram
+ * </pre>
+ * Records stay in the order they were imported so that the importer can
+ * write each one out as it parses it; preset files list their models in a
+ * sensible order already.
+ */
+public class PresetLibrary {
+	static final int MAGIC = 0x4c505344;
+	static final short VERSION = 2;
+	static final int HEADER_SIZE = 32;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final MappedByteBuffer mBuffer;
+	private final int mBands;
+	private final int mCount;
+	private final int mGramCount;
+	private final int mRecords;
+	private final int mRecordSize;
+	private final int mNames;
+	private final int mGrams;
+	private final int mPostings;
+
+	private PresetLibrary(MappedByteBuffer buffer) throws IOException {
+		mBuffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE
+				|| buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION) {
+			throw new IOException("Not a preset library");
+		}
+		mBands = buffer.getShort(6);
+		mCount = buffer.getInt(8);
+		mGramCount = buffer.getInt(12);
+		mRecords = buffer.getInt(16);
+		mNames = buffer.getInt(20);
+		mGrams = buffer.getInt(24);
+		mPostings = buffer.getInt(28);
+		mRecordSize = recordSize(mBands);
+	}
+
+	static int recordSize(int bands) {
+		return 6 + bands * 2;
+	}
+
+	/**
+	 * Map a library file written by {@link PresetImporter}.
+	 *
+	 * @return the library, or null if file does not exist
+	 */
+	public static PresetLibrary open(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return new PresetLibrary(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public int getBands() {
+		return mBands;
+	}
+
+	public String getName(int index) {
+		int record = mRecords + index * mRecordSize;
+		int offset = mBuffer.getInt(record);
+		int length = mBuffer.getShort(record + 4) & 0xffff;
+		byte[] name = new byte[length];
+		for (int i = 0; i < length; i ++) {
+			name[i] = mBuffer.get(mNames + offset + i);
+		}
+		return new String(name, UTF8);
+	}
+
+	/**
+	 * Decode the band levels of a preset.
+	 *
+	 * @return levels in dB
+	 */
+	public float[] getLevels(int index) {
+		int record = mRecords + index * mRecordSize;
+		float[] levels = new float[mBands];
+		for (int i = 0; i < mBands; i ++) {
+			levels[i] = mBuffer.getShort(record + 6 + i * 2) / 100f;
+		}
+		return levels;
+	}
+
+	static String fold(String name) {
+		return name.toLowerCase(Locale.ROOT).trim();
+	}
+
+	static int gram(String folded, int i) {
+		return (folded.charAt(i) * 31 + folded.charAt(i + 1)) * 31 + folded.charAt(i + 2);
+	}
+
+	/**
+	 * Find presets whose name contains query, ignoring case. Queries shorter
+	 * than a trigram have no index to use, so they scan every name.
+	 *
+	 * @param limit most results to return
+	 * @return matching preset indexes, in library order
+	 */
+	public List<Integer> search(String query, int limit) {
+		String folded = fold(query);
+		List<Integer> results = new ArrayList<Integer>();
+		if (folded.length() < 3) {
+			byte[] ascii = toAscii(folded);
+			for (int i = 0; i < mCount && results.size() < limit; i ++) {
+				if (ascii != null ? nameContains(i, ascii) : fold(getName(i)).contains(folded)) {
+					results.add(i);
+				}
+			}
+			return results;
+		}
+
+		/* Intersect the posting lists of all trigrams, rarest first, and
+		 * only then check the names that are left. */
+		int grams = folded.length() - 2;
+		int[] first = new int[grams];
+		int[] count = new int[grams];
+		for (int i = 0; i < grams; i ++) {
+			int gram = findGram(gram(folded, i));
+			if (gram == -1) {
+				return results;
+			}
+			first[i] = mBuffer.getInt(mGrams + gram * 12 + 4);
+			count[i] = mBuffer.getInt(mGrams + gram * 12 + 8);
+			for (int j = i; j > 0 && count[j] < count[j - 1]; j --) {
+				int t = count[j]; count[j] = count[j - 1]; count[j - 1] = t;
+				t = first[j]; first[j] = first[j - 1]; first[j - 1] = t;
+			}
+		}
+
+		candidates:
+		for (int i = 0; i < count[0] && results.size() < limit; i ++) {
+			int index = mBuffer.getInt(mPostings + (first[0] + i) * 4);
+			for (int j = 1; j < grams; j ++) {
+				if (!containsPosting(first[j], count[j], index)) {
+					continue candidates;
+				}
+			}
+			if (fold(getName(index)).contains(folded)) {
+				results.add(index);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return folded as bytes, or null if it is not all ASCII
+	 */
+	private static byte[] toAscii(String folded) {
+		byte[] bytes = new byte[folded.length()];
+		for (int i = 0; i < bytes.length; i ++) {
+			char c = folded.charAt(i);
+			if (c >= 0x80) {
+				return null;
+			}
+			bytes[i] = (byte) c;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Match a lower case ASCII query against the UTF-8 name of a record
+	 * without decoding it. Bytes of other characters never equal ASCII.
+	 */
+	private boolean nameContains(int index, byte[] query) {
+		int record = mRecords + index * mRecordSize;
+		int name = mNames + mBuffer.getInt(record);
+		int last = (mBuffer.getShort(record + 4) & 0xffff) - query.length;
+		scan:
+		for (int i = 0; i <= last; i ++) {
+			for (int j = 0; j < query.length; j ++) {
+				int b = mBuffer.get(name + i + j);
+				if (b >= 'A' && b <= 'Z') {
+					b += 'a' - 'A';
+				}
+				if (b != query[j]) {
+					continue scan;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private boolean containsPosting(int first, int count, int index) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int value = mBuffer.getInt(mPostings + (first + mid) * 4);
+			if (value < index) {
+				lo = mid + 1;
+			} else if (value > index) {
+				hi = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int findGram(int hash) {
+		int lo = 0;
+		int hi = mGramCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int key = mBuffer.getInt(mGrams + mid * 12);
+			if (key < hash) {
+				lo = mid + 1;
+			} else if (key > hash) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+}
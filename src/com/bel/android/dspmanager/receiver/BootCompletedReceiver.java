@@ -6,12 +6,14 @@ import android.content.Context;
 import android.content.Intent;
 
 import com.bel.android.dspmanager.activity.WM8994;
+import com.bel.android.dspmanager.activity.WM8994Capabilities;
 import com.bel.android.dspmanager.service.HeadsetService;
 
 /**
  * This receiver starts our {@link HeadsetService} after system boot. Since
  * Android 2.3, we will always need a persistent process, because we are forced
- * to keep track of all open audio sessions.
+ * to keep track of all open audio sessions. The service itself stays dormant
+ * until some route enables an effect.
  *
  * @author alankila
  */
@@ -19,8 +21,23 @@ public class BootCompletedReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         context.startService(new Intent(context, HeadsetService.class));
-        if (WM8994.isSupported(context)) {
-            WM8994.restore(context);
-        }
+
+        // Probing and writing sysfs blocks, so do it on a thread of its own.
+        // The broadcast stays pending until restore has finished writing.
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        new Thread("WM8994Restore") {
+            @Override
+            public void run() {
+                try {
+                    // Read what the kernel holds now in one pass
+                    if (WM8994Capabilities.refresh(appContext).isSupported()) {
+                        WM8994.restore(appContext);
+                    }
+                } finally {
+                    result.finish();
+                }
+            }
+        }.start();
     }
 }
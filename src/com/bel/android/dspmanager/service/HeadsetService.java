@@ -1,9 +1,18 @@
 package com.bel.android.dspmanager.service;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import android.app.Service;
@@ -20,7 +29,10 @@ import android.media.audiofx.BassBoost;
 import android.media.audiofx.Equalizer;
 import android.media.audiofx.Virtualizer;
 import android.os.Binder;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.bel.android.dspmanager.activity.DSPManager;
@@ -30,12 +42,74 @@ import com.bel.android.dspmanager.activity.DSPManager;
  * <ol>
  * <li>new audio session declarations</li>
  * <li>headset plug / unplug events</li>
- * <li>preference update events.</li>
+ * <li>changes to the preferences of each route.</li>
  * </ol>
  *
  * @author alankila
  */
 public class HeadsetService extends Service {
+	/**
+	 * DSP cost of one effect instance, as measured by the native library.
+	 */
+	public static class EffectStatistics {
+		/** Number of process() calls so far */
+		public final int buffers;
+		/** Most expensive single process() call, ns */
+		public final int maxBufferTime;
+		/** Number of audio frames processed */
+		public final long frames;
+		/** Total time spent in process(), ns */
+		public final long totalTime;
+		/** Recent average of CPU cycles per audio frame */
+		public final float cyclesPerFrame;
+
+		protected EffectStatistics(ByteBuffer value) {
+			buffers = value.getInt(0);
+			maxBufferTime = value.getInt(4);
+			frames = value.getLong(8);
+			totalTime = value.getLong(16);
+			cyclesPerFrame = value.getInt(24) / 256f;
+		}
+	}
+
+	/**
+	 * Live levels of one effect instance, as reported by the native library.
+	 */
+	public static class EffectMeters {
+		/** Momentary loudness of the input, LUFS; -70 if not measured */
+		public final float loudness;
+		/** Gain the effect applies on its own account, dB */
+		public final float gain;
+		/** Gain of the output limiter, dB; 0 while off */
+		public final float limiter;
+		/** Enable/disable crossfade, 0 bypassed .. 1 fully on */
+		public final float fade;
+
+		protected EffectMeters(ByteBuffer value) {
+			loudness = value.getInt(0) / 100f;
+			gain = value.getInt(4) / 100f;
+			limiter = value.getInt(8) / 100f;
+			fade = value.getInt(12) / 65536f;
+		}
+	}
+
+	/**
+	 * Receives meters of all live sessions, keyed by session id, in the
+	 * same layout as {@link StatisticsListener}.
+	 */
+	public interface MeterListener {
+		void onMeters(Map<Integer, EffectMeters[]> meters);
+	}
+
+	/**
+	 * Receives statistics of all live sessions, keyed by session id. Each
+	 * array holds compression, equalizer, bass boost and virtualizer, in that
+	 * order; entries are null if the effect did not report.
+	 */
+	public interface StatisticsListener {
+		void onStatistics(Map<Integer, EffectStatistics[]> statistics);
+	}
+
 	/**
 	 * Helper class representing the full complement of effects attached to one
 	 * audio session.
@@ -48,6 +122,31 @@ public class HeadsetService extends Service {
 		private static final UUID EFFECT_TYPE_NULL = UUID
 				.fromString("ec7178ec-e5e1-4432-a3f4-4657e6795210");
 
+		/** Native parameter returning effect_statistics_t */
+		private static final int PARAM_STATISTICS = 2000;
+		private static final int STATISTICS_SIZE = 32;
+		/** Native parameter returning effect_meters_t */
+		private static final int PARAM_METERS = 2004;
+		private static final int METERS_SIZE = 16;
+		/** Native parameter setting the limiter ceiling in millibels */
+		private static final int PARAM_LIMITER = 2002;
+		private static final short LIMITER_CEILING = -100;
+		private static final short LIMITER_OFF = 1;
+		/** Native parameter that fades an effect out while it stays enabled */
+		private static final int PARAM_BYPASS = 2005;
+		/** Native parameter starting an impulse response upload: int32 frames, int32 sampling rate */
+		private static final int PARAM_IMPULSE_RESPONSE = 1000;
+		/** Native parameter carrying the next frames of the upload */
+		private static final int PARAM_IMPULSE_RESPONSE_DATA = 1001;
+		/** Frames per upload call; 4 kB each */
+		private static final int IMPULSE_RESPONSE_CHUNK_FRAMES = 256;
+		/** Native parameter setting the loudness correction reference */
+		private static final int PARAM_LOUDNESS_CORRECTION = 1000;
+		/** Native parameter setting loudness correction and all band levels at once */
+		private static final int PARAM_EQUALIZER_LEVELS = 1002;
+		private static final int EQUALIZER_LEVELS_SIZE = 14;
+		private static final int EQUALIZER_BANDS = 6;
+
 		/** Session-specific dynamic range compressor */
 		public final AudioEffect mCompression;
 		/** Session-specific equalizer */
@@ -56,6 +155,10 @@ public class HeadsetService extends Service {
 		private final BassBoost mBassBoost;
 		/** Session-specific virtualizer */
 		private final Virtualizer mVirtualizer;
+		/** Does the equalizer take all levels in one call? */
+		private final boolean mEqualizerLevels;
+		/** Impulse response the virtualizer holds; null for the room effect */
+		private ImpulseResponse mImpulseResponse;
 
 		protected EffectSet(int sessionId) {
 			try {
@@ -72,6 +175,22 @@ public class HeadsetService extends Service {
 			mEqualizer = new Equalizer(0, sessionId);
 			mBassBoost = new BassBoost(0, sessionId);
 			mVirtualizer = new Virtualizer(0, sessionId);
+			mEqualizerLevels = getParameter(mEqualizer, PARAM_EQUALIZER_LEVELS, EQUALIZER_LEVELS_SIZE) != null;
+		}
+
+		protected AudioEffect getEffect(ProfileChange.Effect effect) {
+			switch (effect) {
+			case COMPRESSION:
+				return mCompression;
+			case BASS_BOOST:
+				return mBassBoost;
+			case EQUALIZER:
+				return mEqualizer;
+			case VIRTUALIZER:
+				return mVirtualizer;
+			default:
+				return null;
+			}
 		}
 
 		protected void release() {
@@ -81,6 +200,130 @@ public class HeadsetService extends Service {
 			mVirtualizer.release();
 		}
 
+		/**
+		 * Every effect carries a limiter, but only the virtualizer's runs.
+		 * It is inserted last, so it sees the final mix. While the limiter
+		 * is on, the virtualizer stays enabled and is bypassed rather than
+		 * disabled when it is switched off, so the limiter never moves and
+		 * its look-ahead never restarts. The bypass crossfades like an
+		 * enable.
+		 */
+		protected void setVirtualizerEnabled(boolean enabled, boolean limiter) {
+			setParameter(mVirtualizer, PARAM_BYPASS, (short) (enabled ? 0 : 1));
+			setParameter(mVirtualizer, PARAM_LIMITER, limiter ? LIMITER_CEILING : LIMITER_OFF);
+			mVirtualizer.setEnabled(enabled || limiter);
+		}
+
+		/**
+		 * Sets band levels and the loudness correction reference, with one
+		 * binder call if the native library understands it, otherwise with
+		 * one per band.
+		 *
+		 * @param levels band levels in millibels
+		 * @param loudness loudness correction reference in hundredths of dB
+		 */
+		protected void setEqualizerLevels(short[] levels, short loudness) {
+			if (mEqualizerLevels) {
+				setParameter(mEqualizer, PARAM_EQUALIZER_LEVELS, encodeEqualizerLevels(levels, loudness),
+						levels.length + " levels, loudness " + loudness);
+			} else {
+				for (short i = 0; i < levels.length; i ++) {
+					mEqualizer.setBandLevel(i, levels[i]);
+				}
+				setParameter(mEqualizer, PARAM_LOUDNESS_CORRECTION, loudness);
+			}
+		}
+
+		/**
+		 * Sends response to the virtualizer unless it holds it already. The
+		 * frames go in pieces that comfortably fit one binder call each.
+		 *
+		 * @param response the response, or null for the room effect
+		 */
+		protected void setImpulseResponse(ImpulseResponse response) {
+			if (response == mImpulseResponse) {
+				return;
+			}
+			mImpulseResponse = response;
+			if (response == null) {
+				setParameter(mVirtualizer, PARAM_IMPULSE_RESPONSE, encode(0, 0), "room effect");
+				return;
+			}
+
+			int length = response.getLength();
+			setParameter(mVirtualizer, PARAM_IMPULSE_RESPONSE, encode(length, response.getSamplingRate()),
+					length + " frames at " + response.getSamplingRate() + " Hz");
+			for (int i = 0; i < length; i += IMPULSE_RESPONSE_CHUNK_FRAMES) {
+				int frames = Math.min(IMPULSE_RESPONSE_CHUNK_FRAMES, length - i);
+				setParameter(mVirtualizer, PARAM_IMPULSE_RESPONSE_DATA, response.encode(i, frames),
+						"frames " + i + " to " + (i + frames));
+			}
+		}
+
+		protected EffectStatistics[] getStatistics() {
+			AudioEffect[] effects = {
+				mCompression, mEqualizer, mBassBoost, mVirtualizer
+			};
+			EffectStatistics[] statistics = new EffectStatistics[effects.length];
+			for (int i = 0; i < effects.length; i ++) {
+				ByteBuffer value = getParameter(effects[i], PARAM_STATISTICS, STATISTICS_SIZE);
+				if (value != null) {
+					statistics[i] = new EffectStatistics(value);
+				}
+			}
+			return statistics;
+		}
+
+		protected EffectMeters[] getMeters() {
+			AudioEffect[] effects = {
+				mCompression, mEqualizer, mBassBoost, mVirtualizer
+			};
+			EffectMeters[] meters = new EffectMeters[effects.length];
+			for (int i = 0; i < effects.length; i ++) {
+				ByteBuffer value = getParameter(effects[i], PARAM_METERS, METERS_SIZE);
+				if (value != null) {
+					meters[i] = new EffectMeters(value);
+				}
+			}
+			return meters;
+		}
+
+		/** AudioEffect.getParameter(byte[], byte[]), looked up once */
+		private static Method sGetParameter;
+
+		/**
+		 * Proxies call to AudioEffect.getParameter(byte[], byte[]) which is
+		 * available via reflection.
+		 *
+		 * @param audioEffect
+		 * @param parameter
+		 * @param size expected size of value
+		 * @return little-endian value, or null if the effect declined
+		 */
+		private static ByteBuffer getParameter(AudioEffect audioEffect, int parameter, int size) {
+			try {
+				byte[] arguments = new byte[] {
+						(byte) (parameter), (byte) (parameter >> 8),
+						(byte) (parameter >> 16), (byte) (parameter >> 24)
+				};
+				byte[] result = new byte[size];
+
+				if (sGetParameter == null) {
+					sGetParameter = AudioEffect.class.getMethod(
+							"getParameter", byte[].class, byte[].class);
+				}
+				int returnValue = (Integer) sGetParameter.invoke(audioEffect,
+						arguments, result);
+
+				if (returnValue < size) {
+					return null;
+				}
+				return ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
 		/**
 		 * Proxies call to AudioEffect.setParameter(byte[], byte[]) which is
 		 * available via reflection.
@@ -90,25 +333,56 @@ public class HeadsetService extends Service {
 		 * @param value
 		 */
 		private static void setParameter(AudioEffect audioEffect, int parameter, short value) {
+			setParameter(audioEffect, parameter, encode(value), "(short) " + value);
+		}
+
+		private static byte[] encode(short value) {
+			return new byte[] {
+					(byte) (value), (byte) (value >> 8)
+			};
+		}
+
+		private static byte[] encode(int first, int second) {
+			return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+					.putInt(first).putInt(second).array();
+		}
+
+		/**
+		 * Packs loudness correction and band levels for
+		 * {@link #PARAM_EQUALIZER_LEVELS}.
+		 */
+		private static byte[] encodeEqualizerLevels(short[] levels, short loudness) {
+			int bands = Math.min(levels.length, EQUALIZER_BANDS);
+			ByteBuffer value = ByteBuffer.allocate(2 + bands * 2).order(ByteOrder.LITTLE_ENDIAN);
+			value.putShort(loudness);
+			for (int i = 0; i < bands; i ++) {
+				value.putShort(levels[i]);
+			}
+			return value.array();
+		}
+
+		/** AudioEffect.setParameter(byte[], byte[]), looked up once */
+		private static Method sSetParameter;
+
+		private static void setParameter(AudioEffect audioEffect, int parameter, byte[] result, String description) {
 			try {
 				byte[] arguments = new byte[] {
 						(byte) (parameter), (byte) (parameter >> 8),
 						(byte) (parameter >> 16), (byte) (parameter >> 24)
 				};
-				byte[] result = new byte[] {
-						(byte) (value), (byte) (value >> 8)
-				};
 
-				Method setParameter = AudioEffect.class.getMethod(
-						"setParameter", byte[].class, byte[].class);
-				int returnValue = (Integer) setParameter.invoke(audioEffect,
+				if (sSetParameter == null) {
+					sSetParameter = AudioEffect.class.getMethod(
+							"setParameter", byte[].class, byte[].class);
+				}
+				int returnValue = (Integer) sSetParameter.invoke(audioEffect,
 						arguments, result);
 
 				if (returnValue != 0) {
 					Log.e(TAG,
 							String.format(
-									"Invalid argument error in setParameter(%d, (short) %d) == %d",
-									parameter, value, returnValue));
+									"Invalid argument error in setParameter(%d, %s) == %d",
+									parameter, description, returnValue));
 				}
 			} catch (Exception e) {
 				throw new RuntimeException(e);
@@ -116,6 +390,149 @@ public class HeadsetService extends Service {
 		}
 	}
 
+	/**
+	 * The settings of one route compiled into an ordered list of effect
+	 * operations with their values already encoded, so that a route switch
+	 * only has to run it on each session. Plans are rebuilt when their
+	 * route's profile changes, never on a route switch.
+	 */
+	protected static class ApplyPlan {
+		private abstract static class Op {
+			protected final ProfileChange.Effect mEffect;
+
+			protected Op(ProfileChange.Effect effect) {
+				mEffect = effect;
+			}
+
+			/**
+			 * Whether a change of effect's settings needs this operation.
+			 */
+			protected boolean appliesTo(ProfileChange.Effect effect) {
+				return mEffect == effect;
+			}
+
+			/**
+			 * @param overriddenLevels band levels to use instead of the
+			 *        profile's, or null
+			 */
+			protected abstract void run(EffectSet session, short[] overriddenLevels);
+		}
+
+		private static class EnableOp extends Op {
+			private final boolean mEnabled;
+
+			protected EnableOp(ProfileChange.Effect effect, boolean enabled) {
+				super(effect);
+				mEnabled = enabled;
+			}
+
+			@Override
+			protected void run(EffectSet session, short[] overriddenLevels) {
+				session.getEffect(mEffect).setEnabled(mEnabled);
+			}
+		}
+
+		private static class ParameterOp extends Op {
+			private final int mParameter;
+			private final byte[] mValue;
+			private final String mDescription;
+
+			protected ParameterOp(ProfileChange.Effect effect, int parameter, byte[] value, String description) {
+				super(effect);
+				mParameter = parameter;
+				mValue = value;
+				mDescription = description;
+			}
+
+			@Override
+			protected void run(EffectSet session, short[] overriddenLevels) {
+				EffectSet.setParameter(session.getEffect(mEffect), mParameter, mValue, mDescription);
+			}
+		}
+
+		private final List<Op> mOps = new ArrayList<Op>();
+
+		/**
+		 * @param impulseResponse the response profile.impulse names, or
+		 *        null for the room effect
+		 */
+		protected ApplyPlan(final Profile profile, final ImpulseResponse impulseResponse) {
+			mOps.add(new EnableOp(ProfileChange.Effect.COMPRESSION, profile.compressionEnabled));
+			mOps.add(new ParameterOp(ProfileChange.Effect.COMPRESSION, 0,
+					EffectSet.encode(profile.compressionMode), "(short) " + profile.compressionMode));
+
+			mOps.add(new EnableOp(ProfileChange.Effect.BASS_BOOST, profile.bassEnabled));
+			mOps.add(new Op(ProfileChange.Effect.BASS_BOOST) {
+				@Override
+				protected void run(EffectSet session, short[] overriddenLevels) {
+					session.mBassBoost.setStrength(profile.bassStrength);
+				}
+			});
+
+			mOps.add(new EnableOp(ProfileChange.Effect.EQUALIZER, profile.equalizerEnabled));
+			final byte[] levels = EffectSet.encodeEqualizerLevels(profile.equalizerLevels, profile.loudness);
+			mOps.add(new Op(ProfileChange.Effect.EQUALIZER) {
+				@Override
+				protected void run(EffectSet session, short[] overriddenLevels) {
+					if (overriddenLevels != null) {
+						session.setEqualizerLevels(overriddenLevels, profile.loudness);
+					} else if (session.mEqualizerLevels) {
+						EffectSet.setParameter(session.mEqualizer, EffectSet.PARAM_EQUALIZER_LEVELS, levels,
+								profile.equalizerLevels.length + " levels, loudness " + profile.loudness);
+					} else {
+						session.setEqualizerLevels(profile.equalizerLevels, profile.loudness);
+					}
+				}
+			});
+
+			/* The limiter lives on the virtualizer; see EffectSet.setVirtualizerEnabled. */
+			mOps.add(new Op(ProfileChange.Effect.VIRTUALIZER) {
+				@Override
+				protected boolean appliesTo(ProfileChange.Effect effect) {
+					return effect == ProfileChange.Effect.VIRTUALIZER || effect == ProfileChange.Effect.LIMITER;
+				}
+
+				@Override
+				protected void run(EffectSet session, short[] overriddenLevels) {
+					session.setVirtualizerEnabled(profile.virtualizerEnabled, profile.limiterEnabled);
+				}
+			});
+			mOps.add(new Op(ProfileChange.Effect.VIRTUALIZER) {
+				@Override
+				protected void run(EffectSet session, short[] overriddenLevels) {
+					session.mVirtualizer.setStrength(profile.virtualizerStrength);
+				}
+			});
+			mOps.add(new Op(ProfileChange.Effect.VIRTUALIZER) {
+				@Override
+				protected void run(EffectSet session, short[] overriddenLevels) {
+					session.setImpulseResponse(impulseResponse);
+				}
+			});
+		}
+
+		protected int size() {
+			return mOps.size();
+		}
+
+		protected void run(EffectSet session, short[] overriddenLevels) {
+			for (Op op : mOps) {
+				op.run(session, overriddenLevels);
+			}
+		}
+
+		/**
+		 * Run only the operations of one effect.
+		 */
+		protected void run(EffectSet session, ProfileChange.Effect effect, short[] overriddenLevels) {
+			for (Op op : mOps) {
+				if (op.appliesTo(effect)) {
+					op.run(session, overriddenLevels);
+				}
+			}
+		}
+	}
+
 	protected static final String TAG = HeadsetService.class.getSimpleName();
 
 	public class LocalBinder extends Binder {
@@ -126,9 +543,31 @@ public class HeadsetService extends Service {
 
 	private final LocalBinder mBinder = new LocalBinder();
 
-	/** Known audio sessions and their associated audioeffect suites. */
+	/** Known audio sessions and their associated audioeffect suites, only while active. */
 	protected final Map<Integer, EffectSet> mAudioSessions = new HashMap<Integer, EffectSet>();
 
+	/**
+	 * Effects left behind on going dormant. They were just disabled, and
+	 * are released once the native crossfade is over.
+	 */
+	private final Map<Integer, EffectSet> mFadingSessions = new HashMap<Integer, EffectSet>();
+
+	/** Open audio sessions, tracked even while dormant so that waking up can attach to them. */
+	private final Set<Integer> mSessionIds = new HashSet<Integer>();
+
+	/**
+	 * Does any route enable an effect? While not, the service is dormant:
+	 * it only listens for audio sessions, and holds no effects and no
+	 * routing receiver.
+	 */
+	private boolean mActive;
+
+	/** When the service last went active or dormant, in elapsed realtime */
+	private long mStateSince;
+
+	/** Broadcasts received since then */
+	private int mWakeups;
+
 	/** Is a wired headset plugged in? */
 	protected boolean mUseHeadset;
 
@@ -136,7 +575,97 @@ public class HeadsetService extends Service {
 	protected boolean mUseBluetooth;
 
 	/** Has DSPManager assumed control of equalizer levels? */
-	private float[] mOverriddenEqualizerLevels;
+	private short[] mOverriddenEqualizerLevels;
+
+	/** How often statistics are collected while someone listens. */
+	private static final int STATISTICS_INTERVAL_MS = 1000;
+
+	/**
+	 * How often meters are read while someone listens. Each poll is one
+	 * small GET_PARAM per effect, so this can stay on while visible.
+	 */
+	private static final int METERS_INTERVAL_MS = 250;
+
+	/**
+	 * How long after the last setting change the profile store is flushed
+	 * to storage. Dragging a slider changes the same field many times.
+	 */
+	private static final int PROFILE_FLUSH_DELAY_MS = 2000;
+
+	/**
+	 * How long a disabled effect takes to fade out: the native default of
+	 * 32 process() calls, at up to 50 ms of audio each.
+	 */
+	private static final int FADE_OUT_MS = 32 * 50;
+
+	/** Output routes, as returned by {@link #getAudioOutputRouting()} */
+	private static final String[] ROUTES = { "headset", "speaker", "bluetooth" };
+
+	private final Handler mHandler = new Handler();
+
+	private ProfileStore mProfiles;
+
+	/** Compiled settings of each route */
+	private final Map<String, ApplyPlan> mPlans = new HashMap<String, ApplyPlan>();
+
+	/** Impulse responses read so far, by path */
+	private final Map<String, ImpulseResponse> mImpulseResponses = new HashMap<String, ImpulseResponse>();
+
+	private final Runnable mProfileFlusher = new Runnable() {
+		@Override
+		public void run() {
+			mProfiles.flush();
+		}
+	};
+
+	private final Runnable mFadedReleaser = new Runnable() {
+		@Override
+		public void run() {
+			releaseFadingSessions();
+		}
+	};
+
+	private final List<StatisticsListener> mStatisticsListeners = new ArrayList<StatisticsListener>();
+
+	private final List<MeterListener> mMeterListeners = new ArrayList<MeterListener>();
+
+	private final Runnable mStatisticsPoller = new Runnable() {
+		@Override
+		public void run() {
+			Map<Integer, EffectStatistics[]> statistics = new HashMap<Integer, EffectStatistics[]>();
+			for (Map.Entry<Integer, EffectSet> entry : mAudioSessions.entrySet()) {
+				try {
+					statistics.put(entry.getKey(), entry.getValue().getStatistics());
+				}
+				catch (Exception e) {
+					Log.w(TAG, String.format("Can't read statistics of session %d", entry.getKey()), e);
+				}
+			}
+			for (StatisticsListener listener : new ArrayList<StatisticsListener>(mStatisticsListeners)) {
+				listener.onStatistics(statistics);
+			}
+			mHandler.postDelayed(this, STATISTICS_INTERVAL_MS);
+		}
+	};
+
+	private final Runnable mMeterPoller = new Runnable() {
+		@Override
+		public void run() {
+			Map<Integer, EffectMeters[]> meters = new HashMap<Integer, EffectMeters[]>();
+			for (Map.Entry<Integer, EffectSet> entry : mAudioSessions.entrySet()) {
+				try {
+					meters.put(entry.getKey(), entry.getValue().getMeters());
+				}
+				catch (Exception e) {
+					Log.w(TAG, String.format("Can't read meters of session %d", entry.getKey()), e);
+				}
+			}
+			for (MeterListener listener : new ArrayList<MeterListener>(mMeterListeners)) {
+				listener.onMeters(meters);
+			}
+			mHandler.postDelayed(this, METERS_INTERVAL_MS);
+		}
+	};
 
 	/**
 	 * Receive new broadcast intents for adding DSP to session
@@ -146,33 +675,91 @@ public class HeadsetService extends Service {
 		public void onReceive(Context context, Intent intent) {
 			String action = intent.getAction();
 			int sessionId = intent.getIntExtra(AudioEffect.EXTRA_AUDIO_SESSION, 0);
+			mWakeups ++;
 			if (action.equals(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION)) {
 				Log.i(TAG, String.format("New audio session: %d", sessionId));
-				if (! mAudioSessions.containsKey(sessionId)) {
+				mSessionIds.add(sessionId);
+				if (mActive && ! mAudioSessions.containsKey(sessionId)) {
 					mAudioSessions.put(sessionId, new EffectSet(sessionId));
 				}
 			}
 			if (action.equals(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION)) {
 				Log.i(TAG, String.format("Audio session removed: %d", sessionId));
+				mSessionIds.remove(sessionId);
 				EffectSet gone = mAudioSessions.remove(sessionId);
 				if (gone != null) {
 					gone.release();
 				}
+				gone = mFadingSessions.remove(sessionId);
+				if (gone != null) {
+					gone.release();
+				}
+			}
+			if (mActive) {
+				updateDsp();
 			}
-			updateDsp();
 		}
 	};
 
 	/**
-	 * Update audio parameters when preferences have been updated.
+	 * Listens to the preferences of one route. The service is the only
+	 * listener that sees every change: pages of the UI exist only while
+	 * shown, and changes made while the service is not running are picked
+	 * up by reconciling the store on start.
 	 */
-	private final BroadcastReceiver mPreferenceUpdateReceiver = new BroadcastReceiver() {
+	private class PreferenceListener implements SharedPreferences.OnSharedPreferenceChangeListener {
+		private final String mRoute;
+
+		protected PreferenceListener(String route) {
+			mRoute = route;
+		}
+
 		@Override
-		public void onReceive(Context context, Intent intent) {
-			Log.i(TAG, "Preferences updated.");
-			updateDsp();
+		public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+			ProfileChange change = ProfileChange.fromPreference(mRoute, preferences, key);
+			if (change != null) {
+				onProfileChange(change);
+			}
 		}
-	};
+	}
+
+	/** SharedPreferences only keeps weak references to its listeners. */
+	private final List<PreferenceListener> mPreferenceListeners = new ArrayList<PreferenceListener>();
+
+	/**
+	 * Applies a single setting change: the route's profile is updated and,
+	 * if the route is in use, only the changed effect is set.
+	 */
+	private void onProfileChange(ProfileChange change) {
+		Profile profile = getProfile(change.route);
+		change.applyTo(profile);
+		if (! mProfiles.update(change.route, profile, change.key)) {
+			mProfiles.save(change.route, profile);
+		}
+		scheduleProfileFlush();
+		ApplyPlan plan = createPlan(profile);
+		mPlans.put(change.route, plan);
+
+		if (mActive && change.route.equals(getAudioOutputRouting())) {
+			for (Integer sessionId : new ArrayList<Integer>(mAudioSessions.keySet())) {
+				EffectSet session = mAudioSessions.get(sessionId);
+				try {
+					plan.run(session, change.effect, mOverriddenEqualizerLevels);
+				}
+				catch (Exception e) {
+					Log.w(TAG, String.format("Trouble trying to manage session %d, removing...", sessionId), e);
+					mAudioSessions.remove(sessionId);
+				}
+			}
+		}
+
+		/* Waking up applies the whole plan. Going dormant comes after
+		 * the disable above, so the effect can fade out before it is
+		 * released. */
+		if (change.isEnable()) {
+			setActive(isAnyRouteActive());
+		}
+	}
 
 	/**
 	 * This code listens for changes in bluetooth and headset events. It is
@@ -186,6 +773,7 @@ public class HeadsetService extends Service {
 			final boolean prevUseHeadset = mUseHeadset;
 			final boolean prevUseBluetooth = mUseBluetooth;
 			final AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+			mWakeups ++;
             if (action.equals(Intent.ACTION_HEADSET_PLUG)) {
                 mUseHeadset = intent.getIntExtra("state", 0) == 1;
             } else if (action.equals(BluetoothDevice.ACTION_ACL_CONNECTED)) {
@@ -227,14 +815,115 @@ public class HeadsetService extends Service {
 		audioFilter.addAction(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
 		registerReceiver(mAudioSessionReceiver, audioFilter);
 
-		final IntentFilter intentFilter = new IntentFilter(Intent.ACTION_HEADSET_PLUG);
-		intentFilter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
-		intentFilter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
-		intentFilter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
-		registerReceiver(mRoutingReceiver, intentFilter);
+		/* Preferences may have been edited while the service was not
+		 * running, so the store is brought up to date with them first. */
+		mProfiles = new ProfileStore(getFilesDir());
+		for (String route : ROUTES) {
+			SharedPreferences preferences = getPreferences(route);
+			reconcileProfile(route, preferences);
+			mPlans.put(route, createPlan(getProfile(route)));
+			PreferenceListener listener = new PreferenceListener(route);
+			preferences.registerOnSharedPreferenceChangeListener(listener);
+			mPreferenceListeners.add(listener);
+		}
+		mStateSince = SystemClock.elapsedRealtime();
 
-		registerReceiver(mPreferenceUpdateReceiver,
-				new IntentFilter(DSPManager.ACTION_UPDATE_PREFERENCES));
+		if (! setActive(isAnyRouteActive())) {
+			Log.i(TAG, "No effect enabled in any route, staying dormant.");
+		}
+	}
+
+	private boolean isAnyRouteActive() {
+		for (String route : ROUTES) {
+			if (getProfile(route).isActive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wake up or go dormant.
+	 *
+	 * @return true if the state changed
+	 */
+	private boolean setActive(boolean active) {
+		if (active == mActive) {
+			return false;
+		}
+		long now = SystemClock.elapsedRealtime();
+		Log.i(TAG, String.format("Leaving %s state after %d s: %d wakeups, %d kB PSS",
+				mActive ? "active" : "dormant", (now - mStateSince) / 1000, mWakeups, getPss()));
+		mStateSince = now;
+		mWakeups = 0;
+		mActive = active;
+
+		if (active) {
+			final IntentFilter intentFilter = new IntentFilter(Intent.ACTION_HEADSET_PLUG);
+			intentFilter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
+			intentFilter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+			intentFilter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
+			registerReceiver(mRoutingReceiver, intentFilter);
+
+			/* Routing was not followed while dormant. */
+			AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+			mUseBluetooth = audioManager.isBluetoothA2dpOn();
+			mUseHeadset = audioManager.isWiredHeadsetOn();
+
+			/* Effects still fading out are taken back rather than attached twice. */
+			mHandler.removeCallbacks(mFadedReleaser);
+			for (Integer sessionId : mSessionIds) {
+				EffectSet session = mFadingSessions.remove(sessionId);
+				if (session != null) {
+					mAudioSessions.put(sessionId, session);
+					continue;
+				}
+				try {
+					mAudioSessions.put(sessionId, new EffectSet(sessionId));
+				}
+				catch (Exception e) {
+					Log.w(TAG, String.format("Can't attach to session %d", sessionId), e);
+				}
+			}
+			releaseFadingSessions();
+			updateDsp();
+		} else {
+			unregisterReceiver(mRoutingReceiver);
+			mFadingSessions.putAll(mAudioSessions);
+			mAudioSessions.clear();
+			mHandler.postDelayed(mFadedReleaser, FADE_OUT_MS);
+		}
+		return true;
+	}
+
+	private void releaseFadingSessions() {
+		for (EffectSet session : mFadingSessions.values()) {
+			session.release();
+		}
+		mFadingSessions.clear();
+	}
+
+	/**
+	 * @return Proportional set size of this process in kB
+	 */
+	private static int getPss() {
+		Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+		Debug.getMemoryInfo(memoryInfo);
+		return memoryInfo.getTotalPss();
+	}
+
+	/**
+	 * Reports the state, memory use and wakeups through
+	 * "adb shell dumpsys activity service HeadsetService".
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+		pw.println(String.format("State: %s for %d s", mActive ? "active" : "dormant",
+				(SystemClock.elapsedRealtime() - mStateSince) / 1000));
+		pw.println(String.format("Wakeups: %d", mWakeups));
+		pw.println(String.format("PSS: %d kB", getPss()));
+		pw.println(String.format("Audio sessions: %d, with effects: %d", mSessionIds.size(), mAudioSessions.size()));
+		pw.println(String.format("Routing: %s", getAudioOutputRouting()));
 	}
 
 	@Override
@@ -243,8 +932,17 @@ public class HeadsetService extends Service {
 		Log.i(TAG, "Stopping service.");
 
 		unregisterReceiver(mAudioSessionReceiver);
-		unregisterReceiver(mRoutingReceiver);
-		unregisterReceiver(mPreferenceUpdateReceiver);
+		setActive(false);
+		for (PreferenceListener listener : mPreferenceListeners) {
+			getPreferences(listener.mRoute).unregisterOnSharedPreferenceChangeListener(listener);
+		}
+		mPreferenceListeners.clear();
+		mHandler.removeCallbacks(mFadedReleaser);
+		releaseFadingSessions();
+		mHandler.removeCallbacks(mStatisticsPoller);
+		mHandler.removeCallbacks(mMeterPoller);
+		mHandler.removeCallbacks(mProfileFlusher);
+		mProfiles.flush();
 	}
 
 	@Override
@@ -259,10 +957,57 @@ public class HeadsetService extends Service {
 	 * @param levels
 	 */
 	public void setEqualizerLevels(float[] levels) {
-		mOverriddenEqualizerLevels = levels;
+		if (levels == null) {
+			mOverriddenEqualizerLevels = null;
+		} else {
+			mOverriddenEqualizerLevels = new short[levels.length];
+			for (int i = 0; i < levels.length; i ++) {
+				mOverriddenEqualizerLevels[i] = (short) Math.round(levels[i] * 100);
+			}
+		}
 		updateDsp();
 	}
 
+	/**
+	 * Start delivering per-session DSP cost to listener. Statistics are only
+	 * polled from the native effects while at least one listener exists.
+	 *
+	 * @param listener
+	 */
+	public void addStatisticsListener(StatisticsListener listener) {
+		if (mStatisticsListeners.isEmpty()) {
+			mHandler.post(mStatisticsPoller);
+		}
+		mStatisticsListeners.add(listener);
+	}
+
+	public void removeStatisticsListener(StatisticsListener listener) {
+		mStatisticsListeners.remove(listener);
+		if (mStatisticsListeners.isEmpty()) {
+			mHandler.removeCallbacks(mStatisticsPoller);
+		}
+	}
+
+	/**
+	 * Start delivering live levels to listener. Like statistics, meters are
+	 * only polled while at least one listener exists.
+	 *
+	 * @param listener
+	 */
+	public void addMeterListener(MeterListener listener) {
+		if (mMeterListeners.isEmpty()) {
+			mHandler.post(mMeterPoller);
+		}
+		mMeterListeners.add(listener);
+	}
+
+	public void removeMeterListener(MeterListener listener) {
+		mMeterListeners.remove(listener);
+		if (mMeterListeners.isEmpty()) {
+			mHandler.removeCallbacks(mMeterPoller);
+		}
+	}
+
 	/**
 	 * There appears to be no way to find out what the current actual audio routing is.
 	 * For instance, if a wired headset is plugged in, the following objects/classes are involved:</p>
@@ -289,10 +1034,19 @@ public class HeadsetService extends Service {
 	 * @return string token that identifies configuration to use
 	 */
 	public String getAudioOutputRouting() {
-		if (mUseBluetooth) {
+		boolean useBluetooth = mUseBluetooth;
+		boolean useHeadset = mUseHeadset;
+		/* The routing receiver is only registered while active, so the
+		 * flags go stale while dormant; ask the audio manager instead. */
+		if (! mActive) {
+			AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+			useBluetooth = audioManager.isBluetoothA2dpOn();
+			useHeadset = audioManager.isWiredHeadsetOn();
+		}
+		if (useBluetooth) {
 			return "bluetooth";
 		}
-		if (mUseHeadset) {
+		if (useHeadset) {
 			return "headset";
 		}
 		return "speaker";
@@ -303,42 +1057,93 @@ public class HeadsetService extends Service {
 	 */
 	protected void updateDsp() {
 		final String mode = getAudioOutputRouting();
-		SharedPreferences preferences = getSharedPreferences(DSPManager.SHARED_PREFERENCES_BASENAME + "." + mode, 0);
-		Log.i(TAG, "Selected configuration: " + mode);
+		ApplyPlan plan = getPlan(mode);
 
+		long start = System.nanoTime();
 		for (Integer sessionId : new ArrayList<Integer>(mAudioSessions.keySet())) {
 			try {
-				updateDsp(preferences, mAudioSessions.get(sessionId));
+				plan.run(mAudioSessions.get(sessionId), mOverriddenEqualizerLevels);
 			}
 			catch (Exception e) {
 				Log.w(TAG, String.format("Trouble trying to manage session %d, removing...", sessionId), e);
 				mAudioSessions.remove(sessionId);
 			}
 		}
+		Log.i(TAG, String.format("Selected configuration: %s, %d operations on %d sessions in %.2f ms",
+				mode, plan.size(), mAudioSessions.size(), (System.nanoTime() - start) / 1e6));
+	}
+
+	private SharedPreferences getPreferences(String route) {
+		return getSharedPreferences(DSPManager.SHARED_PREFERENCES_BASENAME + "." + route, 0);
+	}
+
+	/**
+	 * Return the stored profile of route, migrating it from the route's
+	 * preferences if the store has none.
+	 */
+	private Profile getProfile(String route) {
+		Profile profile = mProfiles.load(route);
+		if (profile == null) {
+			Log.i(TAG, "Migrating preferences of " + route + " to profile store");
+			profile = Profile.fromPreferences(getPreferences(route));
+			mProfiles.save(route, profile);
+			scheduleProfileFlush();
+		}
+		return profile;
 	}
 
-	private void updateDsp(SharedPreferences preferences, EffectSet session) {
-		session.mCompression.setEnabled(preferences.getBoolean("dsp.compression.enable", false));
-		EffectSet.setParameter(session.mCompression, 0, Short.valueOf(preferences.getString("dsp.compression.mode", "0")));
+	/**
+	 * Store the profile parsed from the preferences of route, unless the
+	 * stored one already matches.
+	 */
+	private void reconcileProfile(String route, SharedPreferences preferences) {
+		Profile profile = Profile.fromPreferences(preferences);
+		if (! profile.equals(mProfiles.load(route))) {
+			Log.i(TAG, "Updating profile of " + route + " from its preferences");
+			mProfiles.save(route, profile);
+			scheduleProfileFlush();
+		}
+	}
 
-		session.mBassBoost.setEnabled(preferences.getBoolean("dsp.bass.enable", false));
-		session.mBassBoost.setStrength(Short.valueOf(preferences.getString("dsp.bass.mode", "0")));
+	private void scheduleProfileFlush() {
+		mHandler.removeCallbacks(mProfileFlusher);
+		mHandler.postDelayed(mProfileFlusher, PROFILE_FLUSH_DELAY_MS);
+	}
 
-		/* Equalizer state is in a single string preference with all values separated by ; */
-		session.mEqualizer.setEnabled(preferences.getBoolean("dsp.tone.enable", false));
-		if (mOverriddenEqualizerLevels != null) {
-			for (short i = 0; i < mOverriddenEqualizerLevels.length; i ++) {
-				session.mEqualizer.setBandLevel(i, (short) Math.round(Float.valueOf(mOverriddenEqualizerLevels[i]) * 100));
-			}
-		} else {
-			String[] levels = preferences.getString("dsp.tone.eq.custom", "0;0;0;0;0").split(";");
-			for (short i = 0; i < levels.length; i ++) {
-				session.mEqualizer.setBandLevel(i, (short) Math.round(Float.valueOf(levels[i]) * 100));
+	private ApplyPlan createPlan(Profile profile) {
+		return new ApplyPlan(profile, getImpulseResponse(profile.impulse));
+	}
+
+	/**
+	 * Return the impulse response in path, reading it again if the file
+	 * changed since. A file that can't be used leaves the room effect on.
+	 *
+	 * @return the response, or null for the room effect
+	 */
+	private ImpulseResponse getImpulseResponse(String path) {
+		if (path.length() == 0) {
+			return null;
+		}
+		ImpulseResponse response = mImpulseResponses.get(path);
+		if (response == null || response.isStale()) {
+			mImpulseResponses.remove(path);
+			try {
+				response = ImpulseResponse.read(new File(path));
+				mImpulseResponses.put(path, response);
+			} catch (IOException e) {
+				Log.w(TAG, "Can't use impulse response " + path + ", using the room effect", e);
+				response = null;
 			}
 		}
-		EffectSet.setParameter(session.mEqualizer, 1000, Short.valueOf(preferences.getString("dsp.tone.loudness", "10000")));
+		return response;
+	}
 
-		session.mVirtualizer.setEnabled(preferences.getBoolean("dsp.headphone.enable", false));
-		session.mVirtualizer.setStrength(Short.valueOf(preferences.getString("dsp.headphone.mode", "0")));
+	private ApplyPlan getPlan(String route) {
+		ApplyPlan plan = mPlans.get(route);
+		if (plan == null) {
+			plan = createPlan(getProfile(route));
+			mPlans.put(route, plan);
+		}
+		return plan;
 	}
-}
\ No newline at end of file
+}
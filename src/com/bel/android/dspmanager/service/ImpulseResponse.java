@@ -0,0 +1,246 @@
+package com.bel.android.dspmanager.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+/**
+ * Stereo headphone impulse response set read from a WAV file. The service
+ * checks the file and sends the frames to the virtualizer itself, so the
+ * media server never has to open a path it was given.
+ * <p>
+ * 4-channel files hold the left to left, left to right, right to left and
+ * right to right paths. 2-channel files hold the left speaker as heard by
+ * the left and right ear; the right speaker is taken to be its mirror.
+ * <p>
+ * This class only uses plain Java so that it can be tested off the device;
+ * java.util.logging ends up in logcat on Android.
+ */
+public class ImpulseResponse {
+	protected static final String TAG = ImpulseResponse.class.getSimpleName();
+
+	private static final Logger LOG = Logger.getLogger(TAG);
+
+	/** Longest response the virtualizer takes, in frames; longer files are truncated. */
+	public static final int MAXIMUM_LENGTH = 4096;
+
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+	/** Size of the fmt chunk of WAVE_FORMAT_EXTENSIBLE files */
+	private static final int FMT_EXTENSIBLE_SIZE = 40;
+
+	/**
+	 * The KSDATAFORMAT_SUBTYPE GUIDs for PCM and float differ only in their
+	 * first two bytes, which hold the plain format code.
+	 */
+	private static final byte[] SUBFORMAT_GUID_TAIL = {
+		0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xaa, 0x00, 0x38, (byte) 0x9b, 0x71
+	};
+
+	private final File mFile;
+	private final long mModified;
+	private final long mSize;
+	private final int mSamplingRate;
+	/** LL, LR, RL, RR of each frame */
+	private final float[] mFrames;
+
+	private ImpulseResponse(File file, long modified, long size, int samplingRate, float[] frames) {
+		mFile = file;
+		mModified = modified;
+		mSize = size;
+		mSamplingRate = samplingRate;
+		mFrames = frames;
+	}
+
+	/**
+	 * Read and check a WAV impulse response.
+	 *
+	 * @throws IOException if file can't be read or is not a usable response
+	 */
+	public static ImpulseResponse read(File file) throws IOException {
+		long modified = file.lastModified();
+		long size = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return read(file, modified, size, in);
+		} catch (EOFException e) {
+			throw new IOException(file + " is truncated");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ImpulseResponse read(File file, long modified, long size, DataInputStream in) throws IOException {
+		byte[] header = new byte[12];
+		in.readFully(header);
+		if (! isTag(header, 0, "RIFF") || ! isTag(header, 8, "WAVE")) {
+			throw new IOException(file + " is not a WAV file");
+		}
+
+		int format = 0, channels = 0, samplingRate = 0, bits = 0;
+		byte[] chunk = new byte[8];
+		while (true) {
+			in.readFully(chunk);
+			long chunkSize = readLE(chunk, 4, 4) & 0xffffffffL;
+			if (isTag(chunk, 0, "fmt ") && chunkSize >= 16) {
+				byte[] fmt = new byte[(int) Math.min(chunkSize, FMT_EXTENSIBLE_SIZE)];
+				in.readFully(fmt);
+				format = readLE(fmt, 0, 2);
+				channels = readLE(fmt, 2, 2);
+				samplingRate = readLE(fmt, 4, 4);
+				bits = readLE(fmt, 14, 2);
+				chunkSize -= fmt.length;
+
+				/* Extensible files carry the real format in the SubFormat
+				 * GUID. Samples still take the container size in bits;
+				 * valid bits below it are zero padding in the low end. */
+				if (format == WAVE_FORMAT_EXTENSIBLE) {
+					if (fmt.length != FMT_EXTENSIBLE_SIZE || ! isGuidTail(fmt, 26)) {
+						throw new IOException(file + " has an unknown extensible sub-format");
+					}
+					format = readLE(fmt, 24, 2);
+				}
+			} else if (isTag(chunk, 0, "data")) {
+				float[] frames = readData(in, chunkSize, channels, format, bits);
+				if (samplingRate <= 0) {
+					throw new IOException(file + " has no sampling rate");
+				}
+				LOG.info("Read " + frames.length / 4 + " frames of " + channels
+						+ " channel impulse response from " + file);
+				return new ImpulseResponse(file, modified, size, samplingRate, frames);
+			}
+			/* Chunks are padded to even length. */
+			skip(in, chunkSize + (chunkSize & 1));
+		}
+	}
+
+	private static float[] readData(DataInputStream in, long size, int channels, int format, int bits)
+			throws IOException {
+		if (channels != 2 && channels != 4) {
+			throw new IOException("Impulse response must have 2 or 4 channels, not " + channels);
+		}
+		if (! (format == WAVE_FORMAT_PCM && (bits == 16 || bits == 24 || bits == 32))
+				&& ! (format == WAVE_FORMAT_IEEE_FLOAT && bits == 32)) {
+			throw new IOException("Unsupported sample format " + format + " with " + bits + " bits");
+		}
+
+		int sampleSize = bits / 8;
+		int frameSize = channels * sampleSize;
+		long length = size / frameSize;
+		if (length == 0) {
+			throw new IOException("Impulse response has no frames");
+		}
+		if (length > MAXIMUM_LENGTH) {
+			LOG.warning("Impulse response truncated from " + length + " to " + MAXIMUM_LENGTH + " frames");
+			length = MAXIMUM_LENGTH;
+		}
+
+		byte[] raw = new byte[(int) length * frameSize];
+		in.readFully(raw);
+
+		float[] frames = new float[(int) length * 4];
+		float[] channel = new float[4];
+		for (int i = 0; i < length; i ++) {
+			for (int c = 0; c < channels; c ++) {
+				int value = readLE(raw, i * frameSize + c * sampleSize, sampleSize);
+				if (format == WAVE_FORMAT_IEEE_FLOAT) {
+					channel[c] = Float.intBitsToFloat(value);
+					if (Float.isNaN(channel[c]) || Float.isInfinite(channel[c])) {
+						throw new IOException("Impulse response sample " + (i * channels + c) + " is not a number");
+					}
+				} else {
+					/* Left-align to 32 bits, then scale to -1 .. 1 */
+					channel[c] = (value << (32 - bits)) / 2147483648.0f;
+				}
+			}
+			if (channels == 2) {
+				channel[2] = channel[1];
+				channel[3] = channel[0];
+			}
+			System.arraycopy(channel, 0, frames, i * 4, 4);
+		}
+		return frames;
+	}
+
+	private static boolean isTag(byte[] data, int offset, String tag) {
+		for (int i = 0; i < 4; i ++) {
+			if (data[offset + i] != tag.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isGuidTail(byte[] data, int offset) {
+		for (int i = 0; i < SUBFORMAT_GUID_TAIL.length; i ++) {
+			if (data[offset + i] != SUBFORMAT_GUID_TAIL[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int readLE(byte[] data, int offset, int bytes) {
+		int value = 0;
+		for (int i = bytes - 1; i >= 0; i --) {
+			value = (value << 8) | (data[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static void skip(DataInputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * Whether the file has been changed since it was read.
+	 */
+	public boolean isStale() {
+		return mFile.lastModified() != mModified || mFile.length() != mSize;
+	}
+
+	/**
+	 * @return length in frames
+	 */
+	public int getLength() {
+		return mFrames.length / 4;
+	}
+
+	public int getSamplingRate() {
+		return mSamplingRate;
+	}
+
+	/**
+	 * @param path 0 to 3 for LL, LR, RL and RR
+	 */
+	public float getSample(int frame, int path) {
+		return mFrames[frame * 4 + path];
+	}
+
+	/**
+	 * Pack frames as the virtualizer receives them: little-endian floats,
+	 * LL, LR, RL, RR per frame.
+	 */
+	public byte[] encode(int first, int count) {
+		ByteBuffer value = ByteBuffer.allocate(count * 16).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = first * 4; i < (first + count) * 4; i ++) {
+			value.putFloat(mFrames[i]);
+		}
+		return value.array();
+	}
+}
@@ -0,0 +1,231 @@
+package com.bel.android.dspmanager.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import android.content.SharedPreferences;
+
+/**
+ * All DSP settings of one output route, in the units the effects take.
+ * Profiles are parsed from the string preferences the UI edits once, when
+ * those change, and otherwise read from {@link ProfileStore}.
+ */
+public class Profile {
+	/** Most equalizer bands a record holds */
+	public static final int MAX_BANDS = 16;
+	/** Most bytes of UTF-8 impulse response path a record holds */
+	public static final int MAX_IMPULSE_BYTES = 512;
+
+	/* Record layout, little-endian, relative to the start of the record */
+	private static final int OFFSET_FLAGS = 0;
+	private static final int OFFSET_COMPRESSION_MODE = 4;
+	private static final int OFFSET_BASS_STRENGTH = 6;
+	private static final int OFFSET_VIRTUALIZER_STRENGTH = 8;
+	private static final int OFFSET_LOUDNESS = 10;
+	private static final int OFFSET_BANDS = 12;
+	private static final int OFFSET_LEVELS = 14;
+	private static final int OFFSET_IMPULSE_LENGTH = OFFSET_LEVELS + MAX_BANDS * 2;
+	private static final int OFFSET_IMPULSE = OFFSET_IMPULSE_LENGTH + 2;
+	/** Size of the record in bytes */
+	public static final int SIZE = OFFSET_IMPULSE + MAX_IMPULSE_BYTES;
+
+	private static final int FLAG_COMPRESSION = 1 << 0;
+	private static final int FLAG_BASS = 1 << 1;
+	private static final int FLAG_EQUALIZER = 1 << 2;
+	private static final int FLAG_VIRTUALIZER = 1 << 3;
+	private static final int FLAG_LIMITER = 1 << 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public boolean compressionEnabled;
+	public short compressionMode;
+
+	public boolean bassEnabled;
+	public short bassStrength;
+
+	public boolean equalizerEnabled;
+	/** Band levels in millibels */
+	public short[] equalizerLevels = new short[0];
+	/** Loudness correction reference in hundredths of dB */
+	public short loudness = 10000;
+
+	public boolean virtualizerEnabled;
+	public short virtualizerStrength;
+	/** Absolute path of the impulse response, or empty for the built-in one */
+	public String impulse = "";
+
+	public boolean limiterEnabled;
+
+	/**
+	 * Parse the string preferences of one route. This is the only place the
+	 * semicolon-separated equalizer levels are parsed in the service.
+	 */
+	public static Profile fromPreferences(SharedPreferences preferences) {
+		Profile profile = new Profile();
+		profile.compressionEnabled = preferences.getBoolean("dsp.compression.enable", false);
+		profile.compressionMode = Short.valueOf(preferences.getString("dsp.compression.mode", "0"));
+
+		profile.bassEnabled = preferences.getBoolean("dsp.bass.enable", false);
+		profile.bassStrength = Short.valueOf(preferences.getString("dsp.bass.mode", "0"));
+
+		/* Equalizer state is in a single string preference with all values separated by ; */
+		profile.equalizerEnabled = preferences.getBoolean("dsp.tone.enable", false);
+		profile.equalizerLevels = parseLevels(preferences.getString("dsp.tone.eq.custom", "0;0;0;0;0"));
+		profile.loudness = Short.valueOf(preferences.getString("dsp.tone.loudness", "10000"));
+
+		profile.virtualizerEnabled = preferences.getBoolean("dsp.headphone.enable", false);
+		profile.virtualizerStrength = Short.valueOf(preferences.getString("dsp.headphone.mode", "0"));
+		profile.impulse = preferences.getString("dsp.headphone.impulse", "");
+
+		profile.limiterEnabled = preferences.getBoolean("dsp.limiter.enable", false);
+		return profile;
+	}
+
+	/**
+	 * Whether this profile changes the sound at all. The limiter is not
+	 * counted: it only ever runs inside one of the other effects.
+	 */
+	public boolean isActive() {
+		return compressionEnabled || bassEnabled || equalizerEnabled || virtualizerEnabled;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (! (o instanceof Profile)) {
+			return false;
+		}
+		Profile other = (Profile) o;
+		return compressionEnabled == other.compressionEnabled
+				&& compressionMode == other.compressionMode
+				&& bassEnabled == other.bassEnabled
+				&& bassStrength == other.bassStrength
+				&& equalizerEnabled == other.equalizerEnabled
+				&& Arrays.equals(equalizerLevels, other.equalizerLevels)
+				&& loudness == other.loudness
+				&& virtualizerEnabled == other.virtualizerEnabled
+				&& virtualizerStrength == other.virtualizerStrength
+				&& impulse.equals(other.impulse)
+				&& limiterEnabled == other.limiterEnabled;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(equalizerLevels) * 31 + impulse.hashCode();
+	}
+
+	/**
+	 * Parse equalizer levels in dB separated by ; into millibels.
+	 */
+	public static short[] parseLevels(String value) {
+		String[] custom = value.split(";");
+		int bands = Math.min(custom.length, MAX_BANDS);
+		short[] levels = new short[bands];
+		for (int i = 0; i < bands; i ++) {
+			levels[i] = (short) Math.round(Float.valueOf(custom[i]) * 100);
+		}
+		return levels;
+	}
+
+	/**
+	 * Read a record starting at offset of a little-endian buffer.
+	 */
+	public static Profile read(ByteBuffer buffer, int offset) {
+		Profile profile = new Profile();
+		int flags = buffer.getInt(offset + OFFSET_FLAGS);
+		profile.compressionEnabled = (flags & FLAG_COMPRESSION) != 0;
+		profile.bassEnabled = (flags & FLAG_BASS) != 0;
+		profile.equalizerEnabled = (flags & FLAG_EQUALIZER) != 0;
+		profile.virtualizerEnabled = (flags & FLAG_VIRTUALIZER) != 0;
+		profile.limiterEnabled = (flags & FLAG_LIMITER) != 0;
+
+		profile.compressionMode = buffer.getShort(offset + OFFSET_COMPRESSION_MODE);
+		profile.bassStrength = buffer.getShort(offset + OFFSET_BASS_STRENGTH);
+		profile.virtualizerStrength = buffer.getShort(offset + OFFSET_VIRTUALIZER_STRENGTH);
+		profile.loudness = buffer.getShort(offset + OFFSET_LOUDNESS);
+
+		int bands = Math.max(0, Math.min(buffer.getShort(offset + OFFSET_BANDS), MAX_BANDS));
+		profile.equalizerLevels = new short[bands];
+		for (int i = 0; i < bands; i ++) {
+			profile.equalizerLevels[i] = buffer.getShort(offset + OFFSET_LEVELS + i * 2);
+		}
+
+		int length = Math.max(0, Math.min(buffer.getShort(offset + OFFSET_IMPULSE_LENGTH), MAX_IMPULSE_BYTES));
+		byte[] impulse = new byte[length];
+		for (int i = 0; i < length; i ++) {
+			impulse[i] = buffer.get(offset + OFFSET_IMPULSE + i);
+		}
+		profile.impulse = new String(impulse, UTF8);
+		return profile;
+	}
+
+	/**
+	 * Write this profile as a record starting at offset of a little-endian
+	 * buffer. An impulse response path too long for the record is stored
+	 * as empty, which selects the built-in room effect.
+	 */
+	public void write(ByteBuffer buffer, int offset) {
+		writeFlags(buffer, offset);
+		buffer.putShort(offset + OFFSET_COMPRESSION_MODE, compressionMode);
+		buffer.putShort(offset + OFFSET_BASS_STRENGTH, bassStrength);
+		buffer.putShort(offset + OFFSET_VIRTUALIZER_STRENGTH, virtualizerStrength);
+		buffer.putShort(offset + OFFSET_LOUDNESS, loudness);
+		writeLevels(buffer, offset);
+		writeImpulse(buffer, offset);
+	}
+
+	/**
+	 * Write only the part of the record that holds the preference key, for
+	 * updating a stored record after a single setting changed.
+	 *
+	 * @return false if key is not part of the record
+	 */
+	public boolean writeField(ByteBuffer buffer, int offset, String key) {
+		if (key.endsWith(".enable")) {
+			writeFlags(buffer, offset);
+		} else if ("dsp.compression.mode".equals(key)) {
+			buffer.putShort(offset + OFFSET_COMPRESSION_MODE, compressionMode);
+		} else if ("dsp.bass.mode".equals(key)) {
+			buffer.putShort(offset + OFFSET_BASS_STRENGTH, bassStrength);
+		} else if ("dsp.headphone.mode".equals(key)) {
+			buffer.putShort(offset + OFFSET_VIRTUALIZER_STRENGTH, virtualizerStrength);
+		} else if ("dsp.tone.loudness".equals(key)) {
+			buffer.putShort(offset + OFFSET_LOUDNESS, loudness);
+		} else if ("dsp.tone.eq.custom".equals(key)) {
+			writeLevels(buffer, offset);
+		} else if ("dsp.headphone.impulse".equals(key)) {
+			writeImpulse(buffer, offset);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void writeFlags(ByteBuffer buffer, int offset) {
+		int flags = (compressionEnabled ? FLAG_COMPRESSION : 0)
+				| (bassEnabled ? FLAG_BASS : 0)
+				| (equalizerEnabled ? FLAG_EQUALIZER : 0)
+				| (virtualizerEnabled ? FLAG_VIRTUALIZER : 0)
+				| (limiterEnabled ? FLAG_LIMITER : 0);
+		buffer.putInt(offset + OFFSET_FLAGS, flags);
+	}
+
+	private void writeLevels(ByteBuffer buffer, int offset) {
+		int bands = Math.min(equalizerLevels.length, MAX_BANDS);
+		buffer.putShort(offset + OFFSET_BANDS, (short) bands);
+		for (int i = 0; i < MAX_BANDS; i ++) {
+			buffer.putShort(offset + OFFSET_LEVELS + i * 2, i < bands ? equalizerLevels[i] : 0);
+		}
+	}
+
+	private void writeImpulse(ByteBuffer buffer, int offset) {
+		byte[] bytes = impulse.getBytes(UTF8);
+		if (bytes.length > MAX_IMPULSE_BYTES) {
+			bytes = new byte[0];
+		}
+		buffer.putShort(offset + OFFSET_IMPULSE_LENGTH, (short) bytes.length);
+		for (int i = 0; i < bytes.length; i ++) {
+			buffer.put(offset + OFFSET_IMPULSE + i, bytes[i]);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.bel.android.dspmanager.service;
+
+import android.content.SharedPreferences;
+
+/**
+ * One changed DSP setting of one route, already converted to the type the
+ * effect takes. The service builds one from each preference change it
+ * hears of, so it only touches the effect that changed.
+ */
+public class ProfileChange {
+	public enum Effect {
+		COMPRESSION, BASS_BOOST, EQUALIZER, VIRTUALIZER, LIMITER
+	}
+
+	/** Route whose preferences changed, e.g. "headset" */
+	public final String route;
+	/** Effect the setting belongs to */
+	public final Effect effect;
+	/** Preference key of the setting */
+	public final String key;
+	/** Boolean, Short, short[] or String, depending on the key */
+	public final Object value;
+
+	public ProfileChange(String route, Effect effect, String key, Object value) {
+		this.route = route;
+		this.effect = effect;
+		this.key = key;
+		this.value = value;
+	}
+
+	/**
+	 * Describe a changed preference of route.
+	 *
+	 * @return the change, or null if key does not affect any effect
+	 */
+	public static ProfileChange fromPreference(String route, SharedPreferences preferences, String key) {
+		if ("dsp.compression.enable".equals(key)) {
+			return new ProfileChange(route, Effect.COMPRESSION, key, preferences.getBoolean(key, false));
+		}
+		if ("dsp.compression.mode".equals(key)) {
+			return new ProfileChange(route, Effect.COMPRESSION, key, Short.valueOf(preferences.getString(key, "0")));
+		}
+		if ("dsp.bass.enable".equals(key)) {
+			return new ProfileChange(route, Effect.BASS_BOOST, key, preferences.getBoolean(key, false));
+		}
+		if ("dsp.bass.mode".equals(key)) {
+			return new ProfileChange(route, Effect.BASS_BOOST, key, Short.valueOf(preferences.getString(key, "0")));
+		}
+		if ("dsp.tone.enable".equals(key)) {
+			return new ProfileChange(route, Effect.EQUALIZER, key, preferences.getBoolean(key, false));
+		}
+		if ("dsp.tone.eq.custom".equals(key)) {
+			return new ProfileChange(route, Effect.EQUALIZER, key, Profile.parseLevels(preferences.getString(key, "0;0;0;0;0")));
+		}
+		if ("dsp.tone.loudness".equals(key)) {
+			return new ProfileChange(route, Effect.EQUALIZER, key, Short.valueOf(preferences.getString(key, "10000")));
+		}
+		if ("dsp.headphone.enable".equals(key)) {
+			return new ProfileChange(route, Effect.VIRTUALIZER, key, preferences.getBoolean(key, false));
+		}
+		if ("dsp.headphone.mode".equals(key)) {
+			return new ProfileChange(route, Effect.VIRTUALIZER, key, Short.valueOf(preferences.getString(key, "0")));
+		}
+		if ("dsp.headphone.impulse".equals(key)) {
+			return new ProfileChange(route, Effect.VIRTUALIZER, key, preferences.getString(key, ""));
+		}
+		if ("dsp.limiter.enable".equals(key)) {
+			return new ProfileChange(route, Effect.LIMITER, key, preferences.getBoolean(key, false));
+		}
+		return null;
+	}
+
+	/**
+	 * Whether this switches an effect on or off, which may wake the service
+	 * up or let it go dormant.
+	 */
+	public boolean isEnable() {
+		return key.endsWith(".enable");
+	}
+
+	/**
+	 * Store the new value in profile.
+	 */
+	public void applyTo(Profile profile) {
+		if ("dsp.compression.enable".equals(key)) {
+			profile.compressionEnabled = (Boolean) value;
+		} else if ("dsp.compression.mode".equals(key)) {
+			profile.compressionMode = (Short) value;
+		} else if ("dsp.bass.enable".equals(key)) {
+			profile.bassEnabled = (Boolean) value;
+		} else if ("dsp.bass.mode".equals(key)) {
+			profile.bassStrength = (Short) value;
+		} else if ("dsp.tone.enable".equals(key)) {
+			profile.equalizerEnabled = (Boolean) value;
+		} else if ("dsp.tone.eq.custom".equals(key)) {
+			profile.equalizerLevels = (short[]) value;
+		} else if ("dsp.tone.loudness".equals(key)) {
+			profile.loudness = (Short) value;
+		} else if ("dsp.headphone.enable".equals(key)) {
+			profile.virtualizerEnabled = (Boolean) value;
+		} else if ("dsp.headphone.mode".equals(key)) {
+			profile.virtualizerStrength = (Short) value;
+		} else if ("dsp.headphone.impulse".equals(key)) {
+			profile.impulse = (String) value;
+		} else if ("dsp.limiter.enable".equals(key)) {
+			profile.limiterEnabled = (Boolean) value;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.bel.android.dspmanager.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Keeps one {@link Profile} per output route in a small memory-mapped file,
+ * so that switching routes or opening a session reads a fixed-size record
+ * instead of parsing preference strings.
+ * <p>
+ * Each file is a 12-byte little-endian header followed by one record:
+ * magic "DSPP", int16 version, int16 record size, int32 generation. A file
+ * with the wrong magic, version or size reads as missing; the caller then
+ * migrates the route from its preferences.
+ * <p>
+ * Writes land in the page cache right away, so every reader in the process
+ * sees them; {@link #flush()} is what makes them survive a crash or power
+ * loss.
+ */
+public class ProfileStore {
+	protected static final String TAG = ProfileStore.class.getSimpleName();
+
+	/** "DSPP" read as a little-endian int */
+	private static final int MAGIC = 0x50505344;
+	/** Bump whenever the layout of {@link Profile} changes */
+	private static final short VERSION = 1;
+
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_SIZE = 6;
+	private static final int OFFSET_GENERATION = 8;
+	private static final int HEADER_SIZE = 12;
+	private static final int FILE_SIZE = HEADER_SIZE + Profile.SIZE;
+
+	private final File mDirectory;
+
+	private final Map<String, MappedByteBuffer> mBuffers = new HashMap<String, MappedByteBuffer>();
+
+	public ProfileStore(File directory) {
+		mDirectory = directory;
+	}
+
+	private MappedByteBuffer getBuffer(String route) throws IOException {
+		MappedByteBuffer buffer = mBuffers.get(route);
+		if (buffer == null) {
+			RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "profile-" + route + ".bin"), "rw");
+			try {
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+			} finally {
+				/* The mapping stays valid after the channel is closed. */
+				file.close();
+			}
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			mBuffers.put(route, buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return the stored profile of route, or null if there is none
+	 */
+	public synchronized Profile load(String route) {
+		try {
+			MappedByteBuffer buffer = getBuffer(route);
+			if (buffer.getInt(OFFSET_MAGIC) != MAGIC
+					|| buffer.getShort(OFFSET_VERSION) != VERSION
+					|| buffer.getShort(OFFSET_SIZE) != Profile.SIZE) {
+				return null;
+			}
+			return Profile.read(buffer, HEADER_SIZE);
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't read profile of " + route, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Replace the profile of route. The magic is cleared while the record
+	 * is rewritten, so an interrupted save reads as missing, not as garbage.
+	 */
+	public synchronized void save(String route, Profile profile) {
+		try {
+			MappedByteBuffer buffer = getBuffer(route);
+			int generation = buffer.getInt(OFFSET_MAGIC) == MAGIC ? buffer.getInt(OFFSET_GENERATION) + 1 : 0;
+			buffer.putInt(OFFSET_MAGIC, 0);
+			profile.write(buffer, HEADER_SIZE);
+			buffer.putShort(OFFSET_VERSION, VERSION);
+			buffer.putShort(OFFSET_SIZE, (short) Profile.SIZE);
+			buffer.putInt(OFFSET_GENERATION, generation);
+			buffer.putInt(OFFSET_MAGIC, MAGIC);
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't write profile of " + route, e);
+		}
+	}
+
+	/**
+	 * Write the one setting key of profile into the stored record of route,
+	 * leaving the rest of the record alone.
+	 *
+	 * @return false if route has no valid record to update, or key is not
+	 *         part of it
+	 */
+	public synchronized boolean update(String route, Profile profile, String key) {
+		try {
+			MappedByteBuffer buffer = getBuffer(route);
+			if (buffer.getInt(OFFSET_MAGIC) != MAGIC
+					|| buffer.getShort(OFFSET_VERSION) != VERSION
+					|| buffer.getShort(OFFSET_SIZE) != Profile.SIZE) {
+				return false;
+			}
+			int generation = buffer.getInt(OFFSET_GENERATION) + 1;
+			buffer.putInt(OFFSET_MAGIC, 0);
+			boolean written = profile.writeField(buffer, HEADER_SIZE, key);
+			buffer.putInt(OFFSET_GENERATION, generation);
+			buffer.putInt(OFFSET_MAGIC, MAGIC);
+			return written;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't write profile of " + route, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Write every changed record through to storage.
+	 */
+	public synchronized void flush() {
+		for (MappedByteBuffer buffer : mBuffers.values()) {
+			buffer.force();
+		}
+	}
+}
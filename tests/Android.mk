@@ -0,0 +1,41 @@
+# Host tools for the app code that does not need Android, e.g.
+#   make dspmanager-sysfs-benchmark
+#   java -cp $ANDROID_HOST_OUT/framework/dspmanager-sysfs-benchmark.jar \
+#       com.bel.android.dspmanager.activity.SysfsBenchmark temp
+#   make dspmanager-impulse-response-test
+#   java -cp $ANDROID_HOST_OUT/framework/dspmanager-impulse-response-test.jar \
+#       com.bel.android.dspmanager.service.ImpulseResponseTest
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := dspmanager-sysfs-benchmark
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := \
+	$(call all-java-files-under, src/com/bel/android/dspmanager/activity) \
+	../src/com/bel/android/dspmanager/activity/FileSysfsBackend.java \
+	../src/com/bel/android/dspmanager/activity/MemorySysfsBackend.java \
+	../src/com/bel/android/dspmanager/activity/SysfsBackend.java \
+	../src/com/bel/android/dspmanager/activity/SysfsBackends.java \
+	../src/com/bel/android/dspmanager/activity/SysfsRestore.java \
+	../src/com/bel/android/dspmanager/activity/SysfsWriter.java \
+	../src/com/bel/android/dspmanager/activity/WM8994Nodes.java \
+# terminator
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := dspmanager-impulse-response-test
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := \
+	$(call all-java-files-under, src/com/bel/android/dspmanager/service) \
+	../src/com/bel/android/dspmanager/service/ImpulseResponse.java \
+# terminator
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bel.android.dspmanager.activity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the sysfs write path on the WM8994 node set. Runs on a plain JVM:
+ * <pre>
+ * java -cp dspmanager-sysfs-benchmark.jar com.bel.android.dspmanager.activity.SysfsBenchmark [memory|temp|DIR] [writes]
+ * </pre>
+ * "memory" and "temp" create the nodes themselves, and "temp" removes its
+ * directory again; DIR must already hold them below its root, e.g. "/" on
+ * a device with Voodoo sound.
+ */
+public class SysfsBenchmark {
+    private static final int RESTORE_RUNS = 200;
+
+    public static void main(String[] args) throws IOException {
+        String kind = args.length > 0 ? args[0] : "memory";
+        int writes = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        SysfsBackend backend;
+        FileSysfsBackend temporary = null;
+        if ("memory".equals(kind)) {
+            MemorySysfsBackend memory = new MemorySysfsBackend();
+            memory.create(WM8994Nodes.ENABLE, "1");
+            for (String path : WM8994Nodes.RESTORE_ORDER) {
+                memory.create(path, "0");
+            }
+            backend = memory;
+        } else if ("temp".equals(kind)) {
+            temporary = FileSysfsBackend.createTemporary();
+            backend = temporary;
+        } else {
+            backend = new FileSysfsBackend(new File(kind));
+        }
+
+        try {
+            if (temporary != null) {
+                temporary.create(WM8994Nodes.ENABLE, "1");
+                for (String path : WM8994Nodes.RESTORE_ORDER) {
+                    temporary.create(path, "0");
+                }
+                System.out.println("Nodes in " + temporary.getRoot());
+            }
+            run(backend, writes);
+        } finally {
+            if (temporary != null) {
+                delete(temporary.getRoot());
+            }
+        }
+    }
+
+    private static void run(SysfsBackend backend, int writes) throws IOException {
+        String[] nodes = WM8994Nodes.RESTORE_ORDER;
+        for (String path : nodes) {
+            if (!backend.exists(path)) {
+                System.err.println("Missing node " + path);
+                return;
+            }
+        }
+
+        // Rewriting open handles, as the writer thread does
+        SysfsBackend.Handle[] handles = new SysfsBackend.Handle[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            handles[i] = backend.open(nodes[i]);
+        }
+        long[] latency = new long[writes];
+        long start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            byte[] value = String.valueOf(i & 1).getBytes();
+            long t = System.nanoTime();
+            handles[i % nodes.length].write(value);
+            latency[i] = System.nanoTime() - t;
+        }
+        report("open handle", writes, System.nanoTime() - start, latency);
+        for (SysfsBackend.Handle handle : handles) {
+            handle.close();
+        }
+
+        // Opening for every write, as Utils.writeValue used to
+        start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            byte[] value = String.valueOf(i & 1).getBytes();
+            long t = System.nanoTime();
+            SysfsBackend.Handle handle = backend.open(nodes[i % nodes.length]);
+            handle.write(value);
+            handle.close();
+            latency[i] = System.nanoTime() - t;
+        }
+        report("open per write", writes, System.nanoTime() - start, latency);
+
+        // Seek bar style bursts through the coalescing writer
+        SysfsWriter writer = new SysfsWriter(backend);
+        start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            writer.write(nodes[i % 3], String.valueOf(i & 63));
+        }
+        writer.flush();
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-16s %10.0f queued/s, %d of %d reached the backend",
+                "coalescing", writes * 1e9 / elapsed, writer.getWriteCount(), writes));
+
+        // Restore: probe everything, then write what differs
+        long[] restore = new long[RESTORE_RUNS];
+        int skipped = 0;
+        for (int run = 0; run < RESTORE_RUNS; run++) {
+            Map<String, String> plan = new LinkedHashMap<String, String>();
+            for (int i = 0; i < nodes.length; i++) {
+                // Every other node needs a new value on each run
+                plan.put(nodes[i], String.valueOf((i & 1) == 0 ? run & 1 : 0));
+            }
+            long t = System.nanoTime();
+            Map<String, String> current = new HashMap<String, String>();
+            for (String path : nodes) {
+                current.put(path, backend.readLine(path));
+            }
+            skipped += SysfsRestore.apply(writer, current, plan);
+            restore[run] = System.nanoTime() - t;
+        }
+        Arrays.sort(restore);
+        System.out.println(String.format("%-16s %10.3f ms median, %.3f ms p99, %d of %d writes skipped",
+                "restore", restore[RESTORE_RUNS / 2] / 1e6, restore[RESTORE_RUNS * 99 / 100] / 1e6,
+                skipped, RESTORE_RUNS * nodes.length));
+    }
+
+    private static void report(String name, int writes, long elapsed, long[] latency) {
+        long[] sorted = latency.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-16s %10.0f writes/s, p50 %.2f us, p99 %.2f us",
+                name, writes * 1e9 / elapsed,
+                sorted[writes / 2] / 1e3, sorted[(int) (writes * 99L / 100)] / 1e3));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Can't delete " + file);
+        }
+    }
+}
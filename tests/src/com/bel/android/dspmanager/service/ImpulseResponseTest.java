@@ -0,0 +1,164 @@
+package com.bel.android.dspmanager.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the WAV layouts impulse responses come in and checks that broken
+ * files are refused. Runs on a plain JVM:
+ * <pre>
+ * java -cp dspmanager-impulse-response-test.jar com.bel.android.dspmanager.service.ImpulseResponseTest
+ * </pre>
+ * Exits with a non-zero status on failure.
+ */
+public class ImpulseResponseTest {
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+	private static final byte[] SUBFORMAT_GUID_TAIL = {
+		0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xaa, 0x00, 0x38, (byte) 0x9b, 0x71
+	};
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("ImpulseResponseTest", ".wav");
+		try {
+			System.exit(run(file) ? 0 : 1);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static boolean run(File file) throws IOException {
+		boolean ok = true;
+		ok &= testLayout(file, "PCM 16-bit", 4, WAVE_FORMAT_PCM, 16, false);
+		ok &= testLayout(file, "float", 4, WAVE_FORMAT_IEEE_FLOAT, 32, false);
+		ok &= testLayout(file, "extensible PCM 24-bit", 4, WAVE_FORMAT_PCM, 24, true);
+		ok &= testLayout(file, "extensible float", 4, WAVE_FORMAT_IEEE_FLOAT, 32, true);
+		ok &= testLayout(file, "2-channel PCM 16-bit", 2, WAVE_FORMAT_PCM, 16, false);
+
+		write(file, ImpulseResponse.MAXIMUM_LENGTH + 100, 4, WAVE_FORMAT_PCM, 16, false, false);
+		ImpulseResponse response = ImpulseResponse.read(file);
+		boolean good = response.getLength() == ImpulseResponse.MAXIMUM_LENGTH;
+		System.out.println((good ? "ok" : "FAIL") + " long file truncated");
+		ok &= good;
+
+		write(file, 512, 4, WAVE_FORMAT_IEEE_FLOAT, 32, false, true);
+		ok &= expectRefused(file, "sample that is not a number");
+		write(file, 512, 3, WAVE_FORMAT_PCM, 16, false, false);
+		ok &= expectRefused(file, "3-channel file");
+		write(file, 512, 4, WAVE_FORMAT_PCM, 8, false, false);
+		ok &= expectRefused(file, "8-bit file");
+		write(file, 0, 4, WAVE_FORMAT_PCM, 16, false, false);
+		ok &= expectRefused(file, "empty file");
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("RIFF\0\0\0\0WAVEfmt ".getBytes("US-ASCII"));
+		out.close();
+		ok &= expectRefused(file, "truncated file");
+
+		out = new FileOutputStream(file);
+		out.write("ID3 not a WAV file".getBytes("US-ASCII"));
+		out.close();
+		ok &= expectRefused(file, "other file");
+		return ok;
+	}
+
+	/** Deterministic decaying noise, -1 .. 1 */
+	private static float response(int i, int c) {
+		int x = (i * 4 + c) * -1640531535;
+		x ^= x >>> 15;
+		return ((x & 0xffff) / 32768.0f - 1.0f) * (float) Math.exp(-i / 300.0) * 0.3f;
+	}
+
+	private static boolean testLayout(File file, String name, int channels, int format, int bits,
+			boolean extensible) throws IOException {
+		write(file, 512, channels, format, bits, extensible, false);
+		ImpulseResponse response = ImpulseResponse.read(file);
+		if (response.getLength() != 512 || response.getSamplingRate() != 44100) {
+			System.out.println("FAIL " + name + ": read " + response.getLength() + " frames at "
+					+ response.getSamplingRate() + " Hz");
+			return false;
+		}
+
+		/* 2-channel files are the left speaker; the right one mirrors it. */
+		int[] source = channels == 4 ? new int[] { 0, 1, 2, 3 } : new int[] { 0, 1, 1, 0 };
+		double error = 0;
+		for (int i = 0; i < 512; i ++) {
+			for (int c = 0; c < 4; c ++) {
+				error = Math.max(error, Math.abs(response.getSample(i, c) - response(i, source[c])));
+			}
+		}
+		boolean good = error < Math.scalb(2.0, 1 - bits);
+		System.out.println(String.format("%s %s: max error %.2e", good ? "ok" : "FAIL", name, error));
+		return good;
+	}
+
+	private static boolean expectRefused(File file, String name) {
+		boolean good;
+		try {
+			ImpulseResponse.read(file);
+			good = false;
+		} catch (IOException e) {
+			good = true;
+		}
+		System.out.println((good ? "ok" : "FAIL") + " " + name + " refused");
+		return good;
+	}
+
+	/**
+	 * Write a response of length frames. extensible wraps the format in
+	 * WAVE_FORMAT_EXTENSIBLE; broken puts a NaN in the middle.
+	 */
+	private static void write(File file, int frames, int channels, int format, int bits,
+			boolean extensible, boolean broken) throws IOException {
+		int bytes = frames * channels * bits / 8;
+		int fmtSize = extensible ? 40 : 16;
+		ByteBuffer wav = ByteBuffer.allocate(12 + 8 + fmtSize + 8 + bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+		wav.put("RIFF".getBytes("US-ASCII"));
+		wav.putInt(4 + 8 + fmtSize + 8 + bytes);
+		wav.put("WAVE".getBytes("US-ASCII"));
+
+		wav.put("fmt ".getBytes("US-ASCII"));
+		wav.putInt(fmtSize);
+		wav.putShort((short) (extensible ? 0xfffe : format));
+		wav.putShort((short) channels);
+		wav.putInt(44100);
+		wav.putInt(44100 * channels * bits / 8);
+		wav.putShort((short) (channels * bits / 8));
+		wav.putShort((short) bits);
+		if (extensible) {
+			wav.putShort((short) 22);
+			wav.putShort((short) bits);
+			wav.putInt(0x33);
+			wav.putShort((short) format);
+			wav.put(SUBFORMAT_GUID_TAIL);
+		}
+
+		wav.put("data".getBytes("US-ASCII"));
+		wav.putInt(bytes);
+		for (int i = 0; i < frames; i ++) {
+			for (int c = 0; c < channels; c ++) {
+				float v = broken && i == frames / 2 ? Float.NaN : response(i, c);
+				if (format == WAVE_FORMAT_IEEE_FLOAT) {
+					wav.putFloat(v);
+				} else {
+					int s = (int) (v * 2147483647.0f) >> (32 - bits);
+					for (int b = 0; b < bits; b += 8) {
+						wav.put((byte) (s >> b));
+					}
+				}
+			}
+		}
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(wav.array());
+		} finally {
+			out.close();
+		}
+	}
+}